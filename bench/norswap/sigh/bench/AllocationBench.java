@@ -0,0 +1,55 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the number of bytes allocated when running {@code examples/fizzbuzz.si} and a
+ * generated arithmetic loop, in the interpreter and in the closure interpreter.
+ */
+public final class AllocationBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that sums the first {@code iterations} integers and floats in a loop.
+     */
+    static String arithmeticScript (int iterations)
+    {
+        return "var i: Int = 0\n"
+             + "var sum: Int = 0\n"
+             + "var fsum: Float = 0.0\n"
+             + "while i < " + iterations + " {\n"
+             + "    sum = sum + i * 2 - 1\n"
+             + "    fsum = fsum + 0.5 * i\n"
+             + "    i = i + 1\n"
+             + "}\n"
+             + "return sum\n";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source, int warmup, int runs)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        Bench.allocation(label + " [interpreter]", warmup, runs, () ->
+            Bench.silently(() -> new Interpreter(reactor).interpret(tree)));
+        Bench.allocation(label + " [closures]", warmup, runs, () ->
+            Bench.silently(() -> new ClosureInterpreter(reactor).interpret(tree)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        // print only accepts strings
+        String fizzbuzz = Bench.example("fizzbuzz.si").replace("print(i)", "print(\"\" + i)");
+        bench("fizzbuzz.si", fizzbuzz, 500, 200);
+        bench("arithmetic (100k iterations)", arithmeticScript(100_000), 20, 20);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
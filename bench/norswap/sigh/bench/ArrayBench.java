@@ -0,0 +1,106 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time and the allocations of array-heavy code: element-wise operations on
+ * {@code Int[]} and {@code Float[]} arrays, and indexed loops over these arrays.
+ *
+ * <p>Compiled bytecode is measured on smaller arrays, since the literals of the larger script
+ * would exceed the size limit of a JVM method.
+ */
+public final class ArrayBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the source of an array literal holding {@code size} elements, each formatted from
+     * its index by {@code element}.
+     */
+    static String literal (int size, java.util.function.IntFunction<String> element)
+    {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) b.append(", ");
+            b.append(element.apply(i));
+        }
+        return b.append("]").toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that combines two arrays of {@code size} elements {@code rounds} times
+     * using element-wise operations, then sums the elements of the result in a loop.
+     *
+     * <p>The work is done in a function: in compiled code, the top-level code that holds the
+     * literals is too large to be compiled by the JIT.
+     */
+    static String arrayScript (int size, int rounds)
+    {
+        return "var a: Int[] = " + literal(size, i -> "" + (i % 100)) + "\n"
+             + "var b: Int[] = " + literal(size, i -> "" + (i % 7 + 1)) + "\n"
+             + "var f: Float[] = " + literal(size, i -> (i % 10) + ".5") + "\n"
+             + "fun work (a: Int[], b: Int[], f: Float[]): Int {\n"
+             + "    var c: Int[] = a\n"
+             + "    var g: Float[] = f\n"
+             + "    var r: Int = 0\n"
+             + "    while r < " + rounds + " {\n"
+             + "        c = a * b + c - b\n"
+             + "        g = g * f / f\n"
+             + "        r = r + 1\n"
+             + "    }\n"
+             + "    var sum: Int = 0\n"
+             + "    var i: Int = 0\n"
+             + "    while i < c.length {\n"
+             + "        sum = sum + c[i]\n"
+             + "        c[i] = 0\n"
+             + "        i = i + 1\n"
+             + "    }\n"
+             + "    return sum\n"
+             + "}\n"
+             + "return work(a, b, f)\n";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source, boolean compiled)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+
+        Bench.measure(label + " [interpreter]", 10, 20, () ->
+            new Interpreter(reactor).interpret(tree));
+        Bench.allocation(label + " [interpreter]", 10, 20, () ->
+            new Interpreter(reactor).interpret(tree));
+        Bench.measure(label + " [closures]", 10, 20, () ->
+            new ClosureInterpreter(reactor).interpret(tree));
+        Bench.allocation(label + " [closures]", 10, 20, () ->
+            new ClosureInterpreter(reactor).interpret(tree));
+        if (!compiled)
+            return;
+        Class<?> mainClass = new BytecodeCompiler(reactor)
+            .compile("ArrayBenchRun", tree)
+            .load(new ByteArrayClassLoader());
+        Bench.measure(label + " [bytecode]", 10, 20, () ->
+            CompilationResult.callRun(mainClass));
+        Bench.allocation(label + " [bytecode]", 10, 20, () ->
+            CompilationResult.callRun(mainClass));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        bench("arrays", arrayScript(10_000, 50), false);
+        bench("arrays 1k", arrayScript(1_000, 500), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
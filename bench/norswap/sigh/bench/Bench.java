@@ -0,0 +1,151 @@
+package norswap.sigh.bench;
+
+import norswap.autumn.Autumn;
+import norswap.autumn.ParseOptions;
+import norswap.autumn.ParseResult;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.SighGrammar;
+import norswap.sigh.ast.SighNode;
+import norswap.uranium.Reactor;
+import norswap.utils.IO;
+import norswap.utils.visitors.Walker;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static norswap.utils.Util.cast;
+
+/**
+ * Small utilities shared by the benchmarks: parsing and analyzing programs, and timing code.
+ *
+ * <p>The benchmarks are plain main classes, run with {@code ./gradlew bench -PbenchMain=<class>}.
+ * They report the median time of a number of runs, after a number of warmup runs, or the
+ * number of bytes allocated per run.
+ */
+public final class Bench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final SighGrammar grammar = new SighGrammar();
+
+    private static final ParseOptions parseOptions = ParseOptions.builder()
+        .wellFormednessCheck(false)
+        .get();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Bench () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the source of the given file in the {@code examples} directory.
+     */
+    public static String example (String file) {
+        return IO.slurp(Paths.get("examples/", file).toAbsolutePath().toString());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses the given program, throwing an exception if it isn't a valid program.
+     */
+    public static SighNode parse (String input)
+    {
+        ParseResult result = Autumn.parse(grammar.root, input, parseOptions);
+        if (!result.fullMatch)
+            throw new AssertionError(result.toString());
+        return cast(result.topValue());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs semantic analysis on the given tree and returns the reactor holding the results,
+     * throwing an exception if there are semantic errors.
+     */
+    public static Reactor analyze (SighNode tree)
+    {
+        Reactor reactor = new Reactor();
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
+        walker.walk(tree);
+        reactor.run();
+        if (!reactor.errors().isEmpty())
+            throw new AssertionError(reactor.reportErrors(Object::toString));
+        return reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code code} with standard output discarded, and returns its result.
+     */
+    public static <T> T silently (Supplier<T> code)
+    {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override public void write (int b) {}
+            @Override public void write (byte[] b, int off, int len) {}
+        }));
+        try {
+            return code.get();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code code} {@code warmup} times, then {@code runs} times while timing it, and
+     * returns the median time in milliseconds. The result is printed, prefixed by {@code label}.
+     */
+    public static double measure (String label, int warmup, int runs, Runnable code)
+    {
+        for (int i = 0; i < warmup; ++i)
+            code.run();
+
+        double[] times = new double[runs];
+        for (int i = 0; i < runs; ++i) {
+            long start = System.nanoTime();
+            code.run();
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+
+        Arrays.sort(times);
+        double median = times[runs / 2];
+        System.out.printf("%-40s %10.3f ms (min %.3f, max %.3f)%n",
+            label, median, times[0], times[runs - 1]);
+        return median;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    /**
+     * Runs {@code code} {@code warmup} times, then {@code runs} times while counting the bytes
+     * allocated by the current thread (allocations made by other threads are not counted), and
+     * returns the average number of bytes allocated per run. The result is printed, prefixed by
+     * {@code label}.
+     */
+    public static long allocation (String label, int warmup, int runs, Runnable code)
+    {
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+
+        for (int i = 0; i < warmup; ++i)
+            code.run();
+
+        long start = bean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < runs; ++i)
+            code.run();
+        long perRun = (bean.getThreadAllocatedBytes(thread) - start) / runs;
+
+        System.out.printf("%-40s %12d bytes/run%n", label, perRun);
+        return perRun;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,84 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.LaunchScheduler;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time needed to pass {@link #VALUES} integers through a three-stage pipeline
+ * (producer, mapper, collector) connected by channels of various capacities, in the interpreter
+ * and in the closure interpreter.
+ *
+ * <p>Each stage runs in its own virtual thread. Small capacities make the stages wait on each
+ * other more often.
+ */
+public final class ChannelBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int VALUES = 20_000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that passes {@link #VALUES} integers through a pipeline whose channels
+     * have the given capacity.
+     */
+    static String script (int capacity)
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("var input: Channel<Int> = $Channel<Int>(").append(capacity).append(")\n");
+        b.append("var output: Channel<Int> = $Channel<Int>(").append(capacity).append(")\n");
+        b.append("fun produce (n: Int): Int {\n");
+        b.append("    var i: Int = 0\n");
+        b.append("    while i < n { send(input, i)  i = i + 1 }\n");
+        b.append("    close(input)\n");
+        b.append("    return n\n");
+        b.append("}\n");
+        b.append("fun map (): Int {\n");
+        b.append("    while more(input) { send(output, receive(input) * 3) }\n");
+        b.append("    close(output)\n");
+        b.append("    return 1\n");
+        b.append("}\n");
+        b.append("fun collect (): Int {\n");
+        b.append("    var sum: Int = 0\n");
+        b.append("    while more(output) { sum = sum + receive(output) }\n");
+        b.append("    return sum\n");
+        b.append("}\n");
+        b.append("launch var p: Int = produce(").append(VALUES).append(")\n");
+        b.append("launch var m: Int = map()\n");
+        b.append("launch var c: Int = collect()\n");
+        b.append("wait(c)\n");
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        Bench.measure(label + " [interpreter]", 3, 5, () -> {
+            Interpreter interpreter = new Interpreter(reactor);
+            interpreter.setScheduler(LaunchScheduler.VIRTUAL);
+            interpreter.interpret(tree);
+        });
+        Bench.measure(label + " [closures]", 3, 5, () -> {
+            ClosureInterpreter interpreter = new ClosureInterpreter(reactor);
+            interpreter.setScheduler(LaunchScheduler.VIRTUAL);
+            interpreter.interpret(tree);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        for (int capacity = 1; capacity <= 1024; capacity *= 8)
+            bench("capacity " + capacity, script(capacity));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,102 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time needed to fold an array of {@link #SIZE} integers with higher-order code,
+ * {@link #ROUNDS} times: with {@code preduce}, and with a loop that calls the function directly or
+ * through a function value, in the interpreter, in the closure interpreter and in compiled
+ * bytecode.
+ *
+ * <p>In compiled bytecode, {@code preduce} and the calls to function values go through an inline
+ * cache, which should make them about as fast as direct calls.
+ */
+public final class FoldBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int SIZE = 5_000;
+    private static final int ROUNDS = 20;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that folds the input array {@link #ROUNDS} times with {@code add} then
+     * with {@code max}, using the expression {@code fold}, in which {@code $f} stands for the
+     * function and {@code $k} for its index (0 for {@code add}, 1 for {@code max}).
+     *
+     * <p>The work is done in a function: in compiled code, the top-level code that holds the
+     * literal is too large to be compiled by the JIT.
+     */
+    static String script (String fold)
+    {
+        return "var input: Int[] = " + ArrayBench.literal(SIZE, i -> "" + (i * 7919 % 1000))
+             + "\n"
+             + "fun add (a: Int, b: Int): Int { return a + b }\n"
+             + "fun max (a: Int, b: Int): Int { if a > b { return a } return b }\n"
+             + "fun work (input: Int[]): Int {\n"
+             + "    var total: Int = 0\n"
+             + "    var r: Int = 0\n"
+             + "    while r < " + ROUNDS + " {\n"
+             + "        total = total + " + fold.replace("$f", "add").replace("$k", "0") + "\n"
+             + "        total = total + " + fold.replace("$f", "max").replace("$k", "1") + "\n"
+             + "        r = r + 1\n"
+             + "    }\n"
+             + "    return total\n"
+             + "}\n"
+             + "fun loop (input: Int[], k: Int): Int {\n"
+             + "    var acc: Int = 0\n"
+             + "    var i: Int = 0\n"
+             + "    while i < input.length {\n"
+             + "        if k == 0 { acc = add(acc, input[i]) } else { acc = max(acc, input[i]) }\n"
+             + "        i = i + 1\n"
+             + "    }\n"
+             + "    return acc\n"
+             + "}\n"
+             + "fun loopValue (input: Int[], k: Int): Int {\n"
+             + "    var acc: Int = 0\n"
+             + "    var i: Int = 0\n"
+             + "    while i < input.length {\n"
+             + "        if k == 0 { acc = (add)(acc, input[i]) }\n"
+             + "        else { acc = (max)(acc, input[i]) }\n"
+             + "        i = i + 1\n"
+             + "    }\n"
+             + "    return acc\n"
+             + "}\n"
+             + "return work(input)\n";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        Bench.measure(label + " [interpreter]", 3, 5,
+            () -> new Interpreter(reactor).interpret(tree));
+        Bench.measure(label + " [closures]", 3, 5,
+            () -> new ClosureInterpreter(reactor).interpret(tree));
+        Class<?> mainClass = new BytecodeCompiler(reactor)
+            .compile("FoldBenchRun", tree)
+            .load(new ByteArrayClassLoader());
+        Bench.measure(label + " [bytecode]", 10, 20,
+            () -> CompilationResult.callRun(mainClass));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        bench("preduce", script("preduce($f, input, 0)"));
+        bench("loop", script("loop(input, $k)"));
+        bench("loop on function values", script("loopValue(input, $k)"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
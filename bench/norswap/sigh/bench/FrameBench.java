@@ -0,0 +1,74 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the speed of variable accesses and function calls in the interpreter and in the
+ * closure interpreter, on {@code examples/fizzbuzz.si} and on a generated loop-heavy script.
+ */
+public final class FrameBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that calls a function {@code calls} times, each call running a loop of
+     * {@code iterations} iterations nested in {@code nesting} blocks, so that variables are
+     * accessed from several frames away.
+     */
+    static String loopScript (int calls, int iterations, int nesting)
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("var total: Int = 0\n");
+        b.append("fun work (n: Int, k: Int): Int {\n");
+        b.append("    var acc: Int = 0\n");
+        for (int i = 0; i < nesting; ++i)
+            b.append("    if true {\n");
+        b.append("    var i: Int = 0\n");
+        b.append("    while i < n {\n");
+        b.append("        if i % 3 == 0 {\n");
+        b.append("            acc = acc + k\n");
+        b.append("        } else {\n");
+        b.append("            acc = acc - 1\n");
+        b.append("        }\n");
+        b.append("        i = i + 1\n");
+        b.append("    }\n");
+        for (int i = 0; i < nesting; ++i)
+            b.append("    }\n");
+        b.append("    return acc\n");
+        b.append("}\n");
+        b.append("var k: Int = 0\n");
+        b.append("while k < ").append(calls).append(" {\n");
+        b.append("    total = total + work(").append(iterations).append(", k)\n");
+        b.append("    k = k + 1\n");
+        b.append("}\n");
+        b.append("return total\n");
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source, int warmup, int runs)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        Bench.measure(label + " [interpreter]", warmup, runs, () ->
+            Bench.silently(() -> new Interpreter(reactor).interpret(tree)));
+        Bench.measure(label + " [closures]", warmup, runs, () ->
+            Bench.silently(() -> new ClosureInterpreter(reactor).interpret(tree)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        // print only accepts strings
+        String fizzbuzz = Bench.example("fizzbuzz.si").replace("print(i)", "print(\"\" + i)");
+        bench("fizzbuzz.si", fizzbuzz, 500, 200);
+        bench("loops (100 calls x 1000 iterations)", loopScript(100, 1000, 4), 20, 20);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
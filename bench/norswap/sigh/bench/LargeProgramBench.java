@@ -0,0 +1,61 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.AttributeTables;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time taken by semantic analysis and by interpretation on a large generated program
+ * (about 10k statements), where attribute lookups on nodes with large subtrees are frequent.
+ */
+public final class LargeProgramBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a program with {@code functions} functions, each with a body of roughly {@code
+     * statements} statements, followed by a call to each function.
+     */
+    static String program (int functions, int statements)
+    {
+        StringBuilder b = new StringBuilder();
+        for (int f = 0; f < functions; ++f) {
+            b.append("fun f").append(f).append(" (x: Int): Int {\n");
+            b.append("    var a0: Int = x\n");
+            for (int i = 1; i < statements - 1; ++i) {
+                if (i % 2 == 1)
+                    b.append("    var a").append(i).append(": Int = a").append(i - 1)
+                        .append(" + ").append(i).append("\n");
+                else
+                    b.append("    if a").append(i - 1).append(" > ").append(i).append(" {\n")
+                        .append("        a").append(i - 1).append(" = a").append(i - 1)
+                        .append(" - 1\n    }\n")
+                        .append("    var a").append(i).append(": Int = a").append(i - 1)
+                        .append("\n");
+            }
+            b.append("    return a").append(statements - 2).append("\n");
+            b.append("}\n");
+        }
+        b.append("var total: Int = 0\n");
+        for (int f = 0; f < functions; ++f)
+            b.append("total = total + f").append(f).append("(").append(f).append(")\n");
+        b.append("return total\n");
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        SighNode tree = Bench.parse(program(100, 100));
+
+        Bench.measure("analysis (10k statements)", 5, 10, () -> Bench.analyze(tree));
+
+        Reactor reactor = Bench.analyze(tree);
+        Bench.measure("freeze + interpretation (10k statements)", 5, 10, () ->
+            new Interpreter(AttributeTables.freeze(tree, reactor)).interpret(tree));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
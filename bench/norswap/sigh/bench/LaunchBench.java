@@ -0,0 +1,133 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.bytecode.SighRuntime;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.LaunchScheduler;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time needed to run a small script that launches a few tasks, to launch a large
+ * number of trivial tasks, with {@code launch} and with {@code launch var}, and to run a large
+ * number of tasks that block on {@code wait}, and to run a recursive divide-and-conquer sum, in
+ * the interpreter, in the closure interpreter and in compiled bytecode, for each {@link
+ * LaunchScheduler}.
+ *
+ * <p>Only the given schedulers are measured if their names are passed as arguments.
+ */
+public final class LaunchBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that launches {@code tasks} tasks that call a trivial function, using
+     * {@code launch} or (if {@code variable} is true) {@code launch var}. The script terminates
+     * when all tasks have completed.
+     */
+    static String script (int tasks, boolean variable)
+    {
+        String launch = variable
+            ? "    launch var x: Int = one()\n"
+            : "    launch one()\n";
+        return "fun one (): Int { return 1 }\n"
+             + "var i: Int = 0\n"
+             + "while i < " + tasks + " {\n"
+             + launch
+             + "    i = i + 1\n"
+             + "}\n";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that launches a slow task, then {@code tasks} tasks that wait for it.
+     */
+    static String blockingScript (int tasks)
+    {
+        return "fun open (): Int { var i: Int = 0 while i < 100000 { i = i + 1 } return 1 }\n"
+             + "launch var gate: Int = open()\n"
+             + "fun waitGate (): Int { wait(gate) return gate }\n"
+             + "var i: Int = 0\n"
+             + "while i < " + tasks + " {\n"
+             + "    launch var w: Int = waitGate()\n"
+             + "    i = i + 1\n"
+             + "}\n";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that sums the integers below {@code n} by recursively splitting the
+     * range in two halves, summed by two launched tasks, until it is smaller than {@code leaf}.
+     */
+    static String treeSumScript (int n, int leaf)
+    {
+        return "fun sum (lo: Int, hi: Int): Int {\n"
+             + "    if hi - lo <= " + leaf + " {\n"
+             + "        var s: Int = 0\n"
+             + "        while lo < hi { s = s + lo lo = lo + 1 }\n"
+             + "        return s\n"
+             + "    }\n"
+             + "    var mid: Int = (lo + hi) / 2\n"
+             + "    launch var left: Int = sum(lo, mid)\n"
+             + "    launch var right: Int = sum(mid, hi)\n"
+             + "    wait(left)\n"
+             + "    wait(right)\n"
+             + "    return left + right\n"
+             + "}\n"
+             + "return sum(0, " + n + ")\n";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source, LaunchScheduler scheduler,
+                               int warmup, int runs)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        label = label + " " + scheduler.name().toLowerCase();
+        Bench.measure(label + " [interpreter]", warmup, runs, () -> {
+            Interpreter interpreter = new Interpreter(reactor);
+            interpreter.setScheduler(scheduler);
+            interpreter.interpret(tree);
+        });
+        Bench.measure(label + " [closures]", warmup, runs, () -> {
+            ClosureInterpreter interpreter = new ClosureInterpreter(reactor);
+            interpreter.setScheduler(scheduler);
+            interpreter.interpret(tree);
+        });
+        Class<?> mainClass = new BytecodeCompiler(reactor)
+            .compile("LaunchBenchRun", tree)
+            .load(new ByteArrayClassLoader());
+        Bench.measure(label + " [bytecode]", warmup, runs, () -> {
+            SighRuntime.setScheduler(scheduler);
+            CompilationResult.callRun(mainClass);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        LaunchScheduler[] schedulers = LaunchScheduler.values();
+        if (args.length > 0) {
+            schedulers = new LaunchScheduler[args.length];
+            for (int i = 0; i < args.length; ++i)
+                schedulers[i] = LaunchScheduler.valueOf(args[i].toUpperCase());
+        }
+
+        for (LaunchScheduler scheduler: schedulers) {
+            bench("launch 10", script(10, false), scheduler, 200, 500);
+            bench("launch 100k", script(100_000, false), scheduler, 3, 5);
+            bench("launch var 100k", script(100_000, true), scheduler, 3, 5);
+            bench("blocked 100k", blockingScript(100_000), scheduler, 3, 5);
+            bench("tree sum 1M", treeSumScript(1_000_000, 1000), scheduler, 3, 5);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
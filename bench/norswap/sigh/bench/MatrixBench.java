@@ -0,0 +1,118 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.interpreter.ArrayParallelism;
+import norswap.sigh.interpreter.MatrixProduct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the matrix product ({@code @}) on square matrices of {@code Float} rows, for
+ * sizes from 64 to 2048. Compares {@link MatrixProduct} (sequential and parallel) with a naive
+ * triple loop over the rows, which is how the product used to be computed.
+ *
+ * <p>Unlike the other benchmarks, this one uses JMH. Run it with {@code ./gradlew bench
+ * -PbenchMain=norswap.sigh.bench.MatrixBench}, or pass JMH options (e.g. {@code -p size=512})
+ * through {@code --args}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatrixBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"64", "128", "256", "512", "1024", "2048"})
+    public int size;
+
+    private Object[] a, b;
+    private int threshold;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup ()
+    {
+        a = matrix(size, 1);
+        b = matrix(size, 2);
+        threshold = ArrayParallelism.threshold();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @TearDown public void tearDown () {
+        ArrayParallelism.setThreshold(threshold);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object[] matrix (int size, int seed)
+    {
+        Object[] rows = new Object[size];
+        for (int i = 0; i < size; i++) {
+            double[] row = new double[size];
+            for (int j = 0; j < size; j++)
+                row[j] = ((i * 31 + j * 17 + seed) % 100) / 10.0;
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object naive ()
+    {
+        Object[] result = new Object[a.length];
+        for (int row = 0; row < a.length; row++) {
+            double[] cells = new double[b.length];
+            for (int col = 0; col < cells.length; col++) {
+                double cell = 0.0;
+                for (int k = 0; k < b.length; k++)
+                    cell += ((double[]) a[row])[k] * ((double[]) b[k])[col];
+                cells[col] = cell;
+            }
+            result[row] = cells;
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object sequential ()
+    {
+        ArrayParallelism.setThreshold(Integer.MAX_VALUE);
+        return MatrixProduct.multiply(a, b);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object parallel ()
+    {
+        ArrayParallelism.setThreshold(ArrayParallelism.DEFAULT_THRESHOLD);
+        return MatrixProduct.multiply(a, b);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args) throws Exception
+    {
+        String[] options = new String[args.length + 1];
+        options[0] = MatrixBench.class.getSimpleName();
+        System.arraycopy(args, 0, options, 1, args.length);
+        org.openjdk.jmh.Main.main(options);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
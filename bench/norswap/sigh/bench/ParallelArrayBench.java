@@ -0,0 +1,66 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ArrayParallelism;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.uranium.Reactor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how element-wise array operations scale with the number of threads of the {@link
+ * ArrayParallelism#pool() array pool}, from 1 to the number of available processors (or to the
+ * number given as first argument), plus a sequential baseline.
+ */
+public final class ParallelArrayBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that combines {@code Float[]} arrays of {@code size} elements and a
+     * {@code Int[][]} array of {@code size} elements, {@code rounds} times.
+     */
+    static String script (int size, int rounds)
+    {
+        int rows = 100;
+        String row = ArrayBench.literal(size / rows, i -> "" + (i % 13 + 1));
+        return "var a: Float[] = " + ArrayBench.literal(size, i -> (i % 100) + ".25") + "\n"
+             + "var b: Float[] = " + ArrayBench.literal(size, i -> (i % 7) + ".5") + "\n"
+             + "var m: Int[][] = " + ArrayBench.literal(rows, i -> row) + "\n"
+             + "var c: Float[] = a\n"
+             + "var n: Int[][] = m\n"
+             + "var r: Int = 0\n"
+             + "while r < " + rounds + " {\n"
+             + "    c = a * b + c / b - a\n"
+             + "    n = m * m + n - m\n"
+             + "    r = r + 1\n"
+             + "}\n"
+             + "return c[0]\n";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        int max = args.length > 0
+            ? Integer.parseInt(args[0])
+            : Runtime.getRuntime().availableProcessors();
+
+        SighNode tree = Bench.parse(script(200_000, 20));
+        Reactor reactor = Bench.analyze(tree);
+        Runnable run = () -> new ClosureInterpreter(reactor).interpret(tree);
+
+        ArrayParallelism.setThreshold(Integer.MAX_VALUE);
+        Bench.measure("sequential", 5, 10, run);
+        ArrayParallelism.setThreshold(ArrayParallelism.DEFAULT_THRESHOLD);
+
+        for (int threads = 1; threads <= max; ++threads) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ArrayParallelism.setPool(pool);
+            Bench.measure(threads + " thread(s)", 5, 10, run);
+            pool.shutdown();
+        }
+        ArrayParallelism.setPool(ForkJoinPool.commonPool());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
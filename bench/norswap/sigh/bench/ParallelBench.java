@@ -0,0 +1,67 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Measures the time needed to map a function over an array of {@link #SIZE} integers and to sum
+ * the results, with {@code pmap} and {@code preduce} and with sequential loops, in the
+ * interpreter and in the closure interpreter.
+ *
+ * <p>The function does a small loop, so that calls dominate the time of the map.
+ */
+public final class ParallelBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int SIZE = 20_000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final String COMMON =
+        "var input: Int[] = " + Arrays.toString(IntStream.range(0, SIZE).toArray()) + "\n" +
+        "fun work (x: Int): Int {\n" +
+        "    var r: Int = x\n" +
+        "    var i: Int = 0\n" +
+        "    while i < 20 { r = (r * 31 + i) % 1000003   i = i + 1 }\n" +
+        "    return r\n" +
+        "}\n" +
+        "fun add (a: Int, b: Int): Int { return a + b }\n";
+
+    private static final String PARALLEL = COMMON +
+        "var sum: Int = preduce(add, pmap(work, input), 0)\n";
+
+    private static final String SEQUENTIAL = COMMON +
+        "var mapped: Int[] = input\n" +
+        "var i: Int = 0\n" +
+        "while i < " + SIZE + " { mapped[i] = work(input[i])   i = i + 1 }\n" +
+        "var sum: Int = 0\n" +
+        "i = 0\n" +
+        "while i < " + SIZE + " { sum = add(sum, mapped[i])   i = i + 1 }\n";
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        Bench.measure(label + " [interpreter]", 3, 5,
+            () -> new Interpreter(reactor).interpret(tree));
+        Bench.measure(label + " [closures]", 3, 5,
+            () -> new ClosureInterpreter(reactor).interpret(tree));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        bench("sequential", SEQUENTIAL);
+        bench("pmap + preduce", PARALLEL);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,77 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.LaunchScheduler;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time needed by 1 to 32 tasks to increment a shared global 200k times in total,
+ * inside {@code protect} blocks that are simple updates (executed atomically) and inside {@code
+ * protect} blocks that need the lock, in the interpreter and in the closure interpreter.
+ *
+ * <p>Each task runs in its own (virtual) thread.
+ */
+public final class ProtectBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int INCREMENTS = 200_000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that launches {@code tasks} tasks, which together increment a global
+     * {@link #INCREMENTS} times, in the given protect block.
+     */
+    static String script (int tasks, String protect)
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("var count: Int = 0\n");
+        b.append("fun work (n: Int): Int {\n");
+        b.append("    var i: Int = 0\n");
+        b.append("    while i < n {\n");
+        b.append("        ").append(protect).append("\n");
+        b.append("        i = i + 1\n");
+        b.append("    }\n");
+        b.append("    return 1\n");
+        b.append("}\n");
+        b.append("var t: Int = 0\n");
+        b.append("while t < ").append(tasks).append(" {\n");
+        b.append("    launch work(").append(INCREMENTS / tasks).append(")\n");
+        b.append("    t = t + 1\n");
+        b.append("}\n");
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        Bench.measure(label + " [interpreter]", 3, 5, () -> {
+            Interpreter interpreter = new Interpreter(reactor);
+            interpreter.setScheduler(LaunchScheduler.VIRTUAL);
+            interpreter.interpret(tree);
+        });
+        Bench.measure(label + " [closures]", 3, 5, () -> {
+            ClosureInterpreter interpreter = new ClosureInterpreter(reactor);
+            interpreter.setScheduler(LaunchScheduler.VIRTUAL);
+            interpreter.interpret(tree);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        for (int tasks = 1; tasks <= 32; tasks *= 2) {
+            bench("atomic " + tasks, script(tasks, "protect : { count = count + 1 }"));
+            bench("lock " + tasks, script(tasks, "protect : { if true { count = count + 1 } }"));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,100 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.LaunchScheduler;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time needed by 1 to 32 reader tasks to take 200k snapshots in total of a shared
+ * struct, while a writer task updates it 2k times, when the readers use {@code protect read}
+ * blocks and when they use exclusive {@code protect} blocks, in the interpreter and in the closure
+ * interpreter.
+ *
+ * <p>Each task runs in its own (virtual) thread.
+ */
+public final class ReadProtectBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int READS = 200_000;
+
+    private static final int WRITES = 2_000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that launches {@code readers} reader tasks, which snapshot the struct in
+     * the given kind of protect block ({@code "protect read"} or {@code "protect"}), and a writer
+     * task.
+     */
+    static String script (int readers, String protect)
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("struct Stats { var count: Int; var sum: Int; var max: Int }\n");
+        b.append("var stats: Stats = $Stats(0, 0, 0)\n");
+        b.append("fun update (n: Int): Int {\n");
+        b.append("    var i: Int = 0\n");
+        b.append("    while i < n {\n");
+        b.append("        protect : {\n");
+        b.append("            stats.count = stats.count + 1\n");
+        b.append("            stats.sum = stats.sum + i\n");
+        b.append("            stats.max = i\n");
+        b.append("        }\n");
+        b.append("        i = i + 1\n");
+        b.append("    }\n");
+        b.append("    return 1\n");
+        b.append("}\n");
+        b.append("fun observe (n: Int): Int {\n");
+        b.append("    var total: Int = 0\n");
+        b.append("    var i: Int = 0\n");
+        b.append("    while i < n {\n");
+        b.append("        var mean: Int = 0\n");
+        b.append("        ").append(protect).append(" : {\n");
+        b.append("            if stats.count > 0 { mean = stats.sum / stats.count + stats.max }\n");
+        b.append("        }\n");
+        b.append("        total = total + mean\n");
+        b.append("        i = i + 1\n");
+        b.append("    }\n");
+        b.append("    return total\n");
+        b.append("}\n");
+        b.append("launch update(").append(WRITES).append(")\n");
+        b.append("var t: Int = 0\n");
+        b.append("while t < ").append(readers).append(" {\n");
+        b.append("    launch observe(").append(READS / readers).append(")\n");
+        b.append("    t = t + 1\n");
+        b.append("}\n");
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (String label, String source)
+    {
+        SighNode tree = Bench.parse(source);
+        Reactor reactor = Bench.analyze(tree);
+        Bench.measure(label + " [interpreter]", 3, 5, () -> {
+            Interpreter interpreter = new Interpreter(reactor);
+            interpreter.setScheduler(LaunchScheduler.VIRTUAL);
+            interpreter.interpret(tree);
+        });
+        Bench.measure(label + " [closures]", 3, 5, () -> {
+            ClosureInterpreter interpreter = new ClosureInterpreter(reactor);
+            interpreter.setScheduler(LaunchScheduler.VIRTUAL);
+            interpreter.interpret(tree);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        for (int readers = 1; readers <= 32; readers *= 2) {
+            bench("read " + readers, script(readers, "protect read"));
+            bench("exclusive " + readers, script(readers, "protect"));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
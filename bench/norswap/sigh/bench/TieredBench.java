@@ -0,0 +1,119 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.AttributeTables;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.bytecode.TieredCompiler;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+import java.util.function.Supplier;
+
+/**
+ * Reports how fast each engine reaches its peak throughput, when running the same program {@link
+ * #RUNS} times in a row: the interpreter, the interpreter with a {@link TieredCompiler} (with the
+ * default threshold, compiling in the background), and compiled bytecode (whose compilation time
+ * is counted before the first run).
+ *
+ * <p>For each engine, prints the time of each run and the elapsed time since the start, then the
+ * elapsed time at the end of the first run that is within {@link #PEAK} of the fastest run.
+ *
+ * <p>The tiered interpreter should run the first run at the speed of the interpreter, then reach
+ * the speed of compiled bytecode after a few runs, without paying for compiling the whole program
+ * upfront.
+ */
+public final class TieredBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int RUNS = 30;
+    private static final double PEAK = 1.2;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Counts the primes below 4000 by trial division, in a function that gets hot after a few
+     * iterations of its loops.
+     */
+    private static final String SCRIPT = ""
+        + "fun isPrime (n: Int): Bool {\n"
+        + "    var d: Int = 2\n"
+        + "    while d * d <= n {\n"
+        + "        if n % d == 0 { return false }\n"
+        + "        d = d + 1\n"
+        + "    }\n"
+        + "    return true\n"
+        + "}\n"
+        + "fun primes (n: Int): Int {\n"
+        + "    var count: Int = 0\n"
+        + "    var i: Int = 2\n"
+        + "    while i < n {\n"
+        + "        if isPrime(i) { count = count + 1 }\n"
+        + "        i = i + 1\n"
+        + "    }\n"
+        + "    return count\n"
+        + "}\n"
+        + "return primes(4000)\n";
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void report (String label, long setup, Supplier<Object> run)
+    {
+        double[] times = new double[RUNS];
+        double[] elapsed = new double[RUNS];
+        double total = setup / 1e6;
+        for (int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            Object result = run.get();
+            times[i] = (System.nanoTime() - start) / 1e6;
+            total += times[i];
+            elapsed[i] = total;
+            if (!Long.valueOf(550).equals(result))
+                throw new AssertionError(label + ": wrong result " + result);
+        }
+
+        double best = Double.MAX_VALUE;
+        for (double time: times)
+            best = Math.min(best, time);
+        int peak = 0;
+        while (times[peak] > best * PEAK)
+            ++peak;
+
+        System.out.println(label);
+        for (int i = 0; i < RUNS; ++i)
+            System.out.printf("  run %2d %10.3f ms (elapsed %10.3f ms)%n",
+                i + 1, times[i], elapsed[i]);
+        System.out.printf("  peak %.3f ms reached at run %d, after %.3f ms%n%n",
+            best, peak + 1, elapsed[peak]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        SighNode tree = Bench.parse(SCRIPT);
+        Reactor reactor = Bench.analyze(tree);
+        AttributeTables tables = AttributeTables.freeze(tree, reactor);
+
+        report("interpreter", 0,
+            () -> new Interpreter(tables).interpret(tree));
+
+        TieredCompiler tier = new TieredCompiler(tables);
+        report("tiered", 0, () -> {
+            Interpreter interpreter = new Interpreter(tables);
+            interpreter.setTier(tier);
+            return interpreter.interpret(tree);
+        });
+
+        long start = System.nanoTime();
+        Class<?> mainClass = new BytecodeCompiler(tables)
+            .compile("TieredBenchRun", tree)
+            .load(new ByteArrayClassLoader());
+        long compilation = System.nanoTime() - start;
+        report("bytecode", compilation,
+            () -> CompilationResult.callRun(mainClass, new String[0]));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,87 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.LaunchScheduler;
+import norswap.sigh.interpreter.ProtectMode;
+import norswap.uranium.Reactor;
+
+/**
+ * Measures the time needed by 1 to 32 tasks to perform 50k updates in total, each of which reads
+ * and writes two pseudo-random components of a shared array of 1024 components inside a {@code
+ * protect} block, when the blocks take their lock and when they run as transactions (cf. {@link
+ * ProtectMode}).
+ *
+ * <p>Each task runs in its own (virtual) thread.
+ */
+public final class TransactionBench
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int UPDATES = 50_000;
+
+    private static final int SLOTS = 1024;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a script that launches {@code tasks} tasks, which together move a unit between
+     * two random components of a shared array {@link #UPDATES} times, using a linear congruential
+     * generator seeded by the task number.
+     */
+    static String script (int tasks)
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("var slots: Int[] = [");
+        for (int i = 0; i < SLOTS; ++i)
+            b.append(i == 0 ? "" : ", ").append(100);
+        b.append("]\n");
+        b.append("fun work (seed: Int, n: Int): Int {\n");
+        b.append("    var x: Int = seed\n");
+        b.append("    var i: Int = 0\n");
+        b.append("    while i < n {\n");
+        b.append("        x = (x * 1103515245 + 12345) % 2147483648\n");
+        b.append("        var from: Int = x % ").append(SLOTS).append("\n");
+        b.append("        var to: Int = (x / ").append(SLOTS).append(") % ").append(SLOTS)
+            .append("\n");
+        b.append("        protect : {\n");
+        b.append("            slots[from] = slots[from] - 1\n");
+        b.append("            slots[to] = slots[to] + 1\n");
+        b.append("        }\n");
+        b.append("        i = i + 1\n");
+        b.append("    }\n");
+        b.append("    return 1\n");
+        b.append("}\n");
+        b.append("var t: Int = 0\n");
+        b.append("while t < ").append(tasks).append(" {\n");
+        b.append("    launch work(t, ").append(UPDATES / tasks).append(")\n");
+        b.append("    t = t + 1\n");
+        b.append("}\n");
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bench (int tasks)
+    {
+        SighNode tree = Bench.parse(script(tasks));
+        Reactor reactor = Bench.analyze(tree);
+        for (ProtectMode mode: ProtectMode.values())
+            Bench.measure(mode.name().toLowerCase() + " " + tasks, 3, 5, () -> {
+                Interpreter interpreter = new Interpreter(reactor);
+                interpreter.setScheduler(LaunchScheduler.VIRTUAL);
+                interpreter.setProtectMode(mode);
+                interpreter.interpret(tree);
+            });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        for (int tasks = 1; tasks <= 32; tasks *= 2)
+            bench(tasks);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
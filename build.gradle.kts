@@ -10,8 +10,9 @@ plugins {
 group = "com.norswap"
 version = "1.0.2-ALPHA"
 description = "Language implementation demo"
-java.sourceCompatibility = JavaVersion.VERSION_1_8
-java.targetCompatibility = JavaVersion.VERSION_1_8
+// Java 21 is required for virtual threads (cf. LaunchScheduler.VIRTUAL).
+java.sourceCompatibility = JavaVersion.VERSION_21
+java.targetCompatibility = JavaVersion.VERSION_21
 
 val website = "https://github.com/norswap/${project.name}"
 val vcs = "https://github.com/norswap/${project.name}.git"
@@ -19,6 +20,12 @@ val vcs = "https://github.com/norswap/${project.name}.git"
 sourceSets.main.get().java.srcDir("src")
 sourceSets.test.get().java.srcDir("test")
 
+val bench: SourceSet by sourceSets.creating {
+    java.srcDir("bench")
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().runtimeClasspath
+    runtimeClasspath += output + compileClasspath
+}
+
 java {
     withSourcesJar()
     withJavadocJar()
@@ -38,6 +45,13 @@ tasks.javadoc.get().options {
         addBooleanOption("html5", true) // nice future proofing
 }
 
+// Run a benchmark with: ./gradlew bench -PbenchMain=norswap.sigh.bench.FrameBench
+tasks.register<JavaExec>("bench") {
+    classpath = bench.runtimeClasspath
+    mainClass.set(project.findProperty("benchMain")?.toString() ?: "norswap.sigh.bench.FrameBench")
+    workingDir = projectDir
+}
+
 tasks.withType(JavaCompile::class) {
     // Give unsafe casts details instead of passive agressively hinting that they exist.
     options.compilerArgs.plusAssign("-Xlint:unchecked")
@@ -69,6 +83,8 @@ dependencies {
     implementation("org.ow2.asm:asm-all:5.2")
     testImplementation("org.testng:testng:7.5")
     testImplementation("org.slf4j:slf4j-simple:1.7.36")
+    "benchImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "benchAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
 }
 
 // =================================================================================================
\ No newline at end of file
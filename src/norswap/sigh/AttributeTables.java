@@ -0,0 +1,185 @@
+package norswap.sigh;
+
+import norswap.sigh.ast.DeclarationNode;
+import norswap.sigh.ast.LaunchStateNode;
+import norswap.sigh.ast.ParameterNode;
+import norswap.sigh.ast.ProtectBlockNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.VarDeclarationNode;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.scopes.Slot;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * A frozen copy of the attributes computed by {@link SemanticAnalysis} that are needed to
+ * execute or compile a program: {@code type}, {@code scope}, {@code decl} and {@code slot}.
+ *
+ * <p>The attributes are stored in dense arrays indexed by node ids ({@link SighNode#id()}), which
+ * are assigned when the tables are created by {@link #freeze}. This avoids looking up attributes
+ * in the reactor (which requires hashing the node) every time a node is executed.
+ *
+ * <p>Nodes that are not part of the frozen tree (such as the {@link
+ * norswap.sigh.scopes.SyntheticDeclarationNode} of the root scope) have no id: their attributes
+ * are retrieved from the reactor.
+ *
+ * <p>The {@link Slot.Kind kind} of slots is determined here from the type of the variables:
+ * {@code Int}, {@code Float} and {@code Bool} variables get primitive slots, except variables
+ * declared with {@code launch var}, whose value must be able to be unset (null) until the
+ * launched task assigns it.
+ *
+ * <p>The tables also record whether the program contains read-only {@code protect} blocks (cf.
+ * {@link #readProtects()}).
+ */
+public final class AttributeTables
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+    private final Type[] types;
+    private final Scope[] scopes;
+    private final DeclarationNode[] decls;
+    private final Slot[] slots;
+    private final boolean readProtects;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private AttributeTables (Reactor reactor, int size, boolean readProtects) {
+        this.reactor = reactor;
+        this.readProtects = readProtects;
+        this.types  = new Type[size];
+        this.scopes = new Scope[size];
+        this.decls  = new DeclarationNode[size];
+        this.slots  = new Slot[size];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Assigns an id to each node of the tree rooted at {@code root} and copies the attributes
+     * that {@code reactor} holds for these nodes into new tables.
+     *
+     * <p>This must be called after the reactor has run and has not reported any error. The
+     * attributes of the tree must not change afterwards.
+     */
+    public static AttributeTables freeze (SighNode root, Reactor reactor)
+    {
+        ArrayList<SighNode> nodes = new ArrayList<>();
+        HashSet<SighNode> launched = new HashSet<>();
+        boolean[] readProtects = { false };
+        ReflectiveFieldWalker<SighNode> walker
+            = new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, node -> {
+            node.setId(nodes.size());
+            nodes.add(node);
+            if (node instanceof LaunchStateNode)
+                launched.add(((LaunchStateNode) node).varDeclaration);
+            if (node instanceof ProtectBlockNode && ((ProtectBlockNode) node).readOnly)
+                readProtects[0] = true;
+        });
+        walker.walk(root);
+
+        AttributeTables tables = new AttributeTables(reactor, nodes.size(), readProtects[0]);
+        for (int i = 0; i < nodes.size(); ++i) {
+            SighNode node = nodes.get(i);
+            tables.types [i] = reactor.get(node, "type");
+            tables.scopes[i] = reactor.get(node, "scope");
+            tables.decls [i] = reactor.get(node, "decl");
+            Slot slot = reactor.get(node, "slot");
+            if (slot != null) {
+                DeclarationNode decl = node instanceof DeclarationNode
+                    ? (DeclarationNode) node
+                    : tables.decls[i];
+                slot = new Slot(slot.depth, slot.index, kind(decl, reactor, launched));
+            }
+            tables.slots[i] = slot;
+        }
+        return tables;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Slot.Kind kind
+            (DeclarationNode decl, Reactor reactor, HashSet<SighNode> launched)
+    {
+        if (!(decl instanceof VarDeclarationNode || decl instanceof ParameterNode)
+                || launched.contains(decl))
+            return Slot.Kind.OBJECT;
+
+        Type type = reactor.get(decl, "type");
+        return type instanceof IntType   ? Slot.Kind.LONG
+             : type instanceof FloatType ? Slot.Kind.DOUBLE
+             : type instanceof BoolType  ? Slot.Kind.BOOLEAN
+             : Slot.Kind.OBJECT;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the program contains read-only {@code protect} blocks, in which case all the protect
+     * blocks of the program share a read-write lock (cf. {@code ProtectLock}).
+     */
+    public boolean readProtects () {
+        return readProtects;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@code type} attribute of the node.
+     */
+    public Type type (SighNode node) {
+        int id = node.id();
+        return id >= 0 ? types[id] : reactor.get(node, "type");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@code scope} attribute of the node.
+     */
+    public Scope scope (SighNode node) {
+        int id = node.id();
+        return id >= 0 ? scopes[id] : reactor.get(node, "scope");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@code decl} attribute of the node.
+     */
+    public DeclarationNode decl (SighNode node) {
+        int id = node.id();
+        return id >= 0 ? decls[id] : reactor.get(node, "decl");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@code slot} attribute of the node, or null if the node is not a variable
+     * declaration or a reference to a variable.
+     */
+    public Slot slot (SighNode node) {
+        int id = node.id();
+        return id >= 0 ? slots[id] : reactor.get(node, "slot");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the reactor from which these tables were frozen.
+     */
+    public Reactor reactor () {
+        return reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -5,6 +5,7 @@ import norswap.sigh.scopes.DeclarationContext;
 import norswap.sigh.scopes.DeclarationKind;
 import norswap.sigh.scopes.RootScope;
 import norswap.sigh.scopes.Scope;
+import norswap.sigh.scopes.Slot;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
 import norswap.sigh.types.*;
 import norswap.uranium.Attribute;
@@ -54,6 +55,11 @@ import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
  *     their {@code scope} attribute set to the scope in which they appear (this also speeds up the
  *     interpreter).</li>
  *
+ *     <li>{@link VarDeclarationNode}, {@link ParameterNode}, and {@link ReferenceNode} instances
+ *     that refer to a variable must have their {@code slot} attribute set to a {@link Slot}
+ *     locating the variable in the runtime frames. This lets the interpreter access variables
+ *     without any name lookup.</li>
+ *
  *     <li>All statements introducing a new scope must have their {@code scope} attribute set to the
  *     corresponding {@link Scope} (only {@link RootNode}, {@link BlockNode} and {@link
  *     FunDeclarationNode} (for parameters)). These nodes must also update the {@code scope}
@@ -91,6 +97,12 @@ public final class SemanticAnalysis
     /** Index of the current function argument. */
     private int argumentIndex;
 
+    /** Number of protect blocks enclosing the current node. */
+    private int protectDepth;
+
+    /** The read-only protect block enclosing the current node, or null. */
+    private ProtectBlockNode readOnlyBlock;
+
     // ---------------------------------------------------------------------------------------------
 
     private SemanticAnalysis(Reactor reactor) {
@@ -116,13 +128,14 @@ public final class SemanticAnalysis
         walker.register(StringLiteralNode.class,        PRE_VISIT,  analysis::stringLiteral);
         walker.register(ReferenceNode.class,            PRE_VISIT,  analysis::reference);
         walker.register(ConstructorNode.class,          PRE_VISIT,  analysis::constructor);
+        walker.register(ChannelConstructorNode.class,   PRE_VISIT,  analysis::channelConstructor);
         walker.register(ArrayLiteralNode.class,         PRE_VISIT,  analysis::arrayLiteral);
         walker.register(ParenthesizedNode.class,        PRE_VISIT,  analysis::parenthesized);
         walker.register(FieldAccessNode.class,          PRE_VISIT,  analysis::fieldAccess);
         walker.register(ArrayAccessNode.class,          PRE_VISIT,  analysis::arrayAccess);
         walker.register(FunCallNode.class,              PRE_VISIT,  analysis::funCall);
         walker.register(LaunchNode.class,               PRE_VISIT,  analysis::launchCall);
-        walker.register(ProtectBlockNode.class,         PRE_VISIT,  node -> {});
+        walker.register(ProtectBlockNode.class,         PRE_VISIT,  analysis::protectBlock);
         walker.register(LaunchStateNode.class,          PRE_VISIT, analysis::launchStateCall);
         walker.register(UnaryExpressionNode.class,      PRE_VISIT,  analysis::unaryExpression);
         walker.register(BinaryExpressionNode.class,     PRE_VISIT,  analysis::binaryExpression);
@@ -131,6 +144,7 @@ public final class SemanticAnalysis
         // types
         walker.register(SimpleTypeNode.class,           PRE_VISIT,  analysis::simpleType);
         walker.register(ArrayTypeNode.class,            PRE_VISIT,  analysis::arrayType);
+        walker.register(ChannelTypeNode.class,          PRE_VISIT,  analysis::channelType);
 
         // declarations & scopes
         walker.register(RootNode.class,                 PRE_VISIT,  analysis::root);
@@ -144,6 +158,7 @@ public final class SemanticAnalysis
         walker.register(RootNode.class,                 POST_VISIT, analysis::popScope);
         walker.register(BlockNode.class,                POST_VISIT, analysis::popScope);
         walker.register(FunDeclarationNode.class,       POST_VISIT, analysis::popScope);
+        walker.register(ProtectBlockNode.class,         POST_VISIT, analysis::exitProtectBlock);
 
         // statements
         walker.register(ExpressionStatementNode.class,  PRE_VISIT,  node -> {});
@@ -192,6 +207,9 @@ public final class SemanticAnalysis
             R.set(node, "decl",  maybeCtx.declaration);
             R.set(node, "scope", maybeCtx.scope);
 
+            if (maybeCtx.slot >= 0)
+                R.set(node, "slot", new Slot(depth(scope, maybeCtx.scope), maybeCtx.slot));
+
             R.rule(node, "type")
             .using(maybeCtx.declaration, "type")
             .by(Rule::copyFirst);
@@ -260,6 +278,15 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    private void channelConstructor (ChannelConstructorNode node)
+    {
+        R.rule(node, "type")
+        .using(node.type, "value")
+        .by(r -> r.set(0, new FunType(r.get(0), IntType.INSTANCE)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void arrayLiteral (ArrayLiteralNode node)
     {
         if (node.components.size() == 0) { // []
@@ -421,6 +448,21 @@ public final class SemanticAnalysis
 
     private void funCall (FunCallNode node)
     {
+        if (node.function instanceof ReferenceNode) {
+            DeclarationContext ctx = scope.lookup(((ReferenceNode) node.function).name);
+            if (ctx != null && ctx.scope instanceof RootScope
+                    && ctx.declaration instanceof SyntheticDeclarationNode
+                    && PARALLEL_BUILTINS.contains(ctx.declaration.name())) {
+                parallelCall(node, ctx.declaration.name());
+                return;
+            }
+            if (ctx != null && ctx.scope instanceof RootScope
+                    && ctx.declaration instanceof SyntheticDeclarationNode
+                    && CHANNEL_BUILTINS.contains(ctx.declaration.name())) {
+                channelCall(node, ctx.declaration.name());
+                return;
+            }
+        }
 
         this.inferenceContext = node;
 
@@ -469,9 +511,169 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    private static final List<String> PARALLEL_BUILTINS = list("pmap", "preduce", "pfor");
+
+    /**
+     * Types a call to one of the data-parallel builtins, whose types can't be expressed as a
+     * {@link FunType}:
+     * <ul>
+     *     <li>{@code pmap(f: (T) -> U, array: T[]): U[]}</li>
+     *     <li>{@code preduce(f: (T, T) -> T, array: T[], init: T): T}, where {@code f} must be
+     *     associative</li>
+     *     <li>{@code pfor(lo: Int, hi: Int, f: (Int) -> R): Void}</li>
+     * </ul>
+     */
+    private void parallelCall (FunCallNode node, String name)
+    {
+        // empty array arguments can't be typed from the context
+        this.inferenceContext = null;
+
+        Attribute[] dependencies =
+            node.arguments.stream().map(it -> it.attr("type")).toArray(Attribute[]::new);
+
+        R.rule(node, "type")
+        .using(dependencies)
+        .by(r -> {
+            int expected = name.equals("pmap") ? 2 : 3;
+            if (dependencies.length != expected) {
+                r.errorFor(format("wrong number of arguments, expected %d but got %d",
+                        expected, dependencies.length),
+                    node, node.attr("type"));
+                return;
+            }
+
+            int funIndex = name.equals("pfor") ? 2 : 0;
+            Type maybeFunType = r.get(funIndex);
+            int arity = name.equals("preduce") ? 2 : 1;
+            if (!(maybeFunType instanceof FunType)
+                    || ((FunType) maybeFunType).paramTypes.length != arity) {
+                r.errorFor(format("%s expects a function of %d parameter(s) but got %s",
+                        name, arity, maybeFunType),
+                    node.arguments.get(funIndex), node.attr("type"));
+                return;
+            }
+            FunType funType = cast(maybeFunType);
+
+            if (name.equals("pfor")) {
+                r.set(0, VoidType.INSTANCE);
+                Type lo = r.get(0);
+                Type hi = r.get(1);
+                if (!(lo instanceof IntType) || !(hi instanceof IntType))
+                    r.errorFor(format("pfor expects Int bounds but got %s and %s", lo, hi), node);
+                if (!isAssignableTo(IntType.INSTANCE, funType.paramTypes[0]))
+                    r.errorFor("pfor expects a function taking an Int but got " + funType,
+                        node.arguments.get(2));
+                return;
+            }
+
+            Type maybeArrayType = r.get(1);
+            if (!(maybeArrayType instanceof ArrayType)) {
+                r.errorFor(name + " expects an array but got " + maybeArrayType,
+                    node.arguments.get(1), node.attr("type"));
+                return;
+            }
+            Type componentType = ((ArrayType) maybeArrayType).componentType;
+            Type returnType = funType.returnType;
+            r.set(0, name.equals("pmap") ? new ArrayType(returnType) : returnType);
+
+            if (returnType instanceof VoidType)
+                r.errorFor(name + " expects a function that returns a value",
+                    node.arguments.get(0));
+
+            for (Type paramType: funType.paramTypes)
+                if (!isAssignableTo(componentType, paramType))
+                    r.errorFor(format("%s expects a function taking %s but got %s",
+                            name, componentType, funType),
+                        node.arguments.get(0));
+
+            if (name.equals("pmap"))
+                return;
+
+            Type initType = r.get(2);
+            if (!isAssignableTo(returnType, funType.paramTypes[0])
+                    || !isAssignableTo(returnType, funType.paramTypes[1]))
+                r.errorFor("preduce expects a function whose result can be passed back to it "
+                    + "but got " + funType, node.arguments.get(0));
+            if (!isAssignableTo(initType, funType.paramTypes[0])
+                    || !isAssignableTo(initType, returnType))
+                r.errorFor(format("preduce expects an initial value of type %s but got %s",
+                        returnType, initType),
+                    node.arguments.get(2));
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final List<String> CHANNEL_BUILTINS = list("send", "receive", "close", "more");
+
+    /**
+     * Types a call to one of the channel builtins, whose types can't be expressed as a {@link
+     * FunType}:
+     * <ul>
+     *     <li>{@code send(channel: Channel<T>, value: T): Void}</li>
+     *     <li>{@code receive(channel: Channel<T>): T}</li>
+     *     <li>{@code close(channel: Channel<T>): Void}</li>
+     *     <li>{@code more(channel: Channel<T>): Bool}</li>
+     * </ul>
+     */
+    private void channelCall (FunCallNode node, String name)
+    {
+        // empty array arguments can't be typed from the context
+        this.inferenceContext = null;
+
+        Attribute[] dependencies =
+            node.arguments.stream().map(it -> it.attr("type")).toArray(Attribute[]::new);
+
+        R.rule(node, "type")
+        .using(dependencies)
+        .by(r -> {
+            int expected = name.equals("send") ? 2 : 1;
+            if (dependencies.length != expected) {
+                r.errorFor(format("wrong number of arguments, expected %d but got %d",
+                        expected, dependencies.length),
+                    node, node.attr("type"));
+                return;
+            }
+
+            Type maybeChannelType = r.get(0);
+            if (!(maybeChannelType instanceof ChannelType)) {
+                r.errorFor(name + " expects a channel but got " + maybeChannelType,
+                    node.arguments.get(0), node.attr("type"));
+                return;
+            }
+            Type componentType = ((ChannelType) maybeChannelType).componentType;
+
+            switch (name) {
+                case "send":
+                    r.set(0, VoidType.INSTANCE);
+                    Type valueType = r.get(1);
+                    if (!isAssignableTo(valueType, componentType))
+                        r.errorFor(format("cannot send a value of type %s on a %s",
+                                valueType, maybeChannelType),
+                            node.arguments.get(1));
+                    break;
+                case "receive":
+                    r.set(0, componentType);
+                    break;
+                case "close":
+                    r.set(0, VoidType.INSTANCE);
+                    break;
+                case "more":
+                    r.set(0, BoolType.INSTANCE);
+                    break;
+            }
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     // case single non-returning function
     private void launchCall(LaunchNode node)
     {
+        // other function values are checked when typing the call
+        if (!(node.funCall.function instanceof ReferenceNode))
+            return;
+
         // simply checking if the function is already defined
         String functionName = ((ReferenceNode) node.funCall.function).name; // str add
         DeclarationContext returnType = scope.lookup(functionName);
@@ -490,6 +692,10 @@ public final class SemanticAnalysis
                 .by(r -> r.error("The thread must launch a function", node));
             return;
         }
+        // other function values are checked when typing the call
+        if (!(((FunCallNode) funcall).function instanceof ReferenceNode))
+            return;
+
         //checking if the function is already defined
         String functionName = ((ReferenceNode) ((FunCallNode) funcall).function).name;
         DeclarationContext returnType = scope.lookup(functionName);
@@ -657,10 +863,29 @@ public final class SemanticAnalysis
     }
 
 
+    /**
+     * Returns the type of an arithmetic operation between two arrays that {@link #checkArrays}
+     * accepts. As with numbers, element-wise operations yield {@code Float} components if either
+     * operand has {@code Float} components. The matrix product always yields a {@code Float[][]}.
+     */
+    private static Type arrayArithmeticType (BinaryOperator operator, Type left, Type right)
+    {
+        if (operator == MAT_PRODUCT)
+            return new ArrayType(new ArrayType(FloatType.INSTANCE));
+        if (left instanceof ArrayType)
+            return new ArrayType(arrayArithmeticType(operator,
+                ((ArrayType) left).componentType, ((ArrayType) right).componentType));
+        return left instanceof FloatType || right instanceof FloatType
+            ? FloatType.INSTANCE
+            : IntType.INSTANCE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private static void checkArrays(ArrayType left, ArrayType right, Rule r, BinaryExpressionNode node) {
         if (right.componentType == IntType.INSTANCE) {
             if (left.componentType == IntType.INSTANCE || left.componentType == FloatType.INSTANCE) {
-                r.set(0, r.get(0));
+                r.set(0, arrayArithmeticType(node.operator, r.get(0), r.get(1)));
                 return;
             } else {
                 r.error(arithmeticError(node, left, right), node);
@@ -670,7 +895,7 @@ public final class SemanticAnalysis
 
         if (left.componentType == IntType.INSTANCE) {
             if (right.componentType == FloatType.INSTANCE) {
-                r.set(0, r.get(0));
+                r.set(0, arrayArithmeticType(node.operator, r.get(0), r.get(1)));
                 return;
             } else {
                 r.error(arithmeticError(node, left, right), node);
@@ -680,7 +905,7 @@ public final class SemanticAnalysis
 
         if (right.componentType == FloatType.INSTANCE) {
             if (left.componentType == FloatType.INSTANCE) {
-                r.set(0, r.get(0));
+                r.set(0, arrayArithmeticType(node.operator, r.get(0), r.get(1)));
                 return;
             } else {
                 r.error(arithmeticError(node, left, right), node);
@@ -792,6 +1017,24 @@ public final class SemanticAnalysis
             else
                 r.errorFor("Trying to assign to an non-lvalue expression.", node.left);
         });
+
+        if (readOnlyBlock == null)
+            return;
+
+        // read-only protect blocks may only assign the variables that are not shared
+        if (node.left instanceof ReferenceNode)
+            R.rule()
+            .using(node.left, "scope")
+            .by(r -> {
+                Scope scope = r.get(0);
+                if (scope instanceof RootScope)
+                    r.error("Trying to assign a global variable in a read-only protect block.",
+                        node);
+            });
+        else if (node.left instanceof FieldAccessNode || node.left instanceof ArrayAccessNode)
+            R.rule()
+            .by(r -> r.error("Trying to assign a struct field or an array component in a "
+                + "read-only protect block.", node));
     }
 
     // endregion
@@ -839,6 +1082,21 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    private void channelType (ChannelTypeNode node)
+    {
+        R.rule(node, "value")
+        .using(node.componentType, "value")
+        .by(r -> {
+            Type componentType = r.get(0);
+            if (componentType instanceof VoidType)
+                r.errorFor("a channel cannot carry Void values", node, node.attr("value"));
+            else
+                r.set(0, new ChannelType(componentType));
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private static boolean isTypeDecl (DeclarationNode decl)
     {
         if (decl instanceof StructDeclarationNode) return true;
@@ -914,6 +1172,19 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the number of scopes to walk up from {@code from} in order to reach {@code to},
+     * which must be {@code from} itself or one of its ancestors.
+     */
+    private static int depth (Scope from, Scope to) {
+        int depth = 0;
+        for (Scope s = from; s != to; s = s.parent)
+            ++depth;
+        return depth;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void root (RootNode node) {
         assert scope == null;
         scope = new RootScope(node, R);
@@ -945,7 +1216,7 @@ public final class SemanticAnalysis
 
         this.inferenceContext = node;
 
-        scope.declare(node.name, node);
+        R.set(node, "slot", new Slot(0, scope.declareVariable(node.name, node)));
         R.set(node, "scope", scope);
 
         R.rule(node, "type")
@@ -981,7 +1252,8 @@ public final class SemanticAnalysis
     private void parameter (ParameterNode node)
     {
         R.set(node, "scope", scope);
-        scope.declare(node.name, node); // scope pushed by FunDeclarationNode
+        // scope pushed by FunDeclarationNode
+        R.set(node, "slot", new Slot(0, scope.declareVariable(node.name, node)));
 
         R.rule(node, "type")
         .using(node.type, "value")
@@ -1054,6 +1326,29 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    private void protectBlock (ProtectBlockNode node)
+    {
+        if (readOnlyBlock != null || node.readOnly && protectDepth > 0)
+            R.rule()
+            .by(r -> r.error("A read-only protect block cannot be nested in a protect block, "
+                + "nor contain a protect block.", node));
+
+        ++protectDepth;
+        if (node.readOnly && readOnlyBlock == null)
+            readOnlyBlock = node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void exitProtectBlock (ProtectBlockNode node)
+    {
+        --protectDepth;
+        if (readOnlyBlock == node)
+            readOnlyBlock = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void whileStmt (WhileNode node) {
         R.rule()
         .using(node.condition, "type")
@@ -63,6 +63,7 @@ public class SighGrammar extends Grammar
     public rule _return         = reserved("return");
     public rule _launch         = reserved("launch");
     public rule _protect        = reserved("protect");
+    public rule _read           = reserved("read");
 
     public rule number =
         seq(opt('-'), choice('0', digit.at_least(1)));
@@ -108,6 +109,14 @@ public class SighGrammar extends Grammar
         identifier
         .push($ -> new SimpleTypeNode($.span(), $.$[0]));
 
+    public rule channel_type = lazy(() ->
+        seq(word("Channel"), LANGLE, this.type, RANGLE)
+        .push($ -> new ChannelTypeNode($.span(), $.$[0])));
+
+    public rule channel_constructor =
+        seq(DOLLAR, channel_type)
+        .push($ -> new ChannelConstructorNode($.span(), $.$[0]));
+
     public rule paren_expression = lazy(() ->
         seq(LPAREN, this.expression, RPAREN)
         .push($ -> new ParenthesizedNode($.span(), $.$[0])));
@@ -122,6 +131,7 @@ public class SighGrammar extends Grammar
 
 
     public rule basic_expression = choice(
+        channel_constructor,
         constructor,
         reference,
         floating,
@@ -216,7 +226,7 @@ public class SighGrammar extends Grammar
         });
 
     public rule array_type = left_expression()
-        .left(simple_type)
+        .left(choice(channel_type, simple_type))
         .suffix(seq(LSQUARE, RSQUARE),
             $ -> new ArrayTypeNode($.span(), $.$[0]));
 
@@ -267,9 +277,11 @@ public class SighGrammar extends Grammar
         seq(_fun, identifier, LPAREN, parameters, RPAREN, maybe_return_type, block)
         .push($ -> new FunDeclarationNode($.span(), $.$[0], $.$[1], $.$[2], $.$[3]));
 
-    public rule protect_block =
+    public rule protect_block = choice(
+        seq(_protect, _read, COLON, block)
+            .push($ -> new ProtectBlockNode($.span(), true, $.$[0])),
         seq(_protect, COLON, block)
-            .push($ -> new ProtectBlockNode($.span(), $.$[0])); // , new ReentrantLock()
+            .push($ -> new ProtectBlockNode($.span(), false, $.$[0])));
 
     public rule field_decl =
         seq(_var, identifier, COLON, type)
@@ -5,7 +5,10 @@ import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.ast.RootNode;
+import norswap.sigh.bytecode.TieredCompiler;
+import norswap.sigh.interpreter.ClosureInterpreter;
 import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.LaunchScheduler;
 import norswap.uranium.AttributeTreeFormatter;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
@@ -29,10 +32,58 @@ public final class SighRunner
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * The ways a program can be executed after semantic analysis.
+     */
+    public enum Engine
+    {
+        /** {@link Interpreter}: walks the AST directly. */
+        INTERPRETER,
+        /** {@link ClosureInterpreter}: translates the AST to a tree of closures, then runs it. */
+        CLOSURES,
+        /**
+         * {@link Interpreter} with a {@link TieredCompiler}: the functions that have been called
+         * or have iterated a loop {@link TieredCompiler#DEFAULT_THRESHOLD} times are compiled to
+         * bytecode on a background thread, while the interpreter goes on interpreting them. The
+         * calls made once the compilation completes run the compiled code. Functions that can't
+         * be compiled (cf. {@link TieredCompiler}) remain interpreted.
+         */
+        TIERED
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Engine engine;
+    private final LaunchScheduler scheduler;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public SighRunner() {
+        this(Engine.INTERPRETER);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public SighRunner (Engine engine) {
+        this(engine, LaunchScheduler.FIXED);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a runner that executes programs with the given engine, running the tasks they
+     * launch with the given scheduler.
+     */
+    public SighRunner (Engine engine, LaunchScheduler scheduler) {
+        this.engine = engine;
+        this.scheduler = scheduler;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     public Object run(String input) {
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
 
         ParseResult result = Autumn.parse(grammar.root, input, parseOptions);
         if (!result.fullMatch) {
@@ -61,7 +112,22 @@ public final class SighRunner
             throw new AssertionError("semantic errors");
         }
 
-        return interpreter.interpret(root);
+        AttributeTables tables = AttributeTables.freeze(root, reactor);
+        switch (engine) {
+            case INTERPRETER:
+            case TIERED:
+                Interpreter interpreter = new Interpreter(tables);
+                interpreter.setScheduler(scheduler);
+                if (engine == Engine.TIERED)
+                    interpreter.setTier(new TieredCompiler(tables));
+                return interpreter.interpret(root);
+            case CLOSURES:
+                ClosureInterpreter closures = new ClosureInterpreter(tables);
+                closures.setScheduler(scheduler);
+                return closures.interpret(root);
+            default:
+                throw new Error("should not reach here");
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
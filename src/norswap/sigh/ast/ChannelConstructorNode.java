@@ -0,0 +1,18 @@
+package norswap.sigh.ast;
+
+import norswap.autumn.positions.Span;
+import norswap.utils.Util;
+
+public final class ChannelConstructorNode extends ExpressionNode
+{
+    public final ChannelTypeNode type;
+
+    public ChannelConstructorNode (Span span, Object type) {
+        super(span);
+        this.type = Util.cast(type, ChannelTypeNode.class);
+    }
+
+    @Override public String contents () {
+        return "$" + type.contents();
+    }
+}
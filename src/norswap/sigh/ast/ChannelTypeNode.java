@@ -0,0 +1,18 @@
+package norswap.sigh.ast;
+
+import norswap.autumn.positions.Span;
+import norswap.utils.Util;
+
+public final class ChannelTypeNode extends TypeNode
+{
+    public final TypeNode componentType;
+
+    public ChannelTypeNode (Span span, Object componentType) {
+        super(span);
+        this.componentType = Util.cast(componentType, TypeNode.class);
+    }
+
+    @Override public String contents () {
+        return "Channel<" + componentType.contents() + ">";
+    }
+}
@@ -8,17 +8,37 @@ import java.util.concurrent.locks.ReentrantLock;
 public final class ProtectBlockNode extends StatementNode
 {
     public final BlockNode protectedBlock;
-    public ReentrantLock lock = null;
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Whether the block is a {@code protect read} block, which doesn't write shared state and can
+     * run at the same time as other such blocks.
+     */
+    public final boolean readOnly;
+
+    // Not public, so that it is not part of the structural equality of the node.
+    private final ReentrantLock lock = new ReentrantLock();
+
     public ProtectBlockNode (Span span, Object protectedBlock) {
+        this(span, false, protectedBlock);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ProtectBlockNode (Span span, boolean readOnly, Object protectedBlock) {
         super(span);
+        this.readOnly = readOnly;
         this.protectedBlock = Util.cast(protectedBlock, BlockNode.class);
-        //this.lock = new ReentrantLock();
+    }
+
+    /**
+     * The lock that must be held while executing {@link #protectedBlock}.
+     */
+    public ReentrantLock lock () {
+        return lock;
     }
 
     @Override public String contents ()
     {
-        return "Protect block : "+ protectedBlock.contents();
+        return (readOnly ? "Protect read block : " : "Protect block : ")
+            + protectedBlock.contents();
     }
 }
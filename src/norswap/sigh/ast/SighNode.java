@@ -5,6 +5,7 @@ import norswap.uranium.Attribute;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 
 public abstract class SighNode
@@ -19,6 +20,35 @@ public abstract class SighNode
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Index of this node in the {@link norswap.sigh.AttributeTables} of its tree, or -1 if the
+     * tree hasn't been frozen. This is not a public field, so that it doesn't take part in
+     * equality.
+     */
+    private int id = -1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of this node in the {@link norswap.sigh.AttributeTables} of its tree, or
+     * -1 if the tree hasn't been frozen.
+     */
+    public final int id () {
+        return id;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the index of this node, see {@link #id()}. Only meant to be called by {@link
+     * norswap.sigh.AttributeTables#freeze}.
+     */
+    public final void setId (int id) {
+        this.id = id;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns an attribute with the given name on this node.
      */
@@ -73,49 +103,44 @@ public abstract class SighNode
 
     // ---------------------------------------------------------------------------------------------
 
-    // NOTE: hashCode and equals are implemented reflectively
-    //    This is not ideal for performance, but these methods are currently only used in tests.
-    //    Ideally we would replace all the AST classes by a small framework that generates code
-    //    for them.
+    // NOTE: hashCode and equals use identity. Nodes are used as keys for attributes in the
+    //    reactor (and in other maps), and a structural hash code is computed over the whole
+    //    subtree of the node. Structural equality, which is mostly useful in tests, is available
+    //    via structurallyEquals.
 
-    @Override public int hashCode() {
-        try {
-            Field[] fields = getFields();
-            int hash = 7;
-            for (Field field: fields) {
-                hash *= 31;
-                Object value = field.get(this);
-                if (value != null)
-                    hash += value.hashCode();
-            }
-            return hash;
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+    @Override public final int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public final boolean equals (Object obj) {
+        return this == obj;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Two node are equals if they are of the same class and all of their public fields are equal,
-     * excepted {@link #span} which is allowed to be different. If you require {@link #span} to be
-     * identical, use {@link #equals(Object, boolean)}.
+     * Two node are structurally equal if they are of the same class and all of their public fields
+     * are structurally equal, excepted {@link #span} which is allowed to be different. If you
+     * require {@link #span} to be identical, use {@link #structurallyEquals(Object, boolean)}.
      *
      * <p>This method uses reflection to implement the comparison.
      */
-    @Override public boolean equals (Object obj) {
-        return equals(obj, true);
+    public boolean structurallyEquals (Object obj) {
+        return structurallyEquals(obj, true);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Two node are equals if they are of the same class and all of their public fields are equal,
-     * excepted {@link #span} which is only checked if {@code ignoreSpan} is {@code false}.
+     * Two node are structurally equal if they are of the same class and all of their public fields
+     * are structurally equal, excepted {@link #span} which is only checked if {@code ignoreSpan} is
+     * {@code false}.
      *
      * <p>This method uses reflection to implement the comparison.
      */
-    public boolean equals (Object obj, boolean ignoreSpan) {
+    public boolean structurallyEquals (Object obj, boolean ignoreSpan) {
         if (obj == null) return false;
         if (obj.getClass() != this.getClass()) return false;
         try {
@@ -123,7 +148,7 @@ public abstract class SighNode
             for (Field field: fields) {
                 if (ignoreSpan && field.getName().equals("span"))
                     continue;
-                if (!Objects.equals(field.get(this), field.get(obj)))
+                if (!structurallyEquals(field.get(this), field.get(obj), ignoreSpan))
                     return false;
             }
             return true;
@@ -133,4 +158,28 @@ public abstract class SighNode
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compares field values, using structural equality for nodes and lists of nodes.
+     */
+    private static boolean structurallyEquals (Object a, Object b, boolean ignoreSpan)
+    {
+        if (a instanceof SighNode)
+            return ((SighNode) a).structurallyEquals(b, ignoreSpan);
+
+        if (a instanceof List && b instanceof List) {
+            List<?> la = (List<?>) a;
+            List<?> lb = (List<?>) b;
+            if (la.size() != lb.size())
+                return false;
+            for (int i = 0; i < la.size(); ++i)
+                if (!structurallyEquals(la.get(i), lb.get(i), ignoreSpan))
+                    return false;
+            return true;
+        }
+
+        return Objects.equals(a, b);
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
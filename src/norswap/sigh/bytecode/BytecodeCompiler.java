@@ -1,23 +1,36 @@
 package norswap.sigh.bytecode;
 
+import norswap.sigh.AttributeTables;
 import norswap.sigh.ast.*;
 import norswap.sigh.interpreter.Constructor;
+import norswap.sigh.interpreter.ParallelBuiltins;
+import norswap.sigh.interpreter.TaskScope;
+import norswap.sigh.scopes.RootScope;
 import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
 import norswap.sigh.types.*;
 import norswap.uranium.Reactor;
 import norswap.utils.Vanilla;
 import norswap.utils.data.wrappers.Pair;
+import norswap.utils.visitors.ReflectiveFieldWalker;
 import norswap.utils.visitors.ValuedVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+import java.lang.invoke.LambdaMetafactory;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static norswap.sigh.ast.BinaryOperator.*;
@@ -25,13 +38,18 @@ import static norswap.sigh.bytecode.AsmUtils.*;
 import static norswap.sigh.bytecode.TypeUtils.fieldDescriptor;
 import static norswap.sigh.bytecode.TypeUtils.methodDescriptor;
 import static norswap.sigh.bytecode.TypeUtils.*;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
 import static org.objectweb.asm.Opcodes.*;
 
 /**
  * <h2>Limitations</h2>
  * <ul>
  *     <li>The compiled code currently doesn't support closures (using variables in functions that
- *     are declared in some surroudning scopes outside the function).</li>
+ *     are declared in some surroudning scopes outside the function), except for the top-level
+ *     variables, which are global.</li>
+ *     <li>The tasks started by {@code launch} are joined when the function (or the top-level code)
+ *     that launched them returns, not when the block that launched them exits. The arguments of a
+ *     launched call are evaluated when the task is launched.</li>
  * </ul>
  *
  * <h2>Data Representation</h2>
@@ -45,10 +63,40 @@ import static org.objectweb.asm.Opcodes.*;
  *     arrays, object arrays (e.g. {@code Object[][]}).</li>
  *     <li>Structs: A Java class encoding the structure, in the default package and using the
  *     structure's name.</li>
- *     <li>TODO: Functions: a {@link MethodHandle} to the method that implements the function in
- *     bytecode.</li>
+ *     <li>Functions: a {@link MethodHandle} to the method that implements the function in
+ *     bytecode. Calls to function values that aren't references to a function go through an
+ *     {@code invokedynamic} call site with an inline cache (cf. {@link SighRuntime#callSite}).</li>
  *     <li>Types: the {@link Class} object for the type representation. {@code Type} itself (the
  *     type of types) is represented by {@code Class.class}.</li>
+ *     <li>Variables: local variables of the method, except for the variables declared in the root
+ *     scope, which are static fields of the container class (named after the variable), so that
+ *     functions can use them. In programs that launch tasks, the fields of the variables used in
+ *     functions are volatile, as the root storage of the interpreters.</li>
+ * </ul>
+ *
+ * <h2>Concurrency</h2>
+ * <ul>
+ *     <li>{@code launch f(...)}: a {@link Runnable} (created with {@code invokedynamic} and {@link
+ *     LambdaMetafactory}, as for Java lambdas) that calls {@code f} with the already evaluated
+ *     arguments, launched in a {@link TaskScope} held in a local variable of the function (cf.
+ *     {@link SighRuntime#launch}). The scope is joined before each return, and when the function
+ *     throws. Calls to builtins and to function values are made by a private static method of
+ *     the class (a stub, one per launch), which takes the evaluated function value and
+ *     arguments.</li>
+ *     <li>{@code launch var x: T = f(...)}: the variable is initialized to the default value of
+ *     {@code T}, and another variable holds the task (a {@link SighRuntime.Launched}): a local
+ *     variable, or the volatile static field {@code x$task} for a top-level variable. {@code
+ *     wait(x)} waits for the task and stores its result in the variable.</li>
+ *     <li>{@code pmap}, {@code preduce}, {@code pfor}: the loop over a chunk of the elements (or
+ *     indices) is a private static method of the class (a kernel, one per call), which calls the
+ *     function value through an inline cache. {@link SighRuntime#parallel} runs the chunks in
+ *     parallel, as the interpreters (cf. {@link ParallelBuiltins}).</li>
+ *     <li>{@code protect}: a {@code monitorenter}/{@code monitorexit} pair on an object held in a
+ *     static final field of the class, one per block. An exception handler releases the monitor
+ *     when the block throws. As in the interpreters, a return in the block only exits the block:
+ *     its value is evaluated and discarded, and execution resumes after the block. In programs
+ *     that contain {@code protect read} blocks, all the protect blocks use a shared {@link
+ *     ReentrantReadWriteLock} instead.</li>
  * </ul>
  *
  * <h2>Useful Links</h2>
@@ -72,13 +120,24 @@ public class BytecodeCompiler
     // TODO: prune util classes?
     // TODO: add a top type, and make print take it and convert
     //       (further: is operator, casts, flow casts)
-    // TODO: function objects
     // TODO: simplify with https://asm.ow2.io/javadoc/org/objectweb/asm/commons/GeneratorAdapter.html ?
 
     // ---------------------------------------------------------------------------------------------
 
     private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
     private final Reactor reactor;
+    private AttributeTables tables;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a compiler that reads attributes from the given tables, instead of freezing its own
+     * tables when {@link #compile} is called.
+     */
+    public BytecodeCompiler (AttributeTables tables) {
+        this(tables.reactor());
+        this.tables = tables;
+    }
 
     // ---------------------------------------------------------------------------------------------
 
@@ -114,6 +173,9 @@ public class BytecodeCompiler
         visitor.register(IfNode.class,                   this::ifStmt);
         visitor.register(WhileNode.class,                this::whileStmt);
         visitor.register(ReturnNode.class,               this::returnStmt);
+        visitor.register(LaunchNode.class,               this::launch);
+        visitor.register(LaunchStateNode.class,          this::launchVar);
+        visitor.register(ProtectBlockNode.class,         this::protectBlock);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -144,6 +206,61 @@ public class BytecodeCompiler
     /** Whether we are in top-level code. */
     private boolean topLevel;
 
+    /** Return type of the function being compiled, null in top-level code. */
+    private Type returnType;
+
+    /** Index of the variable holding the task scope of the current method, or -1 if the method
+     * doesn't launch tasks. */
+    private int tasksVariable = -1;
+
+    /** Start of the code of the current method that joins its tasks if it throws. */
+    private Label tasksStart;
+
+    /** Maps the variables declared by {@code launch var} to the index of the variable holding
+     * their task. */
+    private HashMap<VarDeclarationNode, Integer> launchedVariables = new HashMap<>();
+
+    /** Maps the function value and the arguments of the call made by the launch stub being
+     * emitted to the index of the parameter that holds their value (cf. {@link #launchStub}). */
+    private final HashMap<SighNode, Integer> stubParameters = new HashMap<>();
+
+    /** Number of launch stubs emitted so far, used to name their methods. */
+    private int stubCounter = 0;
+
+    /** The protect blocks enclosing the code being emitted in the current method, innermost
+     * first. */
+    private ArrayDeque<Protect> protects = new ArrayDeque<>();
+
+    /** Number of protect blocks emitted so far, used to name their lock fields. */
+    private int protectCounter = 0;
+
+    /** The variables declared by {@code launch var} in the root scope, whose task is held in a
+     * static field. */
+    private final HashSet<DeclarationNode> launchedGlobals = new HashSet<>();
+
+    /** The variables declared in the root scope whose static field is volatile. */
+    private final HashSet<DeclarationNode> volatileGlobals = new HashSet<>();
+
+    /** Name of the static field holding the lock shared by the protect blocks, in programs that
+     * contain {@code protect read} blocks. */
+    private static final String SHARED_LOCK = "protect$shared";
+
+    private static final String LAUNCHED_DESCRIPTOR =
+        org.objectweb.asm.Type.getDescriptor(SighRuntime.Launched.class);
+
+    private static final String HANDLE_DESCRIPTOR =
+        org.objectweb.asm.Type.getDescriptor(MethodHandle.class);
+
+    private static final Handle METAFACTORY = staticHandle(LambdaMetafactory.class, "metafactory",
+        MethodHandles.Lookup.class, String.class, MethodType.class,
+        MethodType.class, MethodHandle.class, MethodType.class);
+
+    private static final Handle CALL_SITE = staticHandle(SighRuntime.class, "callSite",
+        MethodHandles.Lookup.class, String.class, MethodType.class);
+
+    /** Number of kernels of parallel builtins emitted so far, used to name their methods. */
+    private int kernelCounter = 0;
+
     // ---------------------------------------------------------------------------------------------
 
     /**
@@ -153,6 +270,8 @@ public class BytecodeCompiler
     public CompilationResult compile (String binaryName, SighNode root)
     {
         this.containerName = binaryName.replace('.', '/');
+        if (tables == null)
+            tables = AttributeTables.freeze(root, reactor);
         run(root);
         GeneratedClass mainClass = new GeneratedClass(containerName, container.toByteArray());
         List<GeneratedClass> structClasses = structs.stream()
@@ -164,7 +283,13 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object run (SighNode node) {
+    private Object run (SighNode node)
+    {
+        Integer parameter = stubParameters.get(node);
+        if (parameter != null) {
+            method.visitVarInsn(asmType(tables.type(node)).getOpcode(ILOAD), parameter);
+            return null;
+        }
         return visitor.apply(node);
     }
 
@@ -180,10 +305,14 @@ public class BytecodeCompiler
             "([Ljava/lang/String;)Ljava/lang/Object;", null, null);
         method.visitCode();
         topLevel = true;
+        findGlobals(node);
+        openTasks(node);
         node.statements.forEach(this::run);
         // append "return null;" since we do not know if top-level code always returns
+        joinTasks();
         loadConstant(method, null);
         method.visitInsn(ARETURN);
+        closeTasks();
         method.visitEnd();
         method.visitMaxs(-1, -1);
         container.visitEnd();
@@ -200,6 +329,10 @@ public class BytecodeCompiler
         method.visitInsn(RETURN); // explicitly necessary
         method.visitEnd();
         method.visitMaxs(-1, -1);
+
+        if (protectCounter > 0)
+            lockFields();
+
         container.visitEnd();
         return null;
     }
@@ -211,14 +344,22 @@ public class BytecodeCompiler
         int surroundingVariableCounter = variableCounter;
         MethodVisitor surroundingMethod = method;
         boolean surroundingIsTopLevel = topLevel;
+        Type surroundingReturnType = returnType;
+        int surroundingTasksVariable = tasksVariable;
+        Label surroundingTasksStart = tasksStart;
+        ArrayDeque<Protect> surroundingProtects = protects;
 
         variableCounter = 0;
         topLevel = false;
         node.parameters.forEach(this::run);
 
-        String descriptor = methodDescriptor(reactor.get(node, "type"));
+        FunType funType = (FunType) tables.type(node);
+        String descriptor = methodDescriptor(funType);
+        returnType = funType.returnType;
         method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, node.name, descriptor, null, null);
         method.visitCode();
+        protects = new ArrayDeque<>();
+        openTasks(node.block);
         run(node.block);
 
         // NOTE: The current semantic analysis check guarantee that there is we unconditionally
@@ -226,15 +367,22 @@ public class BytecodeCompiler
         // The only exception is for void methods - so we always add a return at the end in that
         // case. In the future, it might be good to check that nothing follows a return in semantic
         // analysis.
-        if (descriptor.endsWith("V"))
+        if (descriptor.endsWith("V")) {
+            joinTasks();
             method.visitInsn(RETURN);
+        }
 
+        closeTasks();
         method.visitEnd();
         method.visitMaxs(-1, -1);
 
         method = surroundingMethod;
         variableCounter = surroundingVariableCounter;
         topLevel = surroundingIsTopLevel;
+        returnType = surroundingReturnType;
+        tasksVariable = surroundingTasksVariable;
+        tasksStart = surroundingTasksStart;
+        protects = surroundingProtects;
         return null;
     }
 
@@ -265,10 +413,32 @@ public class BytecodeCompiler
 
     private Object arrayLiteral (ArrayLiteralNode node)
     {
-        ArrayType type = reactor.get(node, "type");
+        ArrayType type = (ArrayType) tables.type(node);
         Type compType = type.componentType;
 
         method.visitLdcInsn(node.components.size());
+        int storeOpcode = newArray(compType);
+
+        int i = 0;
+        for (ExpressionNode component: node.components) {
+            method.visitInsn(DUP); // duplicate the array
+            loadConstant(method, i++);
+            run(component);
+            implicitConversion(compType, tables.type(component));
+            method.visitInsn(storeOpcode);
+        }
+
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the creation of an array of components of type {@code compType}, whose length (an
+     * {@code int}) is on top of the stack, and returns the opcode that stores its components.
+     */
+    private int newArray (Type compType)
+    {
         int storeOpcode = AASTORE;
 
         if (compType instanceof IntType) {
@@ -285,26 +455,19 @@ public class BytecodeCompiler
         } else if (compType instanceof TypeType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/types/TypeType");
         } else if (compType instanceof FunType) {
-            throw new UnsupportedOperationException("TODO"); // TODO
+            method.visitTypeInsn(ANEWARRAY, "java/lang/invoke/MethodHandle");
         } else if (compType instanceof NullType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/bytecode/Null");
-        } else if (compType instanceof VoidType || compType instanceof ArrayType) {
-            // Sigh does not have a syntax for multi-dimensional arrays, so use an array of
-            // Object that we'll be able to cast to array themselves.
+        } else if (compType instanceof VoidType) {
             method.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+        } else if (compType instanceof ArrayType) {
+            // multi-dimensional arrays are arrays of arrays (e.g. long[][] for Int[][])
+            method.visitTypeInsn(ANEWARRAY, asmType(compType).getInternalName());
         } else if (compType instanceof StructType) {
             method.visitTypeInsn(ANEWARRAY, structBinaryName((StructType) compType));
         }
 
-        int i = 0;
-        for (ExpressionNode component: node.components) {
-            method.visitInsn(DUP); // duplicate the array
-            loadConstant(method, i++);
-            run(component);
-            method.visitInsn(storeOpcode);
-        }
-
-        return null;
+        return storeOpcode;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -314,10 +477,13 @@ public class BytecodeCompiler
         if (isShortCircuit(node.operator))
             return shortCircuit(node);
 
-        run(node.left);
+        Type left  = tables.type(node.left);
+        Type right = tables.type(node.right);
 
-        Type left  = reactor.get(node.left, "type");
-        Type right = reactor.get(node.right, "type");
+        if (left instanceof ArrayType && right instanceof ArrayType && !isEquality(node.operator))
+            return arrayOperation(node, (ArrayType) left, (ArrayType) right);
+
+        run(node.left);
 
         // promote long to double for mixed operations
         if (enablesPromotion(node.operator) && left instanceof IntType && right instanceof FloatType)
@@ -367,6 +533,181 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Emits an element-wise operation ({@code +}, {@code -}, {@code *}, {@code /}) or a matrix
+     * product ({@code @}) between two arrays. Element-wise operations between one-dimensional
+     * arrays are compiled to a loop, in which nested element-wise operations are fused (as in
+     * the interpreters), so that no intermediate array is allocated. The other operations call
+     * kernels in {@link SighRuntime}. As for numbers, {@code Int} components are promoted to
+     * {@code Float} if the other operand has {@code Float} components.
+     */
+    private Object arrayOperation (BinaryExpressionNode node, ArrayType left, ArrayType right)
+    {
+        if (node.operator == REMAINDER) // not supported by the interpreters either
+            throw new UnsupportedOperationException("remainder of arrays");
+
+        if (node.operator == MAT_PRODUCT) {
+            if (!(left.componentType instanceof ArrayType)
+                    || !(right.componentType instanceof ArrayType))
+                throw new UnsupportedOperationException("matrix product of one-dimensional arrays");
+            run(node.left);
+            run(node.right);
+            invokeStatic(method, SighRuntime.class, "matrixProduct",
+                Object[].class, Object[].class);
+            return null;
+        }
+
+        if (left.componentType instanceof ArrayType) {
+            run(node.left);
+            run(node.right);
+            method.visitFieldInsn(GETSTATIC, slashBinaryName(BinaryOperator.class),
+                node.operator.name(), AsmUtils.fieldDescriptor(BinaryOperator.class));
+            invokeStatic(method, SighRuntime.class, "compute",
+                Object[].class, Object[].class, BinaryOperator.class);
+            method.visitTypeInsn(CHECKCAST, nodeAsmType(node).getInternalName());
+            return null;
+        }
+
+        // one-dimensional: fuse the tree of element-wise operations into a single loop
+        ArrayList<ExpressionNode> leaves = new ArrayList<>();
+        collectLeaves(node, leaves);
+        ArrayList<Integer> leafVars = new ArrayList<>();
+        for (ExpressionNode leaf: leaves) {
+            run(leaf);
+            leafVars.add(variableCounter);
+            method.visitVarInsn(ASTORE, variableCounter++);
+        }
+
+        int resultVar = variableCounter++;
+        int length    = variableCounter++;
+        int index     = variableCounter++;
+        boolean floating = leafType(tables.type(node)) instanceof FloatType;
+        org.objectweb.asm.Type resultType = floating
+            ? org.objectweb.asm.Type.DOUBLE_TYPE
+            : org.objectweb.asm.Type.LONG_TYPE;
+
+        // the leaves must all have the same length
+        method.visitVarInsn(ALOAD, leafVars.get(0));
+        method.visitInsn(ARRAYLENGTH);
+        method.visitVarInsn(ISTORE, length);
+        for (int i = 1; i < leafVars.size(); ++i) {
+            method.visitVarInsn(ILOAD, length);
+            method.visitVarInsn(ALOAD, leafVars.get(i));
+            method.visitInsn(ARRAYLENGTH);
+            invokeStatic(method, SighRuntime.class, "checkLengths", int.class, int.class);
+        }
+
+        method.visitVarInsn(ILOAD, length);
+        method.visitIntInsn(NEWARRAY, floating ? T_DOUBLE : T_LONG);
+        method.visitVarInsn(ASTORE, resultVar);
+
+        // for (var index = 0; index < length; ++index)
+        //     result[index] = <expression over leaf[index]>
+        Label loop = new Label();
+        Label end = new Label();
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, index);
+        method.visitLabel(loop);
+        method.visitVarInsn(ILOAD, index);
+        method.visitVarInsn(ILOAD, length);
+        method.visitJumpInsn(IF_ICMPGE, end);
+        method.visitVarInsn(ALOAD, resultVar);
+        method.visitVarInsn(ILOAD, index);
+        element(node, leafVars.iterator(), index);
+        method.visitInsn(resultType.getOpcode(IASTORE));
+        method.visitIincInsn(index, 1);
+        method.visitJumpInsn(GOTO, loop);
+        method.visitLabel(end);
+        method.visitVarInsn(ALOAD, resultVar);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * If {@code node} (ignoring parentheses) is an element-wise operation between one-dimensional
+     * numeric arrays, returns it, otherwise returns null.
+     */
+    private BinaryExpressionNode fusable (ExpressionNode node)
+    {
+        while (node instanceof ParenthesizedNode)
+            node = ((ParenthesizedNode) node).expression;
+        if (!(node instanceof BinaryExpressionNode))
+            return null;
+        BinaryExpressionNode binary = (BinaryExpressionNode) node;
+        switch (binary.operator) {
+            case ADD: case SUBTRACT: case MULTIPLY: case DIVIDE: break;
+            default: return null;
+        }
+        Type left  = tables.type(binary.left);
+        Type right = tables.type(binary.right);
+        return left instanceof ArrayType && right instanceof ArrayType
+            && isNumeric(((ArrayType) left).componentType)
+            && isNumeric(((ArrayType) right).componentType)
+            ? binary
+            : null;
+    }
+
+    private boolean isNumeric (Type type) {
+        return type instanceof IntType || type instanceof FloatType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Collects, from left to right, the operands of the tree of fused element-wise operations
+     * rooted at {@code node} that are not themselves fused operations.
+     */
+    private void collectLeaves (ExpressionNode node, List<ExpressionNode> leaves)
+    {
+        BinaryExpressionNode binary = fusable(node);
+        if (binary == null)
+            leaves.add(node);
+        else {
+            collectLeaves(binary.left, leaves);
+            collectLeaves(binary.right, leaves);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the computation of the component at {@code index} of the tree of fused element-wise
+     * operations rooted at {@code node}, whose leaves (cf. {@link #collectLeaves}) are held in
+     * the variables given by {@code leafVars}. Returns the type of the component.
+     */
+    private Type element (ExpressionNode node, Iterator<Integer> leafVars, int index)
+    {
+        BinaryExpressionNode binary = fusable(node);
+        if (binary == null) {
+            Type type = ((ArrayType) tables.type(node)).componentType;
+            method.visitVarInsn(ALOAD, leafVars.next());
+            method.visitVarInsn(ILOAD, index);
+            method.visitInsn(asmType(type).getOpcode(IALOAD));
+            return type;
+        }
+
+        boolean floating = leafType(tables.type(binary.left)) instanceof FloatType
+            || leafType(tables.type(binary.right)) instanceof FloatType;
+        Type type = floating ? FloatType.INSTANCE : IntType.INSTANCE;
+        if (element(binary.left, leafVars, index) != type)
+            method.visitInsn(L2D);
+        if (element(binary.right, leafVars, index) != type)
+            method.visitInsn(L2D);
+
+        org.objectweb.asm.Type asmType = asmType(type);
+        switch (binary.operator) {
+            case ADD:      method.visitInsn(asmType.getOpcode(IADD)); break;
+            case SUBTRACT: method.visitInsn(asmType.getOpcode(ISUB)); break;
+            case MULTIPLY: method.visitInsn(asmType.getOpcode(IMUL)); break;
+            case DIVIDE:   method.visitInsn(asmType.getOpcode(IDIV)); break;
+            default: throw new Error("should not reach here");
+        }
+        return type;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private boolean enablesPromotion (BinaryOperator op) {
         return isArithmetic(op) || isComparison(op) || isEquality(op);
     }
@@ -528,27 +869,25 @@ public class BytecodeCompiler
 
     private Object funCall (FunCallNode node)
     {
-        FunType funType = reactor.get(node.function, "type");
+        FunType funType = (FunType) tables.type(node.function);
 
-        // The function part can either be a reference, in which case we emit a call,
-        // or a more complex expression, which will evaluate to a lambda.
+        // The function part can either be a reference to a function, in which case we emit a
+        // call, or a more complex expression, which will evaluate to a function value.
 
-        if (node.function instanceof ReferenceNode) {
-            DeclarationNode decl = reactor.get(node.function, "decl");
-            if (decl instanceof SyntheticDeclarationNode) {
-                return builtin(funType, decl.name(), node.arguments);
-            }
-            else if (decl instanceof FunDeclarationNode) {
-                runArguments(funType, node.arguments);
-                method.visitMethodInsn(INVOKESTATIC, containerName,
-                    decl.name(), methodDescriptor(funType), false);
-            }
-            else { // TODO
-                throw new UnsupportedOperationException("variables or parameters containing a function value");
-            }
+        DeclarationNode callee = node.function instanceof ReferenceNode
+            ? tables.decl(node.function)
+            : null;
+
+        if (callee instanceof SyntheticDeclarationNode) {
+            return builtin(funType, callee.name(), node.arguments);
+        }
+        else if (callee instanceof FunDeclarationNode) {
+            runArguments(funType, node.arguments);
+            method.visitMethodInsn(INVOKESTATIC, containerName,
+                callee.name(), methodDescriptor(funType), false);
         }
         else if (node.function instanceof ConstructorNode) {
-            StructDeclarationNode decl = reactor.get(((ConstructorNode) node.function).ref, "decl");
+            StructDeclarationNode decl = (StructDeclarationNode) tables.decl(((ConstructorNode) node.function).ref);
             String binaryName = structBinaryName(reactor.get(decl, "declared"));
             method.visitTypeInsn(NEW, binaryName);
             method.visitInsn(DUP);
@@ -556,8 +895,11 @@ public class BytecodeCompiler
             String descriptor = methodDescriptor(VoidType.INSTANCE, funType.paramTypes);
             method.visitMethodInsn(INVOKESPECIAL, binaryName, "<init>", descriptor, false);
         }
-        else
-            throw new UnsupportedOperationException("complex expression evaluating to a function value");
+        else {
+            run(node.function);
+            runArguments(funType, node.arguments);
+            callValue(funType);
+        }
 
         return null;
     }
@@ -566,7 +908,14 @@ public class BytecodeCompiler
 
     private Object builtin (FunType funType, String name, List<ExpressionNode> arguments)
     {
-        assert name.equals("print"); // only one at the moment
+        switch (name) {
+            case "wait":    return await(arguments.get(0));
+            case "pmap":    return pmap(arguments);
+            case "preduce": return preduce(arguments);
+            case "pfor":    return pfor(arguments);
+        }
+        if (!name.equals("print"))
+            throw new UnsupportedOperationException("builtin function: " + name);
         method.visitFieldInsn(GETSTATIC, "java/lang/System", "out",
             "Ljava/io/PrintStream;");
         runArguments(funType, arguments);
@@ -586,7 +935,7 @@ public class BytecodeCompiler
     {
         Vanilla.forEachIndexed(arguments, (i, arg) -> {
             run(arg);
-            implicitConversion(funType.paramTypes[i], reactor.get(arg, "type"));
+            implicitConversion(funType.paramTypes[i], tables.type(arg));
         });
     }
 
@@ -595,9 +944,9 @@ public class BytecodeCompiler
     private Object expressionStmt (ExpressionStatementNode node) {
         run(node.expression);
         if (node.expression instanceof AssignmentNode)
-            pop(reactor.get(node.expression, "type"));
+            pop(tables.type(node.expression));
         else if (node.expression instanceof FunCallNode) {
-            Type type = reactor.get(node.expression, "type");
+            Type type = tables.type(node.expression);
             if (!(type instanceof VoidType)) pop(type);
         }
         return null;
@@ -606,7 +955,13 @@ public class BytecodeCompiler
     // ---------------------------------------------------------------------------------------------
 
     private Object returnStmt (ReturnNode node) {
+        if (!protects.isEmpty()) {
+            exitProtect(node);
+            return null;
+        }
+
         if (node.expression == null) {
+            joinTasks();
             if (topLevel) {
                 loadConstant(method, null);
                 method.visitInsn(ARETURN);
@@ -619,16 +974,19 @@ public class BytecodeCompiler
         run(node.expression);
 
         if (topLevel) {
-            Type type = reactor.get(node.expression, "type");
+            Type type = tables.type(node.expression);
             if (type instanceof IntType)
                 invokeStatic(method, Long.class, "valueOf", long.class);
             else if (type instanceof FloatType)
                 invokeStatic(method, Double.class, "valueOf", double.class);
             else if (type instanceof BoolType)
                 invokeStatic(method, Boolean.class, "valueOf", boolean.class);
+            joinTasks();
             method.visitInsn(ARETURN);
         } else {
-            method.visitInsn(nodeAsmType(node.expression).getOpcode(IRETURN));
+            implicitConversion(returnType, tables.type(node.expression));
+            joinTasks();
+            method.visitInsn(asmType(returnType).getOpcode(IRETURN));
         }
 
         return null;
@@ -679,11 +1037,11 @@ public class BytecodeCompiler
 
     private Object reference (ReferenceNode node)
     {
-        DeclarationNode decl = reactor.get(node, "decl");
+        DeclarationNode decl = tables.decl(node);
 
         // TODO distinguish local variables from closures
         if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
-            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), varIndex(node));
+            loadVariable(decl);
         }
         else if (decl instanceof StructDeclarationNode) {
             // NOTE: This is not used when the reference is part of a constructor call, the
@@ -695,11 +1053,10 @@ public class BytecodeCompiler
             // NOTE: This is not used when the reference is part of a function call, the resolution
             // is handled in #funCall.
 
-            // TODO proper handling/representation of function object
-            //  For now I use a method handle. There is no way to use it in the language however.
+            // function values are method handles, called through #callValue
             method.visitLdcInsn(new Handle(
                 H_INVOKESTATIC, containerName, decl.name(),
-                methodDescriptor(reactor.get(decl, "type")), false));
+                methodDescriptor((FunType) tables.type(decl)), false));
         }
         else if (decl instanceof SyntheticDeclarationNode) {
             switch (decl.name()) {
@@ -739,11 +1096,10 @@ public class BytecodeCompiler
 
     private Object varDecl (VarDeclarationNode node)
     {
-        org.objectweb.asm.Type type = nodeAsmType(node);
-        int index = registerVariable(node, type);
+        declareVariable(node);
         run(node.initializer);
         implicitConversion(node, node.initializer);
-        method.visitVarInsn(type.getOpcode(ISTORE), index);
+        storeVariable(node);
         // LATER: method.visitLocalVariable for debug information
         // https://stackoverflow.com/questions/28633731
         return null;
@@ -765,7 +1121,7 @@ public class BytecodeCompiler
             run(node.right);
             Type type = implicitConversion(node, node.right);
             dup(type);
-            method.visitVarInsn(nodeAsmType(node).getOpcode(ISTORE), varIndex(left));
+            storeVariable(tables.decl(left));
         }
         else if (node.left instanceof ArrayAccessNode) {
             ArrayAccessNode left = (ArrayAccessNode) node.left;
@@ -783,8 +1139,8 @@ public class BytecodeCompiler
             run(node.right);
             Type type = implicitConversion(node, node.right);
             dup_x1(type);
-            StructType structType = reactor.get(left.stem, "type");
-            Type fieldType = reactor.get(node, "type");
+            StructType structType = (StructType) tables.type(left.stem);
+            Type fieldType = tables.type(node);
             method.visitFieldInsn(PUTFIELD, structBinaryName(structType), left.fieldName,
                 fieldDescriptor(fieldType));
         }
@@ -802,7 +1158,7 @@ public class BytecodeCompiler
 
         // generate constructor
         Type[] paramTypes =
-            node.fields.stream().map(f -> (Type) reactor.get(f, "type")).toArray(Type[]::new);
+            node.fields.stream().map(f -> tables.type(f)).toArray(Type[]::new);
         String descriptor = methodDescriptor(VoidType.INSTANCE, paramTypes);
         MethodVisitor init = struct.visitMethod(ACC_PUBLIC, "<init>", descriptor, null, null);
         init.visitCode();
@@ -838,7 +1194,13 @@ public class BytecodeCompiler
 
     private Object fieldAccess (FieldAccessNode node) {
         run(node.stem);
-        String binaryName = asmType(reactor.get(node.stem, "type")).getClassName();
+        if (tables.type(node.stem) instanceof ArrayType) {
+            // only field on arrays
+            method.visitInsn(ARRAYLENGTH);
+            method.visitInsn(I2L);
+            return null;
+        }
+        String binaryName = asmType(tables.type(node.stem)).getClassName();
         method.visitFieldInsn(GETFIELD, binaryName, node.fieldName, nodeFieldDescriptor(node));
         return null;
     }
@@ -850,6 +1212,731 @@ public class BytecodeCompiler
         return null;
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    private Object launch (LaunchNode node)
+    {
+        method.visitVarInsn(ALOAD, tasksVariable);
+        launchedCall(node.funCall, "run", Runnable.class, void.class);
+        invokeStatic(method, SighRuntime.class, "launch", TaskScope.class, Runnable.class);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object launchVar (LaunchStateNode node)
+    {
+        VarDeclarationNode decl = node.varDeclaration;
+        FunCallNode call = (FunCallNode) decl.initializer;
+
+        // until awaited, the variable holds the default value of its type
+        declareVariable(decl);
+        loadConstant(method, defaultValue(tables.type(decl)));
+        storeVariable(decl);
+
+        method.visitVarInsn(ALOAD, tasksVariable);
+        launchedCall(call, "get", Supplier.class, Object.class);
+        invokeStatic(method, SighRuntime.class, "launchVar", TaskScope.class, Supplier.class);
+        if (global(decl)) {
+            container.visitField(ACC_PUBLIC | ACC_STATIC | ACC_VOLATILE, taskField(decl),
+                LAUNCHED_DESCRIPTOR, null, null);
+            method.visitFieldInsn(PUTSTATIC, containerName, taskField(decl), LAUNCHED_DESCRIPTOR);
+        } else {
+            int taskIndex = variableCounter++;
+            method.visitVarInsn(ASTORE, taskIndex);
+            launchedVariables.put(decl, taskIndex);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits {@code wait(argument)}, which only has an effect if the argument is a variable declared
+     * by {@code launch var} in the current function or in the root scope (in which case it has no
+     * effect until the task has been launched).
+     */
+    private Object await (ExpressionNode argument)
+    {
+        if (!(argument instanceof ReferenceNode))
+            return null;
+        DeclarationNode decl = tables.decl(argument);
+        Label end = new Label();
+
+        if (launchedGlobals.contains(decl)) {
+            Label launched = new Label();
+            method.visitFieldInsn(GETSTATIC, containerName, taskField(decl), LAUNCHED_DESCRIPTOR);
+            method.visitInsn(DUP);
+            method.visitJumpInsn(IFNONNULL, launched);
+            method.visitInsn(POP);
+            method.visitJumpInsn(GOTO, end);
+            method.visitLabel(launched);
+        } else {
+            Integer taskIndex = launchedVariables.get(decl);
+            if (taskIndex == null || !variables.containsKey(variableKey(decl)))
+                return null;
+            method.visitVarInsn(ALOAD, taskIndex);
+        }
+        invokeStatic(method, SighRuntime.class, "await", SighRuntime.Launched.class);
+
+        Type type = tables.type(decl);
+        if (type instanceof IntType) {
+            method.visitTypeInsn(CHECKCAST, "java/lang/Number");
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Number", "longValue", "()J", false);
+        } else if (type instanceof FloatType) {
+            // the function may return an Int
+            method.visitTypeInsn(CHECKCAST, "java/lang/Number");
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Number", "doubleValue", "()D", false);
+        } else if (type instanceof BoolType) {
+            method.visitTypeInsn(CHECKCAST, "java/lang/Boolean");
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z",
+                false);
+        } else {
+            method.visitTypeInsn(CHECKCAST, nodeAsmType(decl).getInternalName());
+        }
+        storeVariable(decl);
+        method.visitLabel(end);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the evaluation of the arguments of a launched call, and the creation of an instance
+     * of {@code samClass} whose method {@code samName} (which takes no parameter and returns
+     * {@code samReturn}) makes the call with these arguments. The result of the call is boxed if
+     * needed, or discarded if {@code samReturn} is {@code void}.
+     */
+    private void launchedCall (FunCallNode call, String samName, Class<?> samClass,
+                               Class<?> samReturn)
+    {
+        FunType funType = (FunType) tables.type(call.function);
+        DeclarationNode decl = call.function instanceof ReferenceNode
+            ? tables.decl(call.function)
+            : null;
+        if (decl instanceof FunDeclarationNode) {
+            runArguments(funType, call.arguments);
+            lambda(decl.name(), methodDescriptor(funType), samName, samClass, samReturn);
+            return;
+        }
+
+        // the function value (unless the callee is a builtin) and the arguments, which the stub
+        // converts, as when the call is made directly
+        ArrayList<ExpressionNode> evaluated = new ArrayList<>();
+        if (!(decl instanceof SyntheticDeclarationNode))
+            evaluated.add(call.function);
+        evaluated.addAll(call.arguments);
+        Type[] types = evaluated.stream().map(tables::type).toArray(Type[]::new);
+        evaluated.forEach(this::run);
+        String stub = "launch$" + stubCounter++;
+        String descriptor = methodDescriptor(tables.type(call), types);
+        lambda(stub, descriptor, samName, samClass, samReturn);
+        launchStub(stub, descriptor, call, evaluated, types);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the method {@code name}, whose parameters hold the values of the {@code evaluated}
+     * nodes (of the given types), and which makes the launched {@code call} and returns its
+     * result.
+     */
+    private void launchStub (String name, String descriptor, FunCallNode call,
+                             List<? extends SighNode> evaluated, Type[] types)
+    {
+        MethodVisitor surroundingMethod = method;
+        int surroundingVariableCounter = variableCounter;
+        boolean surroundingIsTopLevel = topLevel;
+        ArrayDeque<Protect> surroundingProtects = protects;
+        HashMap<VarDeclarationNode, Integer> surroundingLaunchedVariables = launchedVariables;
+
+        method = container.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name,
+            descriptor, null, null);
+        method.visitCode();
+        variableCounter = 0;
+        for (int i = 0; i < types.length; ++i) {
+            stubParameters.put(evaluated.get(i), variableCounter);
+            variableCounter += asmType(types[i]).getSize();
+        }
+        topLevel = false;
+        protects = new ArrayDeque<>();
+        // wait has no effect on the variables of the launching function
+        launchedVariables = new HashMap<>();
+
+        funCall(call);
+        Type type = tables.type(call);
+        method.visitInsn(type instanceof VoidType ? RETURN : asmType(type).getOpcode(IRETURN));
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+
+        stubParameters.clear();
+        method = surroundingMethod;
+        variableCounter = surroundingVariableCounter;
+        topLevel = surroundingIsTopLevel;
+        protects = surroundingProtects;
+        launchedVariables = surroundingLaunchedVariables;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the creation of an instance of {@code samClass} whose method {@code samName} (which
+     * takes no parameter and returns {@code samReturn}) calls the static method {@code name} of
+     * the class with the arguments on top of the stack. The return value of the method is boxed
+     * if needed, or discarded if {@code samReturn} is {@code void}.
+     */
+    private void lambda (String name, String descriptor,
+                         String samName, Class<?> samClass, Class<?> samReturn)
+    {
+        String captured = descriptor.substring(0, descriptor.indexOf(')') + 1);
+        org.objectweb.asm.Type samType = org.objectweb.asm.Type.getMethodType(
+            org.objectweb.asm.Type.getType(samReturn));
+        method.visitInvokeDynamicInsn(samName,
+            captured + org.objectweb.asm.Type.getDescriptor(samClass),
+            METAFACTORY,
+            samType,
+            new Handle(H_INVOKESTATIC, containerName, name, descriptor, false),
+            samType);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the call of the function value on top of the stack (followed by the arguments),
+     * through an {@code invokedynamic} call site with an inline cache.
+     */
+    private void callValue (FunType funType)
+    {
+        String descriptor = methodDescriptor(funType);
+        method.visitInvokeDynamicInsn("call", "(" + HANDLE_DESCRIPTOR + descriptor.substring(1),
+            CALL_SITE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits {@code pmap(f, array)}: the kernel stores the results of {@code f} for a chunk of the
+     * components of the array in the result array.
+     */
+    private Object pmap (List<ExpressionNode> arguments)
+    {
+        FunType funType = (FunType) tables.type(arguments.get(0));
+        ArrayType arrayType = (ArrayType) tables.type(arguments.get(1));
+        Type component = arrayType.componentType;
+        Type result = funType.returnType;
+        String captured = HANDLE_DESCRIPTOR
+            + fieldDescriptor(arrayType) + fieldDescriptor(new ArrayType(result));
+
+        int function = variableCounter++;
+        int input = variableCounter++;
+        int output = variableCounter++;
+        run(arguments.get(0));
+        method.visitVarInsn(ASTORE, function);
+        run(arguments.get(1));
+        method.visitVarInsn(ASTORE, input);
+        method.visitVarInsn(ALOAD, input);
+        method.visitInsn(ARRAYLENGTH);
+        newArray(result);
+        method.visitVarInsn(ASTORE, output);
+
+        method.visitVarInsn(ALOAD, input);
+        method.visitInsn(ARRAYLENGTH);
+        method.visitInsn(I2L);
+        method.visitVarInsn(ALOAD, function);
+        method.visitVarInsn(ALOAD, input);
+        method.visitVarInsn(ALOAD, output);
+        MethodVisitor surroundingMethod = method;
+        parallel("pmap", captured);
+
+        // locals: function (0), input (1), output (2), chunk (3), lo (4), hi (6), i (8)
+        method.visitVarInsn(LLOAD, 4);
+        method.visitInsn(L2I);
+        method.visitVarInsn(ISTORE, 8);
+        chunkLoop(8, () -> {
+            method.visitVarInsn(ALOAD, 2);
+            method.visitVarInsn(ILOAD, 8);
+            method.visitVarInsn(ALOAD, 0);
+            method.visitVarInsn(ALOAD, 1);
+            method.visitVarInsn(ILOAD, 8);
+            method.visitInsn(asmType(component).getOpcode(IALOAD));
+            implicitConversion(funType.paramTypes[0], component);
+            callValue(funType);
+            method.visitInsn(asmType(result).getOpcode(IASTORE));
+        });
+        endKernel(surroundingMethod);
+
+        method.visitVarInsn(ALOAD, output);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits {@code preduce(f, array, init)}: the kernel reduces a chunk of the components of the
+     * array from its first component, and stores the result in an array of partial results,
+     * which are then reduced from {@code init} by the calling method.
+     */
+    private Object preduce (List<ExpressionNode> arguments)
+    {
+        FunType funType = (FunType) tables.type(arguments.get(0));
+        ArrayType arrayType = (ArrayType) tables.type(arguments.get(1));
+        Type component = arrayType.componentType;
+        Type result = funType.returnType;
+        org.objectweb.asm.Type resultType = asmType(result);
+        // the partial result of a chunk with a single element is that element
+        if (!asmType(component).equals(resultType)
+                && !(component instanceof IntType && result instanceof FloatType))
+            throw new UnsupportedOperationException(
+                "preduce of an array of " + component + " to " + result);
+        String captured = HANDLE_DESCRIPTOR
+            + fieldDescriptor(arrayType) + fieldDescriptor(new ArrayType(result));
+
+        int function = variableCounter++;
+        int input = variableCounter++;
+        int partials = variableCounter++;
+        run(arguments.get(0));
+        method.visitVarInsn(ASTORE, function);
+        run(arguments.get(1));
+        method.visitVarInsn(ASTORE, input);
+        method.visitVarInsn(ALOAD, input);
+        method.visitInsn(ARRAYLENGTH);
+        invokeStatic(method, SighRuntime.class, "chunks", int.class);
+        newArray(result);
+        method.visitVarInsn(ASTORE, partials);
+
+        method.visitVarInsn(ALOAD, input);
+        method.visitInsn(ARRAYLENGTH);
+        method.visitInsn(I2L);
+        method.visitVarInsn(ALOAD, function);
+        method.visitVarInsn(ALOAD, input);
+        method.visitVarInsn(ALOAD, partials);
+        MethodVisitor surroundingMethod = method;
+        parallel("preduce", captured);
+
+        // locals: function (0), input (1), partials (2), chunk (3), lo (4), hi (6),
+        // accumulator (8), i (8 + size of the accumulator)
+        int index = 8 + resultType.getSize();
+        method.visitVarInsn(ALOAD, 1);
+        method.visitVarInsn(LLOAD, 4);
+        method.visitInsn(L2I);
+        method.visitInsn(asmType(component).getOpcode(IALOAD));
+        implicitConversion(result, component);
+        method.visitVarInsn(resultType.getOpcode(ISTORE), 8);
+        method.visitVarInsn(LLOAD, 4);
+        method.visitInsn(L2I);
+        method.visitInsn(ICONST_1);
+        method.visitInsn(IADD);
+        method.visitVarInsn(ISTORE, index);
+        chunkLoop(index, () -> {
+            method.visitVarInsn(ALOAD, 0);
+            method.visitVarInsn(resultType.getOpcode(ILOAD), 8);
+            implicitConversion(funType.paramTypes[0], result);
+            method.visitVarInsn(ALOAD, 1);
+            method.visitVarInsn(ILOAD, index);
+            method.visitInsn(asmType(component).getOpcode(IALOAD));
+            implicitConversion(funType.paramTypes[1], component);
+            callValue(funType);
+            method.visitVarInsn(resultType.getOpcode(ISTORE), 8);
+        });
+        method.visitVarInsn(ALOAD, 2);
+        method.visitVarInsn(ILOAD, 3);
+        method.visitVarInsn(resultType.getOpcode(ILOAD), 8);
+        method.visitInsn(resultType.getOpcode(IASTORE));
+        endKernel(surroundingMethod);
+
+        // reduce the partial results, in order
+        int accumulator = variableCounter;
+        variableCounter += resultType.getSize();
+        int partial = variableCounter++;
+        run(arguments.get(2));
+        implicitConversion(result, tables.type(arguments.get(2)));
+        method.visitVarInsn(resultType.getOpcode(ISTORE), accumulator);
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, partial);
+        Label test = new Label();
+        Label end = new Label();
+        method.visitLabel(test);
+        method.visitVarInsn(ILOAD, partial);
+        method.visitVarInsn(ALOAD, partials);
+        method.visitInsn(ARRAYLENGTH);
+        method.visitJumpInsn(IF_ICMPGE, end);
+        method.visitVarInsn(ALOAD, function);
+        method.visitVarInsn(resultType.getOpcode(ILOAD), accumulator);
+        implicitConversion(funType.paramTypes[0], result);
+        method.visitVarInsn(ALOAD, partials);
+        method.visitVarInsn(ILOAD, partial);
+        method.visitInsn(resultType.getOpcode(IALOAD));
+        implicitConversion(funType.paramTypes[1], result);
+        callValue(funType);
+        method.visitVarInsn(resultType.getOpcode(ISTORE), accumulator);
+        method.visitIincInsn(partial, 1);
+        method.visitJumpInsn(GOTO, test);
+        method.visitLabel(end);
+        method.visitVarInsn(resultType.getOpcode(ILOAD), accumulator);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits {@code pfor(lo, hi, f)}: the kernel calls {@code f} with a chunk of the integers in
+     * {@code [lo, hi)}.
+     */
+    private Object pfor (List<ExpressionNode> arguments)
+    {
+        FunType funType = (FunType) tables.type(arguments.get(2));
+        String captured = HANDLE_DESCRIPTOR + "J";
+
+        int lo = variableCounter;
+        variableCounter += 2;
+        run(arguments.get(0));
+        method.visitVarInsn(LSTORE, lo);
+        run(arguments.get(1));
+        method.visitVarInsn(LLOAD, lo);
+        method.visitInsn(LSUB);
+        run(arguments.get(2));
+        method.visitVarInsn(LLOAD, lo);
+        MethodVisitor surroundingMethod = method;
+        parallel("pfor", captured);
+
+        // locals: function (0), base (1), chunk (3), lo (4), hi (6), i (8)
+        method.visitVarInsn(LLOAD, 4);
+        method.visitInsn(L2I);
+        method.visitVarInsn(ISTORE, 8);
+        chunkLoop(8, () -> {
+            method.visitVarInsn(ALOAD, 0);
+            method.visitVarInsn(LLOAD, 1);
+            method.visitVarInsn(ILOAD, 8);
+            method.visitInsn(I2L);
+            method.visitInsn(LADD);
+            implicitConversion(funType.paramTypes[0], IntType.INSTANCE);
+            callValue(funType);
+            if (!(funType.returnType instanceof VoidType))
+                pop(funType.returnType);
+        });
+        endKernel(surroundingMethod);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the call to {@link SighRuntime#parallel} for a parallel builtin, with the number of
+     * elements and the {@code captured} values (whose descriptors are concatenated) on top of the
+     * stack, then starts the kernel of the builtin, to which the captured values are passed, and
+     * sets it as the current method. The kernel must be ended with {@link #endKernel}.
+     */
+    private void parallel (String builtin, String captured)
+    {
+        String kernel = builtin + "$" + kernelCounter++;
+        String descriptor = "(" + captured + "IJJ)V";
+        org.objectweb.asm.Type samType = org.objectweb.asm.Type.getMethodType("(IJJ)V");
+        method.visitInvokeDynamicInsn("run",
+            "(" + captured + ")" + org.objectweb.asm.Type.getDescriptor(
+                ParallelBuiltins.ChunkBody.class),
+            METAFACTORY,
+            samType,
+            new Handle(H_INVOKESTATIC, containerName, kernel, descriptor, false),
+            samType);
+        invokeStatic(method, SighRuntime.class, "parallel",
+            long.class, ParallelBuiltins.ChunkBody.class);
+
+        method = container.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, kernel,
+            descriptor, null, null);
+        method.visitCode();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the loop of a kernel over the indices of its chunk, from the value of the {@code int}
+     * variable {@code index} until {@code hi} (the variable 6 of the kernel), whose body is
+     * emitted by {@code body}.
+     */
+    private void chunkLoop (int index, Runnable body)
+    {
+        Label test = new Label();
+        Label end = new Label();
+        method.visitLabel(test);
+        method.visitVarInsn(ILOAD, index);
+        method.visitInsn(I2L);
+        method.visitVarInsn(LLOAD, 6);
+        method.visitInsn(LCMP);
+        method.visitJumpInsn(IFGE, end);
+        body.run();
+        method.visitIincInsn(index, 1);
+        method.visitJumpInsn(GOTO, test);
+        method.visitLabel(end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Ends the current kernel and restores {@code surroundingMethod} as the current method.
+     */
+    private void endKernel (MethodVisitor surroundingMethod)
+    {
+        method.visitInsn(RETURN);
+        method.visitEnd();
+        method.visitMaxs(-1, -1);
+        method = surroundingMethod;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object protectBlock (ProtectBlockNode node)
+    {
+        Protect protect = new Protect(node, tables.readProtects());
+        if (protect.shared) {
+            method.visitFieldInsn(GETSTATIC, containerName, SHARED_LOCK,
+                org.objectweb.asm.Type.getDescriptor(ReentrantReadWriteLock.class));
+            invokeStatic(method, SighRuntime.class, node.readOnly ? "enterRead" : "enterWrite",
+                ReentrantReadWriteLock.class);
+        } else {
+            protect.lockVariable = variableCounter++;
+            method.visitFieldInsn(GETSTATIC, containerName, "protect$" + protectCounter,
+                "Ljava/lang/Object;");
+            method.visitInsn(DUP);
+            method.visitVarInsn(ASTORE, protect.lockVariable);
+            method.visitInsn(MONITORENTER);
+        }
+        ++protectCounter;
+
+        protects.push(protect);
+        Label start = new Label();
+        method.visitLabel(start);
+        run(node.protectedBlock);
+        protects.pop();
+
+        // returns in the block jump here
+        method.visitLabel(protect.end);
+        exitProtect(protect);
+        Label after = new Label();
+        method.visitJumpInsn(GOTO, after);
+
+        // releases the lock and rethrows the exception thrown in the block
+        Label handler = new Label();
+        method.visitLabel(handler);
+        exitProtect(protect);
+        method.visitInsn(ATHROW);
+        method.visitLabel(after);
+
+        tryCatchAll(start, protect.end, handler);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the release of the lock of the given protect block.
+     */
+    private void exitProtect (Protect protect)
+    {
+        if (protect.shared) {
+            method.visitFieldInsn(GETSTATIC, containerName, SHARED_LOCK,
+                org.objectweb.asm.Type.getDescriptor(ReentrantReadWriteLock.class));
+            invokeStatic(method, SighRuntime.class,
+                protect.node.readOnly ? "exitRead" : "exitWrite", ReentrantReadWriteLock.class);
+        } else {
+            method.visitVarInsn(ALOAD, protect.lockVariable);
+            method.visitInsn(MONITOREXIT);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits a return statement nested in a protect block, which exits the innermost enclosing
+     * protect block, as in the interpreters: the returned value is evaluated and discarded, then
+     * the code jumps to the end of the block, which releases its lock.
+     */
+    private void exitProtect (ReturnNode node)
+    {
+        if (node.expression != null) {
+            run(node.expression);
+            Type type = tables.type(node.expression);
+            if (!(type instanceof VoidType))
+                pop(type);
+        }
+        method.visitJumpInsn(GOTO, protects.peek().end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the static fields holding the locks of the protect blocks, and the static initializer
+     * that creates them.
+     */
+    private void lockFields ()
+    {
+        MethodVisitor init = container.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        init.visitCode();
+        if (tables.readProtects()) {
+            String descriptor = org.objectweb.asm.Type.getDescriptor(ReentrantReadWriteLock.class);
+            String lockClass = slashBinaryName(ReentrantReadWriteLock.class);
+            container.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, SHARED_LOCK,
+                descriptor, null, null);
+            init.visitTypeInsn(NEW, lockClass);
+            init.visitInsn(DUP);
+            init.visitMethodInsn(INVOKESPECIAL, lockClass, "<init>", "()V", false);
+            init.visitFieldInsn(PUTSTATIC, containerName, SHARED_LOCK, descriptor);
+        } else {
+            for (int i = 0; i < protectCounter; ++i) {
+                container.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "protect$" + i,
+                    "Ljava/lang/Object;", null, null);
+                init.visitTypeInsn(NEW, "java/lang/Object");
+                init.visitInsn(DUP);
+                init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+                init.visitFieldInsn(PUTSTATIC, containerName, "protect$" + i, "Ljava/lang/Object;");
+            }
+        }
+        init.visitInsn(RETURN);
+        init.visitMaxs(-1, -1);
+        init.visitEnd();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A protect block enclosing the code being emitted.
+     */
+    private static final class Protect
+    {
+        final ProtectBlockNode node;
+
+        /** Whether the block uses the lock shared by all protect blocks ({@link #SHARED_LOCK}). */
+        final boolean shared;
+
+        /** Index of the variable holding the monitor of the block, if not {@link #shared}. */
+        int lockVariable;
+
+        /** End of the block, where the lock is released. */
+        final Label end = new Label();
+
+        Protect (ProtectBlockNode node, boolean shared) {
+            this.node = node;
+            this.shared = shared;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Finds the variables of the root scope declared by {@code launch var}, and those whose static
+     * field must be volatile: if the program launches tasks, the variables used in functions.
+     */
+    private void findGlobals (RootNode node)
+    {
+        boolean[] launches = { false };
+        ArrayList<FunDeclarationNode> functions = new ArrayList<>();
+        ReflectiveFieldWalker<SighNode> walker
+            = new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, child -> {
+            if (child instanceof LaunchNode)
+                launches[0] = true;
+            else if (child instanceof LaunchStateNode) {
+                launches[0] = true;
+                VarDeclarationNode decl = ((LaunchStateNode) child).varDeclaration;
+                if (global(decl))
+                    launchedGlobals.add(decl);
+            }
+            else if (child instanceof FunDeclarationNode)
+                functions.add((FunDeclarationNode) child);
+        });
+        walker.walk(node);
+        if (!launches[0])
+            return;
+
+        ReflectiveFieldWalker<SighNode> references
+            = new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        references.registerFallback(PRE_VISIT, child -> {
+            if (child instanceof ReferenceNode) {
+                DeclarationNode decl = tables.decl(child);
+                if (global(decl))
+                    volatileGlobals.add(decl);
+            }
+        });
+        functions.forEach(function -> references.walk(function.block));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * If {@code node} contains a {@code launch}, allocates the variable that holds the task scope
+     * of the method and emits its initialization. Must be called at the start of a method, before
+     * the code of {@code node} is emitted.
+     */
+    private void openTasks (SighNode node)
+    {
+        boolean[] launches = { false };
+        ReflectiveFieldWalker<SighNode> walker
+            = new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        // also finds the launches of nested functions, for which the scope is merely unused
+        walker.registerFallback(PRE_VISIT, child -> {
+            if (child instanceof LaunchNode || child instanceof LaunchStateNode)
+                launches[0] = true;
+        });
+        walker.walk(node);
+
+        if (!launches[0]) {
+            tasksVariable = -1;
+            return;
+        }
+        tasksVariable = variableCounter++;
+        invokeStatic(method, SighRuntime.class, "tasks");
+        method.visitVarInsn(ASTORE, tasksVariable);
+        tasksStart = new Label();
+        method.visitLabel(tasksStart);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the join of the tasks launched by the current method, if any.
+     */
+    private void joinTasks ()
+    {
+        if (tasksVariable < 0)
+            return;
+        method.visitVarInsn(ALOAD, tasksVariable);
+        loadConstant(method, 1);
+        invokeStatic(method, SighRuntime.class, "join", TaskScope.class, boolean.class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the exception handler that joins the tasks launched by the current method (cancelling
+     * them) if it throws. Must be called after the code of the method has been emitted.
+     */
+    private void closeTasks ()
+    {
+        if (tasksVariable < 0)
+            return;
+        Label end = new Label();
+        Label handler = new Label();
+        method.visitLabel(end);
+        method.visitLabel(handler);
+        method.visitVarInsn(ALOAD, tasksVariable);
+        loadConstant(method, 0);
+        invokeStatic(method, SighRuntime.class, "join", TaskScope.class, boolean.class);
+        method.visitInsn(ATHROW);
+        // registered last, so that the handlers of the protect blocks take precedence
+        tryCatchAll(tasksStart, end, handler);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers an exception handler for all exceptions thrown between {@code start} and {@code
+     * end} (which must have been visited), unless the range is empty.
+     */
+    private void tryCatchAll (Label start, Label end, Label handler)
+    {
+        if (start.getOffset() != end.getOffset())
+            method.visitTryCatchBlock(start, end, handler, null);
+    }
+
     // =============================================================================================
     // region [Utilities]
     // =============================================================================================
@@ -859,7 +1946,7 @@ public class BytecodeCompiler
      * given node.
      */
     private org.objectweb.asm.Type nodeAsmType (SighNode node) {
-        return asmType(reactor.get(node, "type"));
+        return asmType(tables.type(node));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -868,7 +1955,7 @@ public class BytecodeCompiler
      * Return the JVM field descriptor for the given node, which must have a {@code type} attribute.
      */
     private String nodeFieldDescriptor (SighNode node) {
-        return fieldDescriptor(reactor.get(node, "type"));
+        return fieldDescriptor(tables.type(node));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -891,17 +1978,88 @@ public class BytecodeCompiler
     private int registerVariable (DeclarationNode node, org.objectweb.asm.Type type) {
         int index = variableCounter;
         variableCounter += type.getSize();
-        variables.put(new Pair<>(reactor.get(node, "scope"), node.name()), index);
+        variables.put(variableKey(node), index);
         return index;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns the variable index for the given reference, which must be a reference to a variable.
+     * Whether the given declaration is a variable declared in the root scope, which is held in a
+     * static field of the container class.
+     */
+    private boolean global (DeclarationNode node) {
+        return node instanceof VarDeclarationNode && tables.scope(node) instanceof RootScope;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Declares the variable introduced by the given declaration: the static field of a global
+     * variable, or else a local variable (cf. {@link #registerVariable(DeclarationNode)}).
+     */
+    private void declareVariable (VarDeclarationNode node)
+    {
+        if (!global(node)) {
+            registerVariable(node);
+            return;
+        }
+        int access = ACC_PUBLIC | ACC_STATIC;
+        if (volatileGlobals.contains(node))
+            access |= ACC_VOLATILE;
+        container.visitField(access, node.name, nodeFieldDescriptor(node), null, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the load of the variable introduced by the given declaration (which must be a {@link
+     * VarDeclarationNode} or {@link ParameterNode}).
      */
-    private int varIndex (ReferenceNode node) {
-        return variables.get(new Pair<>((Scope) reactor.get(node, "scope"), node.name));
+    private void loadVariable (DeclarationNode node)
+    {
+        if (global(node))
+            method.visitFieldInsn(GETSTATIC, containerName, node.name(), nodeFieldDescriptor(node));
+        else {
+            int index = variables.get(variableKey(node));
+            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), index);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the store of the value on top of the stack to the variable introduced by the given
+     * declaration (which must be a {@link VarDeclarationNode} or {@link ParameterNode}).
+     */
+    private void storeVariable (DeclarationNode node)
+    {
+        if (global(node))
+            method.visitFieldInsn(PUTSTATIC, containerName, node.name(), nodeFieldDescriptor(node));
+        else {
+            int index = variables.get(variableKey(node));
+            method.visitVarInsn(nodeAsmType(node).getOpcode(ISTORE), index);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the key of the local variable introduced by the given declaration in {@link
+     * #variables}.
+     */
+    private Pair<Scope, String> variableKey (DeclarationNode node) {
+        return new Pair<>(tables.scope(node), node.name());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the static field holding the task of a global variable declared by
+     * {@code launch var}.
+     */
+    private static String taskField (DeclarationNode node) {
+        return node.name() + "$task";
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -909,23 +2067,59 @@ public class BytecodeCompiler
     /**
      * Implicitly converts the value at the top of the stack (of type {@code right}) to the type
      * {@code left} if compatible, in which case {@code left} is returned. Otherwise returns {@code
-     * right}.
+     * right}. Arrays with {@code Int} components are copied to arrays with {@code Float}
+     * components, as in the interpreters.
      */
     private Type implicitConversion (Type left, Type right) {
         if (left instanceof FloatType && right instanceof IntType) {
             method.visitInsn(L2D);
             return left;
         }
+        if (left instanceof ArrayType && right instanceof ArrayType
+                && leafType(left) instanceof FloatType && leafType(right) instanceof IntType) {
+            invokeStatic(method, SighRuntime.class, "floats", Object.class);
+            method.visitTypeInsn(CHECKCAST, asmType(left).getInternalName());
+            return left;
+        }
         return right;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the type of the components of the innermost arrays of the given type, or the type
+     * itself if it isn't an array type.
+     */
+    private static Type leafType (Type type) {
+        while (type instanceof ArrayType)
+            type = ((ArrayType) type).componentType;
+        return type;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Like {@link #implicitConversion(Type, Type)}, using the type attributes of the passed nodes.
      */
     private Type implicitConversion (SighNode left, SighNode right) {
-        return implicitConversion((Type) reactor.get(left,  "type"), reactor.get(right, "type"));
+        return implicitConversion(tables.type(left), tables.type(right));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the constant for the default value of variables of the given type, which {@code
+     * launch var} variables hold before they are awaited.
+     */
+    private Object defaultValue (Type type) {
+        if (type instanceof IntType)
+            return 0L;
+        else if (type instanceof FloatType)
+            return 0d;
+        else if (type instanceof BoolType)
+            return 0;
+        else
+            return null;
     }
 
     // ---------------------------------------------------------------------------------------------
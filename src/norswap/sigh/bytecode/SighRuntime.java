@@ -1,7 +1,29 @@
 package norswap.sigh.bytecode;
 
+import norswap.sigh.ast.BinaryOperator;
+import norswap.sigh.interpreter.LaunchScheduler;
+import norswap.sigh.interpreter.MatrixProduct;
+import norswap.sigh.interpreter.ParallelBuiltins;
+import norswap.sigh.interpreter.TaskScope;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
 public final class SighRuntime
 {
+    /**
+     * The scheduler in which the tasks launched by compiled programs run. As for the interpreters,
+     * programs whose tasks block on each other should use {@link LaunchScheduler#VIRTUAL}.
+     */
+    private static volatile LaunchScheduler scheduler = LaunchScheduler.FIXED;
     /**
      * Concatenates two strings. Using this method in the generated bytecode is much simpler
      * than emitting a whole slew of instructions as Java does (see
@@ -22,4 +44,336 @@ public final class SighRuntime
         System.out.println(string);
         return string;
     }
+
+    /**
+     * Sets the scheduler in which the tasks launched by compiled programs run from now on.
+     */
+    public static void setScheduler (LaunchScheduler scheduler) {
+        SighRuntime.scheduler = scheduler;
+    }
+
+    /**
+     * Returns a new scope for the tasks launched by a function (or by the program's top level).
+     * Compiled code only creates a scope in functions that contain {@code launch}.
+     */
+    public static TaskScope tasks () {
+        return new TaskScope(scheduler.executor(), null);
+    }
+
+    /**
+     * Implementation of {@code launch f(...)}: runs {@code body} (a call with its arguments
+     * already evaluated) as a task of {@code scope}.
+     */
+    public static void launch (TaskScope scope, Runnable body) {
+        scope.launch(body);
+    }
+
+    /**
+     * Implementation of {@code launch var x: T = f(...)}: runs {@code body} as a task of {@code
+     * scope}, and returns the handle through which {@link #await} gets its result.
+     */
+    public static Launched launchVar (TaskScope scope, Supplier<Object> body) {
+        Launched launched = new Launched(body);
+        launched.task = scope.launch(launched);
+        return launched;
+    }
+
+    /**
+     * Implementation of {@code wait(x)} for a variable initialized by {@link #launchVar}: waits
+     * for the task (or runs it in the calling thread if it hasn't started yet) and returns its
+     * result. If the task failed, its exception is rethrown.
+     */
+    public static Object await (Launched launched) {
+        launched.task.run();
+        try {
+            launched.task.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+        return launched.value;
+    }
+
+    /**
+     * Waits for the tasks launched by a function before it returns, and rethrows the first
+     * failure of these tasks, if any. If {@code completed} is false (the function terminates
+     * because of an exception), the tasks that haven't started are cancelled and failures are
+     * ignored, as the exception will propagate anyway.
+     */
+    public static void join (TaskScope scope, boolean completed) {
+        Throwable failure = scope.settle(completed);
+        if (completed && failure != null)
+            throw rethrow(failure);
+    }
+
+    private static RuntimeException rethrow (Throwable throwable) {
+        if (throwable instanceof Error)
+            throw (Error) throwable;
+        if (throwable instanceof RuntimeException)
+            throw (RuntimeException) throwable;
+        // the compiled code can't throw checked exceptions
+        throw new Error("should not reach here", throwable);
+    }
+
+    /**
+     * Enters a {@code protect read} block. Only used in programs that contain such blocks, in
+     * which all the protect blocks share {@code lock}.
+     */
+    public static void enterRead (ReentrantReadWriteLock lock) {
+        lock.readLock().lock();
+    }
+
+    public static void exitRead (ReentrantReadWriteLock lock) {
+        lock.readLock().unlock();
+    }
+
+    /**
+     * Enters a {@code protect} block in a program that contains {@code protect read} blocks.
+     * Throws an {@link IllegalStateException} if the thread is already in a read-only block, as
+     * the lock can't be upgraded (the interpreters report the same error).
+     */
+    public static void enterWrite (ReentrantReadWriteLock lock) {
+        if (lock.getReadHoldCount() > 0)
+            throw new IllegalStateException(
+                "executing a protect block inside a read-only protect block");
+        lock.writeLock().lock();
+    }
+
+    public static void exitWrite (ReentrantReadWriteLock lock) {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * Throws if the operands of an element-wise array operation do not have the same length (with
+     * the same error as the interpreters).
+     */
+    public static void checkLengths (int left, int right) {
+        if (left != right)
+            throw new Error("The two arrays must have the same length: array1.length is "
+                + left + " and array2.length is " + right);
+    }
+
+    /**
+     * Computes the element-wise operation ({@code +}, {@code -}, {@code *} or {@code /}) between
+     * two multi-dimensional arrays with the same dimensions. The leaves of the result are {@code
+     * long[]} if the leaves of both operands are, and {@code double[]} otherwise. One-dimensional
+     * operations are compiled to loops instead.
+     */
+    public static Object[] compute (Object[] left, Object[] right, BinaryOperator operator) {
+        checkLengths(left.length, right.length);
+        Class<?> type = promoted(left.getClass(), right.getClass());
+        Object[] result = (Object[]) Array.newInstance(type.getComponentType(), left.length);
+        for (int i = 0; i < result.length; ++i)
+            result[i] = compute(left[i], right[i], operator);
+        return result;
+    }
+
+    private static Object compute (Object left, Object right, BinaryOperator operator) {
+        if (left instanceof Object[])
+            return compute((Object[]) left, (Object[]) right, operator);
+        if (left instanceof long[] && right instanceof long[])
+            return compute((long[]) left, (long[]) right, operator);
+        return compute((double[]) floats(left), (double[]) floats(right), operator);
+    }
+
+    private static long[] compute (long[] left, long[] right, BinaryOperator operator) {
+        checkLengths(left.length, right.length);
+        long[] result = new long[left.length];
+        switch (operator) {
+            case ADD:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] + right[i];
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] - right[i];
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] * right[i];
+                break;
+            case DIVIDE:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] / right[i];
+                break;
+            default: throw new Error("Operand not supported, use among : + ; - ; * ; /");
+        }
+        return result;
+    }
+
+    private static double[] compute (double[] left, double[] right, BinaryOperator operator) {
+        checkLengths(left.length, right.length);
+        double[] result = new double[left.length];
+        switch (operator) {
+            case ADD:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] + right[i];
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] - right[i];
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] * right[i];
+                break;
+            case DIVIDE:
+                for (int i = 0; i < result.length; ++i) result[i] = left[i] / right[i];
+                break;
+            default: throw new Error("Operand not supported, use among : + ; - ; * ; /");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the class of the result of an element-wise operation between arrays of the given
+     * classes.
+     */
+    private static Class<?> promoted (Class<?> left, Class<?> right) {
+        if (left == long[].class && right == long[].class)
+            return long[].class;
+        if (left.getComponentType().isPrimitive() || right.getComponentType().isPrimitive())
+            return double[].class;
+        return promoted(left.getComponentType(), right.getComponentType()).arrayType();
+    }
+
+    /**
+     * Implementation of the matrix product ({@code @}) between two 2-dimensional numeric arrays,
+     * using the tiled (and for large products, parallel) kernel of the interpreters.
+     */
+    public static double[][] matrixProduct (Object[] left, Object[] right) {
+        Object[] rows = MatrixProduct.multiply(left, right);
+        double[][] result = new double[rows.length][];
+        System.arraycopy(rows, 0, result, 0, rows.length);
+        return result;
+    }
+
+    /**
+     * Converts an array with {@code Int} components (possibly nested) to an array with {@code
+     * Float} components, when it is stored in a location of such a type. Arrays whose leaves are
+     * already {@code double[]} are returned as is.
+     */
+    public static Object floats (Object array) {
+        if (array instanceof long[]) {
+            long[] longs = (long[]) array;
+            double[] result = new double[longs.length];
+            for (int i = 0; i < longs.length; ++i)
+                result[i] = longs[i];
+            return result;
+        }
+        if (!(array instanceof Object[]) || array.getClass() == Object[].class)
+            return array;
+        Object[] components = (Object[]) array;
+        Class<?> type = floatClass(array.getClass());
+        if (type == array.getClass())
+            return array;
+        Object[] result = (Object[]) Array.newInstance(type.getComponentType(), components.length);
+        for (int i = 0; i < components.length; ++i)
+            result[i] = floats(components[i]);
+        return result;
+    }
+
+    private static Class<?> floatClass (Class<?> type) {
+        if (type == long[].class)
+            return double[].class;
+        if (!type.isArray() || type.getComponentType().isPrimitive())
+            return type;
+        return floatClass(type.getComponentType()).arrayType();
+    }
+
+    /**
+     * Bootstrap method of the {@code invokedynamic} instructions that call function values (method
+     * handles), whose type is that of the function preceded by the {@link MethodHandle}.
+     */
+    public static CallSite callSite (MethodHandles.Lookup lookup, String name, MethodType type) {
+        return new InlineCache(type);
+    }
+
+    /**
+     * Implementation of {@code pmap}, {@code preduce} and {@code pfor}: runs {@code body} (which
+     * calls a kernel generated for the call) for each chunk of {@code [0, count)}, in parallel,
+     * and rethrows the first failure of the chunks, if any.
+     */
+    public static void parallel (long count, ParallelBuiltins.ChunkBody body) {
+        if (count <= 0)
+            return;
+        TaskScope scope = tasks();
+        ParallelBuiltins.launch(scope, count, body);
+        join(scope, true);
+    }
+
+    /**
+     * Returns the number of chunks that {@link #parallel} uses for the given count, which is the
+     * number of partial results of {@code preduce}.
+     */
+    public static int chunks (int count) {
+        return Math.min(count, ParallelBuiltins.CHUNKS);
+    }
+
+    /**
+     * A call site that calls the function value passed as its first argument, with a polymorphic
+     * inline cache. Each function value that reaches the site adds a guard (an identity test)
+     * followed by a direct call to the function, which the JIT compiler can inline, in front of
+     * the previous target. After {@link #DEPTH} function values, the site becomes megamorphic and
+     * invokes the function values through a generic invoker.
+     */
+    private static final class InlineCache extends MutableCallSite
+    {
+        private static final int DEPTH = 4;
+        private static final MethodHandle FALLBACK;
+        private static final MethodHandle SAME;
+
+        static {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                FALLBACK = lookup.findVirtual(InlineCache.class, "fallback",
+                    MethodType.methodType(Object.class, Object[].class));
+                SAME = lookup.findStatic(InlineCache.class, "same", MethodType.methodType(
+                    boolean.class, MethodHandle.class, MethodHandle.class));
+            } catch (ReflectiveOperationException e) {
+                throw new Error(e);
+            }
+        }
+
+        private int depth = 0;
+
+        private InlineCache (MethodType type) {
+            super(type);
+            setTarget(FALLBACK.bindTo(this)
+                .asCollector(Object[].class, type.parameterCount())
+                .asType(type));
+        }
+
+        private static boolean same (MethodHandle expected, MethodHandle function) {
+            return expected == function;
+        }
+
+        /** Called when the function value isn't in the cache: adds it, then calls it. */
+        private Object fallback (Object[] args) throws Throwable {
+            MethodHandle function = (MethodHandle) args[0];
+            MethodType functionType = type().dropParameterTypes(0, 1);
+            MethodHandle target = function.asType(functionType);
+            // races between threads at most add duplicate guards
+            if (depth < DEPTH) {
+                ++depth;
+                setTarget(MethodHandles.guardWithTest(
+                    MethodHandles.insertArguments(SAME, 0, function),
+                    MethodHandles.dropArguments(target, 0, MethodHandle.class),
+                    getTarget()));
+            } else {
+                setTarget(MethodHandles.invoker(functionType));
+            }
+            return target.invokeWithArguments(Arrays.copyOfRange(args, 1, args.length));
+        }
+    }
+
+    /**
+     * The task launched by {@code launch var}, which records the result of the call.
+     */
+    public static final class Launched implements Runnable
+    {
+        private final Supplier<Object> body;
+        private TaskScope.Task task;
+        private volatile Object value;
+
+        private Launched (Supplier<Object> body) {
+            this.body = body;
+        }
+
+        @Override public void run () {
+            value = body.get();
+        }
+    }
 }
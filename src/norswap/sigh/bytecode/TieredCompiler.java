@@ -0,0 +1,315 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.AttributeTables;
+import norswap.sigh.ast.*;
+import norswap.sigh.interpreter.CompiledTier;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.Null;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.*;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * The {@link CompiledTier} of the {@link Interpreter}: compiles the functions that get hot to
+ * bytecode, with {@link BytecodeCompiler}.
+ *
+ * <p>A function gets hot once it has been called or has iterated a loop {@code threshold} times
+ * (summed). It is then compiled on the {@code compiler} executor (a background thread by default),
+ * together with the functions it calls, while the interpreter goes on interpreting it. The calls
+ * made after the compilation completes run the compiled code. There is no on-stack replacement: a
+ * call that is running a loop when its function is compiled finishes in the interpreter.
+ *
+ * <p>Compiled code only shares values with the interpreter through the arguments and the result of
+ * the function, so only the functions that are self-contained are compiled: the functions (and
+ * the functions they call) must not use variables declared outside of them (global variables and
+ * closures), structures, channels, tasks or protect blocks, and their parameters and result must
+ * have a type whose representation is the same in both tiers (primitive types, strings and
+ * arrays of primitive types). The other functions remain interpreted.
+ */
+public final class TieredCompiler implements CompiledTier
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of calls and loop iterations after which a function gets compiled by default. */
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The builtins that compiled functions can use. */
+    private static final HashSet<String> BUILTINS = new HashSet<>(Arrays.asList(
+        "print", "true", "false", "null", "pmap", "preduce", "pfor"));
+
+    // ---------------------------------------------------------------------------------------------
+
+    private enum State { INTERPRETED, QUEUED, COMPILED, FAILED }
+
+    private static final class Entry
+    {
+        /** Calls and loop iterations so far. Racy, since it only needs to be roughly right. */
+        int count;
+        volatile State state = State.INTERPRETED;
+        volatile Function<Object[], Object> compiled;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Executor BACKGROUND = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+        thread.setDaemon(true);
+        thread.setName("sigh-tiered-compiler");
+        return thread;
+    });
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final AttributeTables tables;
+    private final int threshold;
+    private final Executor compiler;
+    private final ConcurrentHashMap<FunDeclarationNode, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger classCounter = new AtomicInteger();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a tier for the interpreter that reads its attributes from {@code tables}, which
+     * compiles the functions after {@code threshold} calls and loop iterations, on {@code compiler}
+     * ({@code Runnable::run} compiles in the interpreter's thread, before the next call).
+     */
+    public TieredCompiler (AttributeTables tables, int threshold, Executor compiler) {
+        this.tables = tables;
+        this.threshold = threshold;
+        this.compiler = compiler;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a tier that compiles the functions after {@link #DEFAULT_THRESHOLD} calls and loop
+     * iterations, on a background thread.
+     */
+    public TieredCompiler (AttributeTables tables) {
+        this(tables, DEFAULT_THRESHOLD, BACKGROUND);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether calls to the given function now run its compiled version.
+     */
+    public boolean isCompiled (FunDeclarationNode function) {
+        Entry entry = entries.get(function);
+        return entry != null && entry.state == State.COMPILED;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Function<Object[], Object> call (FunDeclarationNode function)
+    {
+        Entry entry = entry(function);
+        Function<Object[], Object> compiled = entry.compiled;
+        if (compiled != null)
+            return compiled;
+        tick(function, entry);
+        return entry.compiled; // set if compiled synchronously
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void backEdge (FunDeclarationNode function) {
+        Entry entry = entry(function);
+        if (entry.compiled == null)
+            tick(function, entry);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Entry entry (FunDeclarationNode function) {
+        Entry entry = entries.get(function);
+        return entry != null ? entry : entries.computeIfAbsent(function, k -> new Entry());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void tick (FunDeclarationNode function, Entry entry)
+    {
+        if (++entry.count < threshold || entry.state != State.INTERPRETED)
+            return;
+        synchronized (entry) {
+            if (entry.state != State.INTERPRETED)
+                return;
+            entry.state = State.QUEUED;
+        }
+        compiler.execute(() -> compile(function, entry));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void compile (FunDeclarationNode function, Entry entry)
+    {
+        try {
+            entry.compiled = adapter(function, load(function, units(function)));
+            entry.state = State.COMPILED;
+        } catch (Throwable t) {
+            // not compilable: interpret forever
+            entry.state = State.FAILED;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the functions to compile along with {@code function}: itself and the functions it
+     * calls, directly or not, excluding those that are nested in another one of them. Throws
+     * {@link UnsupportedOperationException} if one of them can't be compiled.
+     */
+    private List<FunDeclarationNode> units (FunDeclarationNode function)
+    {
+        FunType type = (FunType) tables.type(function);
+        for (Type paramType: type.paramTypes)
+            checkShared(paramType);
+        if (!(type.returnType instanceof VoidType))
+            checkShared(type.returnType);
+
+        LinkedHashSet<FunDeclarationNode> units = new LinkedHashSet<>();
+        HashSet<FunDeclarationNode> nested = new HashSet<>();
+        ArrayDeque<FunDeclarationNode> worklist = new ArrayDeque<>();
+        worklist.add(function);
+
+        while (!worklist.isEmpty()) {
+            FunDeclarationNode unit = worklist.poll();
+            if (!units.add(unit))
+                continue;
+
+            ArrayList<SighNode> nodes = new ArrayList<>();
+            ReflectiveFieldWalker<SighNode> walker
+                = new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+            walker.registerFallback(PRE_VISIT, nodes::add);
+            walker.walk(unit);
+
+            HashSet<DeclarationNode> declared = new HashSet<>();
+            for (SighNode node: nodes)
+                if (node instanceof DeclarationNode)
+                    declared.add((DeclarationNode) node);
+
+            for (SighNode node: nodes) {
+                if (node instanceof FunDeclarationNode && node != unit)
+                    nested.add((FunDeclarationNode) node);
+                if (node instanceof ConstructorNode || node instanceof ChannelConstructorNode
+                        || node instanceof LaunchNode || node instanceof LaunchStateNode
+                        || node instanceof ProtectBlockNode)
+                    throw new UnsupportedOperationException(node.getClass().getSimpleName());
+                if (node instanceof ReferenceNode)
+                    checkReference(tables.decl(node), declared, worklist);
+            }
+        }
+
+        units.removeAll(nested);
+        return new ArrayList<>(units);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void checkReference (
+            DeclarationNode decl, HashSet<DeclarationNode> declared,
+            ArrayDeque<FunDeclarationNode> worklist)
+    {
+        if (decl instanceof FunDeclarationNode) {
+            if (!declared.contains(decl))
+                worklist.add((FunDeclarationNode) decl);
+        }
+        else if (decl instanceof SyntheticDeclarationNode) {
+            if (!BUILTINS.contains(decl.name()))
+                throw new UnsupportedOperationException("builtin: " + decl.name());
+        }
+        else if (decl instanceof StructDeclarationNode || !declared.contains(decl))
+            throw new UnsupportedOperationException("reference to: " + decl.name());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that values of the given type have the same representation in the interpreter and in
+     * compiled code.
+     */
+    private static void checkShared (Type type)
+    {
+        if (type instanceof ArrayType) {
+            Type component = ((ArrayType) type).componentType;
+            if (component instanceof IntType || component instanceof FloatType
+                    || component instanceof BoolType)
+                return;
+        }
+        else if (type instanceof IntType || type instanceof FloatType
+                || type instanceof BoolType || type instanceof StringType)
+            return;
+        throw new UnsupportedOperationException("parameter or result of type: " + type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the given functions into a new class, and returns the method compiled for {@code
+     * function}.
+     */
+    private MethodHandle load (FunDeclarationNode function, List<FunDeclarationNode> units)
+        throws ReflectiveOperationException
+    {
+        RootNode root = new RootNode(function.span, new ArrayList<StatementNode>(units));
+        String name = "SighTier" + classCounter.incrementAndGet();
+        Class<?> container = new BytecodeCompiler(tables)
+            .compile(name, root)
+            .load(new ByteArrayClassLoader());
+        String descriptor = TypeUtils.methodDescriptor((FunType) tables.type(function));
+        MethodType type = MethodType.fromMethodDescriptorString(
+            descriptor, container.getClassLoader());
+        return MethodHandles.publicLookup().findStatic(container, function.name, type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adapts the compiled method to the calling convention of {@link CompiledTier#call}, which
+     * represents null with {@link Null#INSTANCE}.
+     */
+    private static Function<Object[], Object> adapter (FunDeclarationNode function,
+            MethodHandle method)
+    {
+        boolean returnsValue = method.type().returnType() != void.class;
+        MethodHandle spread = method
+            .asSpreader(Object[].class, function.parameters.size())
+            .asType(MethodType.methodType(Object.class, Object[].class));
+
+        return args -> {
+            for (int i = 0; i < args.length; ++i)
+                if (args[i] == Null.INSTANCE)
+                    args[i] = null;
+            Object result;
+            try {
+                result = (Object) spread.invokeExact(args);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new Error("should not reach here", t);
+            }
+            return result == null && returnsValue ? Null.INSTANCE : result;
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
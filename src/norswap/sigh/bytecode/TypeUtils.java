@@ -1,6 +1,7 @@
 package norswap.sigh.bytecode;
 
 import norswap.sigh.types.*;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Array;
 
 /**
@@ -47,7 +48,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return Type.class;
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return MethodHandle.class;
         else if (type instanceof StructType)
             return Object.class; // the proper class type is not available at compile time
         else
@@ -82,7 +83,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return Type[].class;
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return MethodHandle[].class;
         else if (type instanceof StructType)
             return Object[].class; // the proper class type is not available at compile time
         else
@@ -113,7 +114,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return "Lnorswap/sigh/types/Type;";
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return "Ljava/lang/invoke/MethodHandle;";
         else if (type instanceof StructType)
             return "L" + structBinaryName((StructType) type) + ";";
         else
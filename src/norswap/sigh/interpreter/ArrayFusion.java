@@ -0,0 +1,328 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.BinaryExpressionNode;
+import norswap.sigh.ast.BinaryOperator;
+import norswap.sigh.ast.ExpressionNode;
+import norswap.sigh.ast.ParenthesizedNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Fused evaluation of a tree of element-wise array operations ({@code +}, {@code -}, {@code *}
+ * and {@code /} between arrays), such as {@code a + b * c - d}, for both {@link Interpreter} and
+ * {@link ClosureInterpreter}.
+ *
+ * <p>Instead of allocating an intermediate array for each operator (cf. {@link
+ * ArrayValues#compute(Object, Object, BinaryOperator)}), the operands at the leaves of the tree
+ * are evaluated first (from left to right), then the whole tree is computed in a single pass
+ * over the indices, into a single result array. The pass proceeds by blocks of {@link #BLOCK}
+ * indices, whose intermediate results are kept in small scratch buffers.
+ *
+ * <p>The result is the same as with separate operations: an operation yields {@code long}s if
+ * both its operands are {@code long[]} (or yield {@code long}s), and {@code double}s otherwise.
+ * Multi-dimensional arrays are handled recursively, and large operations run in parallel (cf.
+ * {@link ArrayParallelism}).
+ */
+final class ArrayFusion
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of indices computed at once. */
+    private static final int BLOCK = 256;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The operands at the leaves of the tree, in evaluation order.
+     */
+    final List<ExpressionNode> leaves = new ArrayList<>();
+
+    private final Term root;
+    private int operations;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ArrayFusion (BinaryExpressionNode node, Function<SighNode, Type> types) {
+        this.root = term(node, types);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the fused form of the tree rooted at the given node, or null if the node is not an
+     * element-wise array operation with at least one operand that is itself such an operation.
+     */
+    static ArrayFusion of (BinaryExpressionNode node, Function<SighNode, Type> types)
+    {
+        if (!isElementWise(node, types)
+                || !isElementWise(unwrap(node.left), types)
+                    && !isElementWise(unwrap(node.right), types))
+            return null;
+        return new ArrayFusion(node, types);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isElementWise (ExpressionNode node, Function<SighNode, Type> types)
+    {
+        if (!(node instanceof BinaryExpressionNode))
+            return false;
+        BinaryExpressionNode binary = (BinaryExpressionNode) node;
+        BinaryOperator operator = binary.operator;
+        return (operator == BinaryOperator.ADD || operator == BinaryOperator.SUBTRACT
+                || operator == BinaryOperator.MULTIPLY || operator == BinaryOperator.DIVIDE)
+            && types.apply(binary.left) instanceof ArrayType
+            && types.apply(binary.right) instanceof ArrayType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static ExpressionNode unwrap (ExpressionNode node)
+    {
+        while (node instanceof ParenthesizedNode)
+            node = ((ParenthesizedNode) node).expression;
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Term term (ExpressionNode node, Function<SighNode, Type> types)
+    {
+        node = unwrap(node);
+        if (!isElementWise(node, types)) {
+            leaves.add(node);
+            return new Leaf(leaves.size() - 1);
+        }
+        BinaryExpressionNode binary = (BinaryExpressionNode) node;
+        Term left = term(binary.left, types);
+        Term right = term(binary.right, types);
+        return new Operation(binary.operator, left, right, operations++);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the tree given the (non-null) values of its {@link #leaves}.
+     */
+    Object evaluate (Object[] values)
+    {
+        int length = ArrayValues.length(values[0]);
+        boolean nested = true;
+        boolean numeric = true;
+
+        for (Object value: values) {
+            if (ArrayValues.length(value) != length)
+                throw new Error("The two arrays must have the same length: array1.length is "
+                    + length + " and array2.length is " + ArrayValues.length(value));
+            nested &= value instanceof Object[];
+            numeric &= value instanceof long[] || value instanceof double[];
+        }
+
+        if (nested) {
+            Object[] result = new Object[length];
+            long cost = length == 0 ? 1 : ArrayValues.elementCount(((Object[]) values[0])[0]);
+            ArrayParallelism.run(length, cost, (lo, hi) -> {
+                Object[] components = new Object[values.length];
+                for (int i = lo; i < hi; i++) {
+                    for (int j = 0; j < values.length; j++)
+                        components[j] = ((Object[]) values[j])[i];
+                    result[i] = evaluate(components);
+                }
+            });
+            return result;
+        }
+
+        if (!numeric) {
+            if (length == 0)
+                return new Object[0];
+            throw new Error("Operand not supported, use among : + ; - ; * ; / or types of array1 "
+                + "and array2 are different from :"
+                + "Float - Integer / Integer - Float / Float - Float / Integer - Integer");
+        }
+
+        boolean[] integer = new boolean[operations];
+        Object result = root.resolve(values, integer) ? new long[length] : new double[length];
+        ArrayParallelism.run(length, 1, (lo, hi) -> {
+            Scratch scratch = new Scratch(values, integer);
+            for (int start = lo; start < hi; start += BLOCK) {
+                int n = Math.min(BLOCK, hi - start);
+                if (result instanceof long[])
+                    root.longs(scratch, start, n, (long[]) result, start);
+                else
+                    root.doubles(scratch, start, n, (double[]) result, start);
+            }
+        });
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The state of a single-dimensional pass: the values of the leaves, whether each operation
+     * yields {@code long}s, and buffers (allocated on demand) for the intermediate results of each
+     * operation.
+     */
+    private static final class Scratch
+    {
+        final Object[] values;
+        final boolean[] integer;
+        final long[][] longs, integers;
+        final double[][] doubles;
+
+        Scratch (Object[] values, boolean[] integer) {
+            this.values = values;
+            this.integer = integer;
+            this.longs = new long[integer.length][];
+            this.integers = new long[integer.length][];
+            this.doubles = new double[integer.length][];
+        }
+
+        /** Buffer for the right operand of the given operation, computed as {@code long}s. */
+        long[] longs (int operation) {
+            long[] buffer = longs[operation];
+            return buffer != null ? buffer : (longs[operation] = new long[BLOCK]);
+        }
+
+        /** Buffer for the right operand of the given operation, computed as {@code double}s. */
+        double[] doubles (int operation) {
+            double[] buffer = doubles[operation];
+            return buffer != null ? buffer : (doubles[operation] = new double[BLOCK]);
+        }
+
+        /** Buffer for the result of an integer operation that must be converted to doubles. */
+        long[] integers (int operation) {
+            long[] buffer = integers[operation];
+            return buffer != null ? buffer : (integers[operation] = new long[BLOCK]);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A node of the fused tree. Computes the {@code n} components starting at index {@code lo},
+     * into {@code out} starting at index {@code offset}.
+     */
+    private static abstract class Term
+    {
+        /**
+         * Returns whether the term yields {@code long}s, recording the answer for each operation.
+         */
+        abstract boolean resolve (Object[] values, boolean[] integer);
+
+        abstract void longs (Scratch scratch, int lo, int n, long[] out, int offset);
+
+        abstract void doubles (Scratch scratch, int lo, int n, double[] out, int offset);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Leaf extends Term
+    {
+        final int index;
+
+        Leaf (int index) {
+            this.index = index;
+        }
+
+        @Override boolean resolve (Object[] values, boolean[] integer) {
+            return values[index] instanceof long[];
+        }
+
+        @Override void longs (Scratch scratch, int lo, int n, long[] out, int offset) {
+            System.arraycopy(scratch.values[index], lo, out, offset, n);
+        }
+
+        @Override void doubles (Scratch scratch, int lo, int n, double[] out, int offset)
+        {
+            Object value = scratch.values[index];
+            if (value instanceof double[]) {
+                System.arraycopy(value, lo, out, offset, n);
+                return;
+            }
+            long[] longs = (long[]) value;
+            for (int i = 0; i < n; i++)
+                out[offset + i] = longs[lo + i];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Operation extends Term
+    {
+        final BinaryOperator operator;
+        final Term left, right;
+        final int id;
+
+        Operation (BinaryOperator operator, Term left, Term right, int id) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.id = id;
+        }
+
+        @Override boolean resolve (Object[] values, boolean[] integer) {
+            boolean l = left.resolve(values, integer);
+            boolean r = right.resolve(values, integer);
+            return integer[id] = l && r;
+        }
+
+        @Override void longs (Scratch scratch, int lo, int n, long[] out, int offset)
+        {
+            long[] r = scratch.longs(id);
+            left.longs(scratch, lo, n, out, offset);
+            right.longs(scratch, lo, n, r, 0);
+            switch (operator) {
+                case ADD:
+                    for (int i = 0; i < n; i++) out[offset + i] += r[i];
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < n; i++) out[offset + i] -= r[i];
+                    break;
+                case MULTIPLY:
+                    for (int i = 0; i < n; i++) out[offset + i] *= r[i];
+                    break;
+                case DIVIDE:
+                    for (int i = 0; i < n; i++) out[offset + i] /= r[i];
+                    break;
+                default:
+                    throw new Error("should not reach here");
+            }
+        }
+
+        @Override void doubles (Scratch scratch, int lo, int n, double[] out, int offset)
+        {
+            if (scratch.integer[id]) {
+                long[] longs = scratch.integers(id);
+                longs(scratch, lo, n, longs, 0);
+                for (int i = 0; i < n; i++)
+                    out[offset + i] = longs[i];
+                return;
+            }
+            double[] r = scratch.doubles(id);
+            left.doubles(scratch, lo, n, out, offset);
+            right.doubles(scratch, lo, n, r, 0);
+            switch (operator) {
+                case ADD:
+                    for (int i = 0; i < n; i++) out[offset + i] += r[i];
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < n; i++) out[offset + i] -= r[i];
+                    break;
+                case MULTIPLY:
+                    for (int i = 0; i < n; i++) out[offset + i] *= r[i];
+                    break;
+                case DIVIDE:
+                    for (int i = 0; i < n; i++) out[offset + i] /= r[i];
+                    break;
+                default:
+                    throw new Error("should not reach here");
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,159 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.BinaryOperator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Configures and implements the parallel execution of element-wise array operations ({@code +},
+ * {@code -}, {@code *} and {@code /} between arrays, cf. {@link ArrayValues#compute}), for both
+ * {@link Interpreter} and {@link ClosureInterpreter}.
+ *
+ * <p>An operation whose operands hold fewer than {@link #threshold()} elements (counting the
+ * elements of nested arrays) runs sequentially on the calling thread. Larger operations are split
+ * into fork/join tasks run in {@link #pool()}: one-dimensional arrays are split into index ranges,
+ * and multi-dimensional arrays are split along their outer dimension. Each task handles at least
+ * {@link #threshold()} elements.
+ *
+ * <p>The same pool and threshold are used by matrix products (cf. {@link MatrixProduct}), whose
+ * cost is measured in multiply-adds rather than in elements.
+ *
+ * <p>By default, the common fork/join pool is used, and the threshold is {@link
+ * #DEFAULT_THRESHOLD}, or the value of the {@code sigh.arrays.threshold} system property if it is
+ * set. Setting the threshold to {@link Integer#MAX_VALUE} disables parallel execution.
+ *
+ * <p>Fused array expressions (cf. {@link ArrayFusion}) are split in the same way.
+ */
+public final class ArrayParallelism
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public static final int DEFAULT_THRESHOLD = 1 << 15;
+
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private static volatile int threshold =
+        Integer.getInteger("sigh.arrays.threshold", DEFAULT_THRESHOLD);
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ArrayParallelism () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the pool in which parallel array operations run.
+     */
+    public static ForkJoinPool pool () {
+        return pool;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the pool in which parallel array operations run.
+     */
+    public static void setPool (ForkJoinPool pool) {
+        ArrayParallelism.pool = pool;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the minimum number of elements for an array operation to run in parallel.
+     */
+    public static int threshold () {
+        return threshold;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the minimum number of elements for an array operation to run in parallel.
+     */
+    public static void setThreshold (int threshold) {
+        if (threshold < 1)
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        ArrayParallelism.threshold = threshold;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Fills {@code result} with the result of the operation between {@code left} and {@code
+     * right}, for all indices. {@code cost} is the number of elements of a single component of
+     * the operands (1 for one-dimensional arrays).
+     */
+    static void run (Object left, Object right, Object result, int length, long cost,
+                     BinaryOperator operator)
+    {
+        run(length, cost, (lo, hi) -> ArrayValues.compute(left, right, result, lo, hi, operator));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the components of an array operation, between indices {@code lo} (inclusive) and
+     * {@code hi} (exclusive).
+     */
+    @FunctionalInterface
+    interface Range {
+        void compute (int lo, int hi);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code range} over the indices from 0 to {@code length}, in parallel if the operation
+     * is large enough. {@code cost} is the number of elements handled for a single index.
+     */
+    static void run (int length, long cost, Range range)
+    {
+        int threshold = ArrayParallelism.threshold;
+        if (length < 2 || length * cost < threshold) {
+            range.compute(0, length);
+            return;
+        }
+
+        int grain = (int) Math.max(1, threshold / cost);
+        Split task = new Split(range, 0, length, grain);
+        if (ForkJoinTask.inForkJoinPool())
+            task.invoke(); // nested operation: run in the current pool
+        else
+            pool.invoke(task);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs a range of indices, splitting it in two halves as long as it is larger than {@code
+     * grain}.
+     */
+    private static final class Split extends RecursiveAction
+    {
+        final Range range;
+        final int lo, hi, grain;
+
+        Split (Range range, int lo, int hi, int grain) {
+            this.range = range;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override protected void compute ()
+        {
+            if (hi - lo <= grain) {
+                range.compute(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(
+                new Split(range, lo, mid, grain),
+                new Split(range, mid, hi, grain));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,307 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.BinaryOperator;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+import java.util.Arrays;
+
+/**
+ * Operations on the runtime representation of arrays, shared by {@link Interpreter} and {@link
+ * ClosureInterpreter}.
+ *
+ * <p>Arrays of {@code Int}, {@code Float} and {@code Bool} are represented by {@code long[]},
+ * {@code double[]} and {@code boolean[]} (like in the code generated by {@link
+ * norswap.sigh.bytecode.BytecodeCompiler}). All other arrays, including multi-dimensional arrays
+ * (whose leaves are primitive arrays), are represented by {@code Object[]}.
+ *
+ * <p>Since an {@code Int[]} can be used where a {@code Float[]} is expected, a {@code long[]} is
+ * converted to a {@code double[]} when it is stored in a location whose type is {@code Float[]}
+ * (see {@link #convert}).
+ */
+final class ArrayValues
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private ArrayValues () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an array whose components have the given (static) type, from the given values.
+     */
+    static Object create (Type componentType, Object[] values)
+    {
+        if (componentType instanceof IntType) {
+            long[] array = new long[values.length];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = (Long) values[i];
+            return array;
+        }
+        if (componentType instanceof FloatType) {
+            double[] array = new double[values.length];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = ((Number) values[i]).doubleValue();
+            return array;
+        }
+        if (componentType instanceof BoolType) {
+            boolean[] array = new boolean[values.length];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = (Boolean) values[i];
+            return array;
+        }
+        if (componentType instanceof ArrayType)
+            for (int i = 0; i < values.length; ++i)
+                values[i] = convert(values[i], (ArrayType) componentType);
+        return values;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static int length (Object array)
+    {
+        if (array instanceof long[])    return ((long[]) array).length;
+        if (array instanceof double[])  return ((double[]) array).length;
+        if (array instanceof boolean[]) return ((boolean[]) array).length;
+        return ((Object[]) array).length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the (boxed) component of the array at the given index.
+     */
+    static Object get (Object array, int index)
+    {
+        if (array instanceof long[])    return ((long[]) array)[index];
+        if (array instanceof double[])  return ((double[]) array)[index];
+        if (array instanceof boolean[]) return ((boolean[]) array)[index];
+        return ((Object[]) array)[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the component of the array at the given index, unboxing the value if needed.
+     */
+    static void set (Object array, int index, Object value)
+    {
+        if (array instanceof long[])
+            ((long[]) array)[index] = (Long) value;
+        else if (array instanceof double[])
+            ((double[]) array)[index] = ((Number) value).doubleValue();
+        else if (array instanceof boolean[])
+            ((boolean[]) array)[index] = (Boolean) value;
+        else
+            ((Object[]) array)[index] = value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static String toString (Object array)
+    {
+        if (array instanceof long[])    return Arrays.toString((long[]) array);
+        if (array instanceof double[])  return Arrays.toString((double[]) array);
+        if (array instanceof boolean[]) return Arrays.toString((boolean[]) array);
+        return Arrays.deepToString((Object[]) array);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether a value whose static type is {@code type} may need to be converted by {@link
+     * Interpreter#convert} before being stored in a location of type {@code type}.
+     */
+    static boolean hasFloatLeaf (Type type)
+    {
+        while (type instanceof ArrayType)
+            type = ((ArrayType) type).componentType;
+        return type instanceof FloatType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Converts an array to the given type: {@code long[]} leaves become {@code double[]} if the
+     * type has {@code Float} leaves. Returns the array itself if no conversion is needed, and a
+     * copy otherwise.
+     */
+    static Object convert (Object array, ArrayType type)
+    {
+        Type component = type.componentType;
+
+        if (component instanceof FloatType)
+            return array instanceof long[] ? doubles(array) : array;
+
+        if (!(component instanceof ArrayType && array instanceof Object[] && hasFloatLeaf(type)))
+            return array;
+
+        Object[] components = (Object[]) array;
+        Object[] result = null;
+        for (int i = 0; i < components.length; ++i) {
+            Object converted = convert(components[i], (ArrayType) component);
+            if (converted != components[i]) {
+                if (result == null) result = components.clone();
+                result[i] = converted;
+            }
+        }
+        return result == null ? array : result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the numeric array as a {@code double[]}, converting it if it is a {@code long[]}.
+     */
+    static double[] doubles (Object array)
+    {
+        if (array instanceof double[])
+            return (double[]) array;
+        long[] longs = (long[]) array;
+        double[] result = new double[longs.length];
+        for (int i = 0; i < longs.length; ++i)
+            result[i] = longs[i];
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the element-wise operation ({@code +}, {@code -}, {@code *} or {@code /}) between
+     * the two arrays, which must have the same dimensions. Multi-dimensional arrays are handled
+     * recursively. The result is a {@code long[]} if both operands are {@code long[]}, and a
+     * {@code double[]} otherwise.
+     *
+     * <p>Large operations run in parallel, cf. {@link ArrayParallelism}.
+     */
+    static Object compute (Object left, Object right, BinaryOperator operator)
+    {
+        // verifying that the 2 arrays have the same length
+        int length = length(left);
+        if (length != length(right))
+            throw new Error("The two arrays must have the same length: array1.length is "
+                + length + " and array2.length is " + length(right));
+
+        Object result;
+        long cost = 1;
+
+        if (left instanceof Object[] && right instanceof Object[]) {
+            result = new Object[length];
+            if (length > 0)
+                cost = elementCount(((Object[]) left)[0]);
+        }
+        else if (left instanceof long[] && right instanceof long[])
+            result = new long[length];
+        else if (isNumeric(left) && isNumeric(right)) {
+            left = doubles(left);
+            right = doubles(right);
+            result = new double[length];
+        }
+        else if (length == 0)
+            return new Object[0];
+        else
+            throw new Error("Operand not supported, use among : + ; - ; * ; / or types of array1 "
+                + "and array2 are different from :"
+                + "Float - Integer / Integer - Float / Float - Float / Integer - Integer");
+
+        ArrayParallelism.run(left, right, result, length, cost, operator);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the components of {@code result} between indices {@code lo} (inclusive) and {@code
+     * hi} (exclusive), where {@code left} and {@code right} are either both {@code Object[]},
+     * both {@code long[]} or both {@code double[]}, and {@code result} was allocated by {@link
+     * #compute(Object, Object, BinaryOperator)}.
+     */
+    static void compute (Object left, Object right, Object result, int lo, int hi,
+                         BinaryOperator operator)
+    {
+        if (result instanceof long[])
+            compute((long[]) left, (long[]) right, (long[]) result, lo, hi, operator);
+        else if (result instanceof double[])
+            compute((double[]) left, (double[]) right, (double[]) result, lo, hi, operator);
+        else {
+            Object[] l = (Object[]) left;
+            Object[] r = (Object[]) right;
+            Object[] res = (Object[]) result;
+            for (int i = lo; i < hi; i++)
+                // Recursive call to deal with multi-dimensional array
+                res[i] = compute(l[i], r[i], operator);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of elements of the array, counting the elements of nested arrays
+     * (assuming that all nested arrays at the same depth have the same length).
+     */
+    static long elementCount (Object array)
+    {
+        if (!(array instanceof Object[]))
+            return array != null && array.getClass().isArray() ? length(array) : 1;
+        Object[] components = (Object[]) array;
+        return components.length == 0
+            ? 1
+            : components.length * elementCount(components[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isNumeric (Object array) {
+        return array instanceof long[] || array instanceof double[];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void compute (long[] l, long[] r, long[] result, int lo, int hi,
+                                 BinaryOperator operator)
+    {
+        switch (operator) {
+            case ADD:
+                for (int i = lo; i < hi; i++) result[i] = l[i] + r[i];
+                break;
+            case SUBTRACT:
+                for (int i = lo; i < hi; i++) result[i] = l[i] - r[i];
+                break;
+            case MULTIPLY:
+                for (int i = lo; i < hi; i++) result[i] = l[i] * r[i];
+                break;
+            case DIVIDE:
+                for (int i = lo; i < hi; i++) result[i] = l[i] / r[i];
+                break;
+            default:
+                throw new Error("Operand not supported, use among : + ; - ; * ; /");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void compute (double[] l, double[] r, double[] result, int lo, int hi,
+                                 BinaryOperator operator)
+    {
+        switch (operator) {
+            case ADD:
+                for (int i = lo; i < hi; i++) result[i] = l[i] + r[i];
+                break;
+            case SUBTRACT:
+                for (int i = lo; i < hi; i++) result[i] = l[i] - r[i];
+                break;
+            case MULTIPLY:
+                for (int i = lo; i < hi; i++) result[i] = l[i] * r[i];
+                break;
+            case DIVIDE:
+                for (int i = lo; i < hi; i++) result[i] = l[i] / r[i];
+                break;
+            default:
+                throw new Error("Operand not supported, use among : + ; - ; * ; /");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,238 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.AttributeTables;
+import norswap.sigh.ast.AssignmentNode;
+import norswap.sigh.ast.BinaryExpressionNode;
+import norswap.sigh.ast.BinaryOperator;
+import norswap.sigh.ast.ExpressionNode;
+import norswap.sigh.ast.ExpressionStatementNode;
+import norswap.sigh.ast.FloatLiteralNode;
+import norswap.sigh.ast.IntLiteralNode;
+import norswap.sigh.ast.ParenthesizedNode;
+import norswap.sigh.ast.ProtectBlockNode;
+import norswap.sigh.ast.ReferenceNode;
+import norswap.sigh.ast.StatementNode;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.Slot;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+
+/**
+ * A {@code protect} block that consists of a single update of a global {@code Int} or {@code
+ * Float} variable by an operand that doesn't depend on it, such as {@code protect : { count =
+ * count + 1 }} or {@code protect : { total = total * factor }}, for both {@link Interpreter} and
+ * {@link ClosureInterpreter}.
+ *
+ * <p>Such a block is executed as an atomic read-modify-write of the slot of the variable in the
+ * root storage, instead of taking the lock of the block: the operand is evaluated, then the new
+ * value is computed and written with a compare-and-set loop (or a single atomic add, for {@code
+ * Int} additions and subtractions in a primitive slot). Other blocks use the lock.
+ *
+ * <p>The update is atomic with respect to all the other atomic updates of the variable, which is
+ * a stronger guarantee than the lock of a block (which only excludes other executions of the same
+ * block).
+ */
+final class AtomicUpdate
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Index of the variable in the root storage. */
+    final int index;
+
+    /** How the variable is stored in the root storage (cf. {@link Slot.Kind}). */
+    final Slot.Kind kind;
+
+    /** Whether the variable is a {@code Float}, otherwise it is an {@code Int}. */
+    final boolean floating;
+
+    final BinaryOperator operator;
+
+    /** The operand of the update, which doesn't read the variable. */
+    final ExpressionNode operand;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private AtomicUpdate (Slot slot, Slot.Kind kind, boolean floating, BinaryOperator operator,
+                          ExpressionNode operand) {
+        this.index = slot.index;
+        this.kind = kind;
+        this.floating = floating;
+        this.operator = operator;
+        this.operand = operand;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the atomic form of the block, or null if the block is not a single update of a
+     * global {@code Int} or {@code Float} variable, of the form {@code g = g op e} (with {@code
+     * op} among {@code + - * / %}) or {@code g = e op g} (with {@code op} among {@code + *}), where
+     * {@code e} is a literal or another variable. The blocks of programs that have read-only
+     * protect blocks are never atomic.
+     *
+     * <p>{@code primitive} indicates whether the root storage has primitive slots (cf. {@link
+     * ScopeStorage}).
+     */
+    static AtomicUpdate of (ProtectBlockNode node, AttributeTables tables, boolean primitive)
+    {
+        // read-only blocks must not see the updates made while they run (cf. ProtectLock)
+        if (tables.readProtects())
+            return null;
+        if (node.protectedBlock.statements.size() != 1)
+            return null;
+        StatementNode statement = node.protectedBlock.statements.get(0);
+        if (!(statement instanceof ExpressionStatementNode))
+            return null;
+        ExpressionNode expression = ((ExpressionStatementNode) statement).expression;
+        if (!(expression instanceof AssignmentNode))
+            return null;
+        AssignmentNode assignment = (AssignmentNode) expression;
+        if (!(assignment.left instanceof ReferenceNode))
+            return null;
+
+        ReferenceNode target = (ReferenceNode) assignment.left;
+        Slot slot = tables.slot(target);
+        Type type = tables.type(target);
+        if (slot == null || !(tables.scope(target) instanceof RootScope)
+                || !(type instanceof IntType || type instanceof FloatType))
+            return null;
+
+        ExpressionNode right = unwrap(assignment.right);
+        if (!(right instanceof BinaryExpressionNode))
+            return null;
+        BinaryExpressionNode binary = (BinaryExpressionNode) right;
+        BinaryOperator operator = binary.operator;
+        boolean commutative = operator == BinaryOperator.ADD || operator == BinaryOperator.MULTIPLY;
+        if (!commutative && operator != BinaryOperator.SUBTRACT
+                && operator != BinaryOperator.DIVIDE && operator != BinaryOperator.REMAINDER)
+            return null;
+
+        ExpressionNode operand;
+        if (refersTo(binary.left, target, tables))
+            operand = binary.right;
+        else if (commutative && refersTo(binary.right, target, tables))
+            operand = binary.left;
+        else
+            return null;
+
+        ExpressionNode simple = unwrap(operand);
+        Type operandType = tables.type(operand);
+        boolean literal = simple instanceof IntLiteralNode || simple instanceof FloatLiteralNode;
+        boolean variable = simple instanceof ReferenceNode && tables.slot(simple) != null
+            && !refersTo(simple, target, tables);
+        if (!(literal || variable)
+                || !(operandType instanceof IntType || operandType instanceof FloatType))
+            return null;
+
+        Slot.Kind kind = primitive ? slot.kind : Slot.Kind.OBJECT;
+        return new AtomicUpdate(slot, kind, type instanceof FloatType, operator, operand);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static ExpressionNode unwrap (ExpressionNode node)
+    {
+        while (node instanceof ParenthesizedNode)
+            node = ((ParenthesizedNode) node).expression;
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean refersTo
+            (ExpressionNode node, ReferenceNode target, AttributeTables tables)
+    {
+        node = unwrap(node);
+        return node instanceof ReferenceNode && tables.decl(node) == tables.decl(target);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Atomically updates the variable, of type {@code Int}, in the root storage.
+     */
+    void apply (ScopeStorage root, long operand)
+    {
+        if (kind == Slot.Kind.LONG) {
+            if (operator == BinaryOperator.ADD)
+                root.getAndAddPrimitive(index, operand);
+            else if (operator == BinaryOperator.SUBTRACT)
+                root.getAndAddPrimitive(index, -operand);
+            else {
+                long current;
+                do current = root.volatilePrimitive(index);
+                while (!root.compareAndSetPrimitive(index, current, compute(current, operand)));
+            }
+            return;
+        }
+        Object current;
+        do current = root.volatileValue(index);
+        while (!root.compareAndSetValue(index, current, compute((Long) current, operand)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Atomically updates the variable, of type {@code Float}, in the root storage.
+     */
+    void apply (ScopeStorage root, double operand)
+    {
+        if (kind == Slot.Kind.DOUBLE) {
+            long current;
+            double update;
+            do {
+                current = root.volatilePrimitive(index);
+                update = compute(Double.longBitsToDouble(current), operand);
+            } while (!root.compareAndSetPrimitive(index, current,
+                        Double.doubleToRawLongBits(update)));
+            return;
+        }
+        Object current;
+        do current = root.volatileValue(index);
+        while (!root.compareAndSetValue(index, current, compute((Double) current, operand)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Atomically updates the variable in the root storage, given the boxed value of the operand.
+     */
+    void apply (ScopeStorage root, Object operand)
+    {
+        if (floating)
+            apply(root, ((Number) operand).doubleValue());
+        else
+            apply(root, (long) (Long) operand);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private long compute (long value, long operand)
+    {
+        switch (operator) {
+            case ADD:       return value + operand;
+            case SUBTRACT:  return value - operand;
+            case MULTIPLY:  return value * operand;
+            case DIVIDE:    return value / operand;
+            case REMAINDER: return value % operand;
+            default: throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private double compute (double value, double operand)
+    {
+        switch (operator) {
+            case ADD:       return value + operand;
+            case SUBTRACT:  return value - operand;
+            case MULTIPLY:  return value * operand;
+            case DIVIDE:    return value / operand;
+            case REMAINDER: return value % operand;
+            default: throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,265 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.types.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A value of type {@code Channel<T>}, created by {@code $Channel<T>(capacity)}: a bounded queue
+ * through which tasks send values to each other, for both {@link Interpreter} and {@link
+ * ClosureInterpreter}.
+ *
+ * <p>The queue is the array-based multi-producer multi-consumer ring of Dmitry Vyukov. Each cell
+ * has a sequence number that tells whether it can be written by the sender that claimed position
+ * {@code p} (it is then {@code 2p}) or read by the receiver that claimed {@code p} (it is then
+ * {@code 2p + 1}). Senders and receivers claim positions with a compare-and-set on their counter,
+ * so that they never lock. (Vyukov's ring uses {@code p} and {@code p + 1}, which can't tell a
+ * full cell from a free one when there is a single cell.)
+ *
+ * <p>A task that sends on a full channel, or that receives from an empty one, parks its thread
+ * until another task receives or sends (or closes the channel). Virtual threads release their
+ * carrier thread while parked. Since every operation wakes all the tasks waiting on the channel,
+ * channels are meant to be shared by a few tasks rather than by very many. A task that waits on a
+ * channel that no other task will ever use waits forever. As with {@code wait}, tasks blocked on
+ * channels hold on to the threads of a {@link LaunchScheduler#FIXED} pool: pipelines with more
+ * stages than the pool has threads need the {@link LaunchScheduler#VIRTUAL} scheduler.
+ *
+ * <p>Closing a channel forbids further sends, but the values already sent (including by sends
+ * blocked when the channel is closed) can still be received. {@link #more} tells whether a value
+ * can still be received; to do so without racing with the other receivers, it receives the value
+ * in advance, on behalf of the next {@link #receive} of the same task (cf. {@link
+ * TaskScope#owner}). The value is kept per task rather than per thread, since a thread runs
+ * several tasks in turn, or one inside another when it joins a task that hasn't started.
+ */
+public final class Channel
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Object NONE = new Object();
+
+    public final Type componentType;
+
+    private final int capacity;
+    private final AtomicLongArray sequences;
+    private final Object[] cells;
+
+    private final AtomicLong sendPosition = new AtomicLong();
+    private final AtomicLong receivePosition = new AtomicLong();
+
+    /** Number of sends that started before the channel was closed, and haven't completed. */
+    private final AtomicInteger pendingSends = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /** Values received by {@link #more}, for the next {@link #receive} of each task. */
+    private final ConcurrentHashMap<Object, Object> received = new ConcurrentHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a channel that can hold {@code capacity} values of type {@code componentType}, which
+     * must be between 1 and 2^30.
+     */
+    public Channel (long capacity, Type componentType)
+    {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("invalid channel capacity: " + capacity);
+        this.componentType = componentType;
+        this.capacity = (int) capacity;
+        this.sequences = new AtomicLongArray(this.capacity);
+        this.cells = new Object[this.capacity];
+        for (int i = 0; i < this.capacity; ++i)
+            sequences.set(i, 2L * i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sends {@code value} (converted to the component type), waiting for room if the channel is
+     * full. Throws an {@link IllegalStateException} if the channel is closed.
+     */
+    public void send (Object value)
+    {
+        Object converted = Interpreter.convert(value, componentType);
+        pendingSends.incrementAndGet();
+        try {
+            if (closed)
+                throw new IllegalStateException("sending on a closed channel");
+            if (!offer(converted))
+                await(() -> offer(converted));
+        } finally {
+            // receivers may be waiting for the pending sends to complete
+            pendingSends.decrementAndGet();
+            signal();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Receives the next value, waiting for one if the channel is empty. Throws an {@link
+     * IllegalStateException} if the channel is closed and all its values have been received.
+     */
+    public Object receive ()
+    {
+        Object value = received.isEmpty() ? null : received.remove(TaskScope.owner());
+        if (value != null)
+            return value;
+        value = take();
+        if (value == NONE)
+            throw new IllegalStateException("receiving from a closed channel");
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Waits until a value can be received or the channel is closed and all its values have been
+     * received, and returns true in the first case. The value is then returned by the next call to
+     * {@link #receive} in the same task.
+     */
+    public boolean more ()
+    {
+        Object owner = TaskScope.owner();
+        if (received.containsKey(owner))
+            return true;
+        Object value = take();
+        if (value == NONE)
+            return false;
+        received.put(owner, value);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Closes the channel. Closing a closed channel has no effect.
+     */
+    public void close ()
+    {
+        closed = true;
+        signal();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Receives the next value, waiting for one if needed, or returns {@link #NONE} if the channel
+     * is closed and all its values have been received.
+     */
+    private Object take ()
+    {
+        Object[] value = { poll() };
+        if (value[0] == NONE)
+            await(() -> {
+                value[0] = poll();
+                if (value[0] != NONE)
+                    return true;
+                // once the channel is closed, no send starts: none is pending if it is drained
+                if (!closed || pendingSends.get() != 0)
+                    return false;
+                // a send may have completed since the first poll
+                value[0] = poll();
+                return true;
+            });
+        if (value[0] != NONE)
+            signal();
+        return value[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Adds the value to the ring if there is room, and returns whether it did. */
+    private boolean offer (Object value)
+    {
+        long position = sendPosition.get();
+        while (true) {
+            int index = (int) (position % capacity);
+            long difference = sequences.get(index) - 2 * position;
+            if (difference == 0) {
+                if (sendPosition.compareAndSet(position, position + 1)) {
+                    cells[index] = value;
+                    // publishes the value to the receiver that reads this sequence number
+                    sequences.set(index, 2 * position + 1);
+                    return true;
+                }
+                position = sendPosition.get();
+            }
+            else if (difference < 0)
+                return false; // full: the cell still holds the value sent a lap before
+            else
+                position = sendPosition.get();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Removes and returns the oldest value of the ring, or returns {@link #NONE} if it is empty. */
+    private Object poll ()
+    {
+        long position = receivePosition.get();
+        while (true) {
+            int index = (int) (position % capacity);
+            long difference = sequences.get(index) - (2 * position + 1);
+            if (difference == 0) {
+                if (receivePosition.compareAndSet(position, position + 1)) {
+                    Object value = cells[index];
+                    cells[index] = null;
+                    // frees the cell for the sender of the next lap
+                    sequences.set(index, 2 * (position + capacity));
+                    return value;
+                }
+                position = receivePosition.get();
+            }
+            else if (difference < 0)
+                return NONE; // empty: the cell hasn't been written in this lap
+            else
+                position = receivePosition.get();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parks the current thread until {@code ready} returns true. The thread is registered as a
+     * waiter before evaluating {@code ready}, so that a {@link #signal} that follows a change
+     * that makes it true can't be missed.
+     */
+    private void await (BooleanSupplier ready)
+    {
+        Thread thread = Thread.currentThread();
+        waiters.add(thread);
+        try {
+            while (!ready.getAsBoolean())
+                LockSupport.park(this);
+        } finally {
+            waiters.remove(thread);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Wakes up the threads waiting on the channel, so that they check whether they can proceed. */
+    private void signal ()
+    {
+        if (waiters.isEmpty())
+            return;
+        for (Thread thread: waiters)
+            LockSupport.unpark(thread);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "Channel<" + componentType + ">";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,1634 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.AttributeTables;
+import norswap.sigh.ast.*;
+import norswap.sigh.interpreter.ExecNode.BoolNode;
+import norswap.sigh.interpreter.ExecNode.DoubleNode;
+import norswap.sigh.interpreter.ExecNode.LongNode;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.scopes.Slot;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.*;
+import norswap.uranium.Reactor;
+import norswap.utils.Util;
+import norswap.utils.exceptions.Exceptions;
+import norswap.utils.exceptions.NoStackException;
+import norswap.utils.visitors.ValuedVisitor;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static norswap.utils.Util.cast;
+
+/**
+ * An alternative to {@link Interpreter} which first translates the analyzed AST into a tree of
+ * {@link ExecNode}, then executes that tree.
+ *
+ * <p>The translation walks the AST only once. Each executable node holds direct references to its
+ * children, as well as the operator, types and variable slots resolved for the AST node it was
+ * built from. Execution therefore goes through no visitor dispatch and no attribute lookup, and
+ * the call sites seen by the JIT compiler are monomorphic. Unlike the {@link
+ * norswap.sigh.bytecode.BytecodeCompiler}, this does not require generating classes.
+ *
+ * <p>{@code Int}, {@code Float} and {@code Bool} expressions are evaluated through the typed
+ * entry points of {@link ExecNode}, and the corresponding variables live in the primitive slots
+ * of {@link ScopeStorage}, so that arithmetic on such variables does not allocate.
+ *
+ * <p>The semantics, the runtime value representation and the limitations are the same as those of
+ * {@link Interpreter}.
+ */
+public final class ClosureInterpreter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, ExecNode> visitor = new ValuedVisitor<>();
+    private final Reactor reactor;
+    private AttributeTables tables;
+
+    /** Scope of the node being translated. */
+    private Scope scope;
+
+    /** Translated functions, created on first use (which can precede their declaration). */
+    private final HashMap<FunDeclarationNode, Function> functions = new HashMap<>();
+
+    /** Whether the block being translated launches tasks in its task scope. */
+    private boolean launches;
+
+    /** Whether the next block to translate is the body of a loop. */
+    private boolean loopBody;
+
+    private LaunchScheduler scheduler = LaunchScheduler.FIXED;
+
+    /** Lock shared by the protect blocks of programs that have read-only blocks. */
+    private final ProtectLock protectLock = new ProtectLock();
+
+    /**
+     * The scope in which the current thread launches tasks (cf. {@link TaskScope}). Only the
+     * blocks that launch tasks open a scope.
+     */
+    private static final ThreadLocal<TaskScope> tasks = new ThreadLocal<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    public ClosureInterpreter (Reactor reactor) {
+        this.reactor = reactor;
+
+        // expressions
+        visitor.register(IntLiteralNode.class,           this::intLiteral);
+        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
+        visitor.register(StringLiteralNode.class,        this::stringLiteral);
+        visitor.register(ReferenceNode.class,            this::reference);
+        visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(ChannelConstructorNode.class,   this::channelConstructor);
+        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
+        visitor.register(ParenthesizedNode.class,        this::parenthesized);
+        visitor.register(FieldAccessNode.class,          this::fieldAccess);
+        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
+        visitor.register(FunCallNode.class,              this::funCall);
+        visitor.register(LaunchNode.class,               this::launchCall);
+        visitor.register(LaunchStateNode.class,          this::launchStateCall);
+        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
+        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
+        visitor.register(ProtectBlockNode.class,         this::protectedBlock);
+        visitor.register(AssignmentNode.class,           this::assignment);
+
+        // statement groups & declarations
+        visitor.register(RootNode.class,                 this::root);
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+        // no need to visitor other declarations! (use fallback)
+
+        // statements
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        visitor.registerFallback(node -> NOTHING);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an interpreter that reads attributes from the given tables, instead of freezing
+     * its own tables when {@link #interpret} is called.
+     */
+    public ClosureInterpreter (AttributeTables tables) {
+        this(tables.reactor());
+        this.tables = tables;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the scheduler of the tasks launched by the programs run by this interpreter ({@link
+     * LaunchScheduler#FIXED} by default).
+     */
+    public void setScheduler (LaunchScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Object interpret (SighNode root)
+    {
+        if (tables == null)
+            tables = AttributeTables.freeze(root, reactor);
+
+        ExecNode code = get(root);
+        try {
+            return code.execute(null);
+        } catch (PassthroughException e) {
+            throw Exceptions.runtime(e.getCause());
+        } catch (InterpreterException | Return e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new InterpreterException("exception while executing " + root, e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates the node into an executable node.
+     */
+    private ExecNode get (SighNode node) {
+        return visitor.apply(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode[] get (List<? extends SighNode> nodes) {
+        ExecNode[] result = new ExecNode[nodes.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = get(nodes.get(i));
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Used to implement the control flow of the return statement.
+     */
+    private static class Return extends NoStackException {
+        final Object value;
+        private Return (Object value) {
+            this.value = value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A function whose body has been translated, along with the scope holding its parameters.
+     */
+    private static final class Function
+    {
+        final Scope scope;
+        final FunType type;
+        final Slot[] parameters;
+        ExecNode body;
+
+        /** Scope of the frame to use as parent of the function's frame. */
+        final Scope link;
+
+        /** Whether returned values must be converted to the return type. */
+        final boolean convertReturn;
+
+        Function (Scope scope, FunType type, Slot[] parameters) {
+            this.scope = scope;
+            this.type = type;
+            this.parameters = parameters;
+            this.link = framed(scope.parent);
+            this.convertReturn = ArrayValues.hasFloatLeaf(type.returnType);
+        }
+
+        /** Runs the body in the given frame (for {@link #scope}), holding the arguments. */
+        Object invoke (ScopeStorage frame) {
+            try {
+                body.execute(frame);
+            } catch (Return r) {
+                return convertReturn ? Interpreter.convert(r.value, type.returnType) : r.value;
+            }
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final ExecNode NOTHING = new ExecNode() {
+        @Override Object execute (ScopeStorage frame) {
+            return null;
+        }
+    };
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates a value in a frame, then stores it in another frame (or the same).
+     */
+    private static abstract class Store {
+        abstract void store (ScopeStorage from, ScopeStorage to);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a store that writes the value of {@code value} at {@code slot.index}, in the
+     * primitive or object array depending on the kind of the slot. The value is converted to
+     * {@code type} (the static type of the slot) if needed.
+     */
+    private static Store store (Slot slot, ExecNode value, Type type)
+    {
+        int index = slot.index;
+        switch (slot.kind) {
+            case LONG: return new Store() {
+                @Override void store (ScopeStorage from, ScopeStorage to) {
+                    to.primitives[index] = value.executeLong(from); }};
+            case DOUBLE: return new Store() {
+                @Override void store (ScopeStorage from, ScopeStorage to) {
+                    double d = value.executeDouble(from);
+                    to.primitives[index] = Double.doubleToRawLongBits(d); }};
+            case BOOLEAN: return new Store() {
+                @Override void store (ScopeStorage from, ScopeStorage to) {
+                    to.primitives[index] = value.executeBoolean(from) ? 1 : 0; }};
+            default:
+                if (ArrayValues.hasFloatLeaf(type))
+                    return new Store() {
+                        @Override void store (ScopeStorage from, ScopeStorage to) {
+                            to.values[index] = Interpreter.convert(value.execute(from), type); }};
+                return new Store() {
+                    @Override void store (ScopeStorage from, ScopeStorage to) {
+                        to.values[index] = value.execute(from); }};
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #store}, for a slot of the root storage, written with volatile semantics.
+     */
+    private static Store globalStore (Slot slot, ExecNode value, Type type)
+    {
+        int index = slot.index;
+        boolean convert = ArrayValues.hasFloatLeaf(type);
+        switch (slot.kind) {
+            case LONG: return new Store() {
+                @Override void store (ScopeStorage from, ScopeStorage to) {
+                    to.setVolatilePrimitive(index, value.executeLong(from)); }};
+            case DOUBLE: return new Store() {
+                @Override void store (ScopeStorage from, ScopeStorage to) {
+                    double d = value.executeDouble(from);
+                    to.setVolatilePrimitive(index, Double.doubleToRawLongBits(d)); }};
+            case BOOLEAN: return new Store() {
+                @Override void store (ScopeStorage from, ScopeStorage to) {
+                    to.setVolatilePrimitive(index, value.executeBoolean(from) ? 1 : 0); }};
+            default: return new Store() {
+                @Override void store (ScopeStorage from, ScopeStorage to) {
+                    Object v = value.execute(from);
+                    to.setVolatileValue(index, convert ? Interpreter.convert(v, type) : v); }};
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static ExecNode constant (Object value) {
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                return value;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether a frame is created for the scope at runtime. Blocks that do not declare any
+     * variable share the frame of their parent scope.
+     */
+    private static boolean hasFrame (Scope scope) {
+        return !(scope.node instanceof BlockNode) || scope.slotCount() > 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the closest scope (starting with {@code scope}) that has a frame.
+     */
+    private static Scope framed (Scope scope) {
+        while (!hasFrame(scope))
+            scope = scope.parent;
+        return scope;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of frames to walk up from the frame used by {@code from} in order to
+     * reach the frame used by {@code to}.
+     */
+    private static int frameDepth (Scope from, Scope to)
+    {
+        int depth = 0;
+        for (Scope s = from; s != to; s = s.parent) {
+            if (s == null)
+                throw new Error("[implementation bug] scope is not an ancestor: " + to);
+            if (hasFrame(s))
+                ++depth;
+        }
+        return depth;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of the slot (relative to the scope being translated) whose depth counts
+     * frames instead of scopes.
+     */
+    private Slot frameSlot (Slot slot) {
+        return new Slot(frameDepth(scope, declaring(slot)), slot.index, slot.kind);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the scope that declares the variable in the slot (relative to the scope being
+     * translated).
+     */
+    private Scope declaring (Slot slot)
+    {
+        Scope declaring = scope;
+        for (int i = 0; i < slot.depth; ++i)
+            declaring = declaring.parent;
+        return declaring;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the variable in the slot (relative to the scope being translated) is a global
+     * variable, whose slot must be accessed with volatile semantics (cf. {@link
+     * ScopeStorage#shared}).
+     */
+    private boolean global (Slot slot) {
+        return declaring(slot) instanceof RootScope;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int index (long index)
+    {
+        if (index < 0)
+            throw new PassthroughException(
+                new ArrayIndexOutOfBoundsException("Negative index: " + index));
+        if (index >= Integer.MAX_VALUE - 1)
+            throw new PassthroughException(new ArrayIndexOutOfBoundsException(
+                "Index exceeds max array index (2ˆ31 - 2): " + index));
+        return (int) index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Map<String, Object> nonNullStruct (Object object)
+    {
+        if (object == Null.INSTANCE)
+            throw new PassthroughException(
+                new NullPointerException("accessing field of null object"));
+        return cast(object);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode intLiteral (IntLiteralNode node) {
+        long value = node.value;
+        return new LongNode() {
+            @Override long executeLong (ScopeStorage frame) {
+                return value;
+            }
+        };
+    }
+
+    private ExecNode floatLiteral (FloatLiteralNode node) {
+        double value = node.value;
+        return new DoubleNode() {
+            @Override double executeDouble (ScopeStorage frame) {
+                return value;
+            }
+        };
+    }
+
+    private ExecNode stringLiteral (StringLiteralNode node) {
+        return constant(node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode parenthesized (ParenthesizedNode node) {
+        return get(node.expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode arrayLiteral (ArrayLiteralNode node)
+    {
+        Type componentType = ((ArrayType) tables.type(node)).componentType;
+        ExecNode[] components = get(node.components);
+
+        if (componentType instanceof IntType)
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    long[] array = new long[components.length];
+                    for (int i = 0; i < array.length; ++i)
+                        array[i] = components[i].executeLong(frame);
+                    return array;
+                }
+            };
+
+        if (componentType instanceof FloatType)
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    double[] array = new double[components.length];
+                    for (int i = 0; i < array.length; ++i)
+                        array[i] = components[i].executeDouble(frame);
+                    return array;
+                }
+            };
+
+        if (componentType instanceof BoolType)
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    boolean[] array = new boolean[components.length];
+                    for (int i = 0; i < array.length; ++i)
+                        array[i] = components[i].executeBoolean(frame);
+                    return array;
+                }
+            };
+
+        boolean convert = ArrayValues.hasFloatLeaf(componentType);
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                Object[] array = new Object[components.length];
+                for (int i = 0; i < array.length; ++i)
+                    array[i] = convert
+                        ? Interpreter.convert(components[i].execute(frame), componentType)
+                        : components[i].execute(frame);
+                return array;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode binaryExpression (BinaryExpressionNode node)
+    {
+        ArrayFusion fusion = ArrayFusion.of(node, tables::type);
+        if (fusion != null)
+            return fusedArrayExpression(fusion);
+
+        Type leftType  = tables.type(node.left);
+        Type rightType = tables.type(node.right);
+        ExecNode left  = get(node.left);
+        ExecNode right = get(node.right);
+
+        switch (node.operator) {
+            case OR:
+                return new BoolNode() {
+                    @Override boolean executeBoolean (ScopeStorage frame) {
+                        return left.executeBoolean(frame) || right.executeBoolean(frame);
+                    }
+                };
+            case AND:
+                return new BoolNode() {
+                    @Override boolean executeBoolean (ScopeStorage frame) {
+                        return left.executeBoolean(frame) && right.executeBoolean(frame);
+                    }
+                };
+            case MAT_PRODUCT:
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        Object l = Interpreter.nonNullArray(left.execute(frame));
+                        Object r = Interpreter.nonNullArray(right.execute(frame));
+                        return MatrixProduct.multiply(l, r);
+                    }
+                };
+        }
+
+        if (node.operator == BinaryOperator.ADD
+                && (leftType instanceof StringType || rightType instanceof StringType))
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    String l = Interpreter.convertToString(left.execute(frame));
+                    return l + Interpreter.convertToString(right.execute(frame));
+                }
+            };
+
+        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
+        boolean numeric  = floating || leftType instanceof IntType;
+        boolean array = leftType instanceof ArrayType && rightType instanceof ArrayType;
+
+        if (numeric)
+            return floating
+                ? floatingOp(node.operator, left, right)
+                : integerOp(node.operator, left, right);
+
+        BinaryOperator operator = node.operator;
+
+        if (array && (operator == BinaryOperator.MULTIPLY || operator == BinaryOperator.DIVIDE
+                || operator == BinaryOperator.ADD || operator == BinaryOperator.SUBTRACT))
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    Object l = Interpreter.nonNullArray(left.execute(frame));
+                    Object r = Interpreter.nonNullArray(right.execute(frame));
+                    return ArrayValues.compute(l, r, operator);
+                }
+            };
+
+        if (operator == BinaryOperator.EQUALITY || operator == BinaryOperator.NOT_EQUALS) {
+            boolean primitive = leftType.isPrimitive();
+            boolean equality = operator == BinaryOperator.EQUALITY;
+            return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    Object l = left.execute(frame);
+                    Object r = right.execute(frame);
+                    return equality == (primitive ? l.equals(r) : l == r);
+                }
+            };
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode fusedArrayExpression (ArrayFusion fusion)
+    {
+        ExecNode[] leaves = get(fusion.leaves);
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                Object[] values = new Object[leaves.length];
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = Interpreter.nonNullArray(leaves[i].execute(frame));
+                return fusion.evaluate(values);
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode integerOp (BinaryOperator operator, ExecNode left, ExecNode right)
+    {
+        switch (operator) {
+            case MULTIPLY: return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    return left.executeLong(frame) * right.executeLong(frame); }};
+            case DIVIDE: return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    return left.executeLong(frame) / right.executeLong(frame); }};
+            case REMAINDER: return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    return left.executeLong(frame) % right.executeLong(frame); }};
+            case ADD: return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    return left.executeLong(frame) + right.executeLong(frame); }};
+            case SUBTRACT: return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    return left.executeLong(frame) - right.executeLong(frame); }};
+            case GREATER: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeLong(frame) > right.executeLong(frame); }};
+            case LOWER: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeLong(frame) < right.executeLong(frame); }};
+            case GREATER_EQUAL: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeLong(frame) >= right.executeLong(frame); }};
+            case LOWER_EQUAL: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeLong(frame) <= right.executeLong(frame); }};
+            case EQUALITY: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeLong(frame) == right.executeLong(frame); }};
+            case NOT_EQUALS: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeLong(frame) != right.executeLong(frame); }};
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode floatingOp (BinaryOperator operator, ExecNode left, ExecNode right)
+    {
+        switch (operator) {
+            case MULTIPLY: return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    return left.executeDouble(frame) * right.executeDouble(frame); }};
+            case DIVIDE: return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    return left.executeDouble(frame) / right.executeDouble(frame); }};
+            case REMAINDER: return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    return left.executeDouble(frame) % right.executeDouble(frame); }};
+            case ADD: return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    return left.executeDouble(frame) + right.executeDouble(frame); }};
+            case SUBTRACT: return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    return left.executeDouble(frame) - right.executeDouble(frame); }};
+            case GREATER: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeDouble(frame) > right.executeDouble(frame); }};
+            case LOWER: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeDouble(frame) < right.executeDouble(frame); }};
+            case GREATER_EQUAL: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeDouble(frame) >= right.executeDouble(frame); }};
+            case LOWER_EQUAL: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeDouble(frame) <= right.executeDouble(frame); }};
+            case EQUALITY: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeDouble(frame) == right.executeDouble(frame); }};
+            case NOT_EQUALS: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return left.executeDouble(frame) != right.executeDouble(frame); }};
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode assignment (AssignmentNode node)
+    {
+        ExecNode right = get(node.right);
+
+        if (node.left instanceof ReferenceNode) {
+            Slot slot = tables.slot(node.left);
+            Type targetType = tables.type(node);
+            Type rightType = tables.type(node.right);
+            return global(slot)
+                ? assignGlobal(frameSlot(slot), right, targetType, rightType)
+                : assignVariable(frameSlot(slot), right, targetType, rightType);
+        }
+
+        if (node.left instanceof ArrayAccessNode) {
+            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+            return assignComponent(get(arrayAccess.array), get(arrayAccess.index), right,
+                tables.type(node), tables.type(node.right));
+        }
+
+        if (node.left instanceof FieldAccessNode) {
+            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
+            ExecNode stem = get(fieldAccess.stem);
+            String fieldName = fieldAccess.fieldName;
+            Type type = tables.type(node);
+            boolean convert = ArrayValues.hasFloatLeaf(type);
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    Map<String, Object> struct = nonNullStruct(stem.execute(frame));
+                    Object value = right.execute(frame);
+                    struct.put(fieldName, convert ? Interpreter.convert(value, type) : value);
+                    return value;
+                }
+            };
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static ExecNode assignVariable
+            (Slot slot, ExecNode right, Type targetType, Type rightType)
+    {
+        int depth = slot.depth;
+        int index = slot.index;
+
+        switch (slot.kind) {
+            case LONG:
+                return new LongNode() {
+                    @Override long executeLong (ScopeStorage frame) {
+                        long value = right.executeLong(frame);
+                        frame.up(depth).primitives[index] = value;
+                        return value;
+                    }
+                };
+            case BOOLEAN:
+                return new BoolNode() {
+                    @Override boolean executeBoolean (ScopeStorage frame) {
+                        boolean value = right.executeBoolean(frame);
+                        frame.up(depth).primitives[index] = value ? 1 : 0;
+                        return value;
+                    }
+                };
+            case DOUBLE:
+                if (rightType instanceof FloatType)
+                    return new DoubleNode() {
+                        @Override double executeDouble (ScopeStorage frame) {
+                            double value = right.executeDouble(frame);
+                            frame.up(depth).primitives[index] = Double.doubleToRawLongBits(value);
+                            return value;
+                        }
+                    };
+                // the value of the assignment is the (unconverted) Int value
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        long value = right.executeLong(frame);
+                        frame.up(depth).primitives[index] = Double.doubleToRawLongBits(value);
+                        return value;
+                    }
+                    @Override void executeVoid (ScopeStorage frame) {
+                        long value = right.executeLong(frame);
+                        frame.up(depth).primitives[index] = Double.doubleToRawLongBits(value);
+                    }
+                };
+            default:
+                boolean convert = ArrayValues.hasFloatLeaf(targetType);
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        Object rvalue = right.execute(frame);
+                        frame.up(depth).values[index] =
+                            convert ? Interpreter.convert(rvalue, targetType) : rvalue;
+                        return rvalue;
+                    }
+                };
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #assignVariable}, for a slot of the root storage, written with volatile
+     * semantics.
+     */
+    private static ExecNode assignGlobal
+            (Slot slot, ExecNode right, Type targetType, Type rightType)
+    {
+        int depth = slot.depth;
+        int index = slot.index;
+
+        switch (slot.kind) {
+            case LONG:
+                return new LongNode() {
+                    @Override long executeLong (ScopeStorage frame) {
+                        long value = right.executeLong(frame);
+                        frame.up(depth).setVolatilePrimitive(index, value);
+                        return value;
+                    }
+                };
+            case BOOLEAN:
+                return new BoolNode() {
+                    @Override boolean executeBoolean (ScopeStorage frame) {
+                        boolean value = right.executeBoolean(frame);
+                        frame.up(depth).setVolatilePrimitive(index, value ? 1 : 0);
+                        return value;
+                    }
+                };
+            case DOUBLE:
+                if (rightType instanceof FloatType)
+                    return new DoubleNode() {
+                        @Override double executeDouble (ScopeStorage frame) {
+                            double value = right.executeDouble(frame);
+                            frame.up(depth).setVolatilePrimitive(index,
+                                Double.doubleToRawLongBits(value));
+                            return value;
+                        }
+                    };
+                // the value of the assignment is the (unconverted) Int value
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        long value = right.executeLong(frame);
+                        frame.up(depth).setVolatilePrimitive(index,
+                            Double.doubleToRawLongBits(value));
+                        return value;
+                    }
+                };
+            default:
+                boolean convert = ArrayValues.hasFloatLeaf(targetType);
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        Object rvalue = right.execute(frame);
+                        frame.up(depth).setVolatileValue(index,
+                            convert ? Interpreter.convert(rvalue, targetType) : rvalue);
+                        return rvalue;
+                    }
+                };
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a node that assigns {@code right} to a component of an array whose components
+     * have type {@code componentType}.
+     */
+    private static ExecNode assignComponent
+            (ExecNode array, ExecNode index, ExecNode right, Type componentType, Type rightType)
+    {
+        if (componentType instanceof IntType)
+            return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    Object a = Interpreter.nonNullArray(array.execute(frame));
+                    int i = index(index.executeLong(frame));
+                    long value = right.executeLong(frame);
+                    try {
+                        if (a instanceof long[]) ((long[]) a)[i] = value;
+                        else ArrayValues.set(a, i, value);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        throw new PassthroughException(e);
+                    }
+                    return value;
+                }
+            };
+
+        if (componentType instanceof FloatType && rightType instanceof FloatType)
+            return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    Object a = Interpreter.nonNullArray(array.execute(frame));
+                    int i = index(index.executeLong(frame));
+                    double value = right.executeDouble(frame);
+                    try {
+                        if (a instanceof double[]) ((double[]) a)[i] = value;
+                        else ArrayValues.set(a, i, value);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        throw new PassthroughException(e);
+                    }
+                    return value;
+                }
+            };
+
+        if (componentType instanceof BoolType)
+            return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    Object a = Interpreter.nonNullArray(array.execute(frame));
+                    int i = index(index.executeLong(frame));
+                    boolean value = right.executeBoolean(frame);
+                    try {
+                        if (a instanceof boolean[]) ((boolean[]) a)[i] = value;
+                        else ArrayValues.set(a, i, value);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        throw new PassthroughException(e);
+                    }
+                    return value;
+                }
+            };
+
+        // the value of the assignment is the unconverted value
+        boolean convert = ArrayValues.hasFloatLeaf(componentType);
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                Object a = Interpreter.nonNullArray(array.execute(frame));
+                int i = index(index.executeLong(frame));
+                Object value = right.execute(frame);
+                try {
+                    ArrayValues.set(a, i, convert ? Interpreter.convert(value, componentType) : value);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+                return value;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode unaryExpression (UnaryExpressionNode node)
+    {
+        // there is only NOT
+        assert node.operator == UnaryOperator.NOT;
+        ExecNode operand = get(node.operand);
+        return new BoolNode() {
+            @Override boolean executeBoolean (ScopeStorage frame) {
+                return !operand.executeBoolean(frame);
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode arrayAccess (ArrayAccessNode node)
+    {
+        ExecNode array = get(node.array);
+        ExecNode index = get(node.index);
+        Type type = tables.type(node);
+
+        if (type instanceof IntType)
+            return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    Object a = Interpreter.nonNullArray(array.execute(frame));
+                    int i = index(index.executeLong(frame));
+                    try {
+                        return a instanceof long[] ? ((long[]) a)[i] : (Long) ArrayValues.get(a, i);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        throw new PassthroughException(e);
+                    }
+                }
+            };
+
+        if (type instanceof FloatType)
+            return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    Object a = Interpreter.nonNullArray(array.execute(frame));
+                    int i = index(index.executeLong(frame));
+                    try {
+                        return a instanceof double[]
+                            ? ((double[]) a)[i]
+                            : ((Number) ArrayValues.get(a, i)).doubleValue();
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        throw new PassthroughException(e);
+                    }
+                }
+            };
+
+        if (type instanceof BoolType)
+            return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    Object a = Interpreter.nonNullArray(array.execute(frame));
+                    int i = index(index.executeLong(frame));
+                    try {
+                        return a instanceof boolean[]
+                            ? ((boolean[]) a)[i]
+                            : (Boolean) ArrayValues.get(a, i);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        throw new PassthroughException(e);
+                    }
+                }
+            };
+
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                Object a = Interpreter.nonNullArray(array.execute(frame));
+                try {
+                    return ArrayValues.get(a, index(index.executeLong(frame)));
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new PassthroughException(e);
+                }
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode root (RootNode node)
+    {
+        RootScope rootScope = (RootScope) tables.scope(node);
+        scope = rootScope;
+        ExecNode[] statements = get(node.statements);
+        scope = null;
+
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage ignored) {
+                ScopeStorage frame = new ScopeStorage(rootScope, null, true);
+                frame.initRoot(rootScope);
+
+                TaskScope outer = tasks.get();
+                TaskScope scope = new TaskScope(scheduler.executor(), null);
+                tasks.set(scope);
+                Object value = null;
+                boolean completed = false;
+
+                try {
+                    for (ExecNode statement: statements)
+                        statement.execute(frame);
+                    completed = true;
+                } catch (Return r) {
+                    value = r.value;
+                    completed = true;
+                    // allow returning from the main script
+                } finally {
+                    tasks.set(outer);
+                    scope.join(completed);
+                }
+                return value;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode block (BlockNode node)
+    {
+        Scope scope = tables.scope(node);
+        Scope outer = this.scope;
+        boolean outerLaunches = launches;
+        boolean scoped = !loopBody;
+        this.scope = scope;
+        launches = loopBody = false;
+        ExecNode[] statements = get(node.statements);
+        this.scope = outer;
+        // the tasks launched in the body of a loop belong to the enclosing scope
+        scoped &= launches;
+        launches = outerLaunches || launches && !scoped;
+
+        ExecNode body = !hasFrame(scope)
+            ? new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    for (ExecNode statement: statements)
+                        statement.execute(frame);
+                    return null;
+                }
+            }
+            : new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    ScopeStorage inner = new ScopeStorage(scope, frame, true);
+                    for (ExecNode statement: statements)
+                        statement.execute(inner);
+                    return null;
+                }
+            };
+
+        if (!scoped)
+            return body;
+
+        Executor executor = scheduler.executor();
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                TaskScope outer = tasks.get();
+                TaskScope scope = new TaskScope(executor, outer);
+                tasks.set(scope);
+                boolean completed = false;
+                try {
+                    body.execute(frame);
+                    completed = true;
+                } catch (Return r) {
+                    completed = true;
+                    throw r;
+                } finally {
+                    tasks.set(outer);
+                    scope.join(completed);
+                }
+                return null;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode constructor (ConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        return constant(new Constructor((StructDeclarationNode) tables.decl(node.ref)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode channelConstructor (ChannelConstructorNode node) {
+        return constant(((FunType) tables.type(node)).returnType);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode expressionStmt (ExpressionStatementNode node) {
+        ExecNode expression = get(node.expression);
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                expression.executeVoid(frame);
+                return null;  // discard value
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode fieldAccess (FieldAccessNode node)
+    {
+        ExecNode stem = get(node.stem);
+        String fieldName = node.fieldName;
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                Object object = stem.execute(frame);
+                if (object == Null.INSTANCE)
+                    throw new PassthroughException(
+                        new NullPointerException("accessing field of null object"));
+                return object instanceof Map
+                    ? Util.<Map<String, Object>>cast(object).get(fieldName)
+                    : (long) ArrayValues.length(object); // only field on arrays
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode protectedBlock (ProtectBlockNode node)
+    {
+        AtomicUpdate update = AtomicUpdate.of(node, tables, true);
+        if (update != null)
+            return atomicUpdate(node, update);
+
+        ReentrantLock lock = node.lock();
+        ExecNode block = get(node.protectedBlock);
+
+        ProtectLock.ReadBlock read = node.readOnly ? ProtectLock.analyze(node, tables) : null;
+        // read-only blocks that call functions run like the other blocks
+        if (read != null && !read.exclusive) {
+            Slot[] assigned = read.optimistic ? new Slot[read.assigned.size()] : null;
+            for (int i = 0; assigned != null && i < assigned.length; ++i) {
+                ReferenceNode reference = read.assigned.get(i);
+                Slot slot = tables.slot(reference);
+                assigned[i] = new Slot(
+                    frameDepth(scope, tables.scope(reference)), slot.index, slot.kind);
+            }
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    return protectLock.read(
+                        assigned == null ? null : () -> snapshot(assigned, frame),
+                        () -> protectedBody(block, frame));
+                }
+            };
+        }
+
+        ExecNode locked = new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                lock.lock();
+                try {
+                    return protectedBody(block, frame);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        if (!tables.readProtects())
+            return locked;
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                return protectLock.write(() -> locked.execute(frame));
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Saves the variables in the given slots (relative to {@code frame}), which a read-only block
+     * assigns, and returns an action that restores them (cf. {@link ProtectLock#read}).
+     */
+    private static Runnable snapshot (Slot[] slots, ScopeStorage frame)
+    {
+        ScopeStorage[] frames = new ScopeStorage[slots.length];
+        Object[] values = new Object[slots.length];
+        long[] primitives = new long[slots.length];
+        for (int i = 0; i < slots.length; ++i) {
+            frames[i] = frame.up(slots[i].depth);
+            if (slots[i].kind == Slot.Kind.OBJECT)
+                values[i] = frames[i].values[slots[i].index];
+            else
+                primitives[i] = frames[i].primitives[slots[i].index];
+        }
+        return () -> {
+            for (int i = 0; i < slots.length; ++i)
+                if (slots[i].kind == Slot.Kind.OBJECT)
+                    frames[i].values[slots[i].index] = values[i];
+                else
+                    frames[i].primitives[slots[i].index] = primitives[i];
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object protectedBody (ExecNode block, ScopeStorage frame)
+    {
+        try {
+            block.execute(frame);
+        } catch (Return r) {
+            return r.value;
+        }
+        return 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode atomicUpdate (ProtectBlockNode node, AtomicUpdate update)
+    {
+        // the operand is in the scope of the block, which has no frame
+        Scope outer = scope;
+        scope = tables.scope(node.protectedBlock);
+        ExecNode operand = get(update.operand);
+        Scope root = scope;
+        while (!(root instanceof RootScope))
+            root = root.parent;
+        int depth = frameDepth(scope, root);
+        scope = outer;
+
+        if (update.floating)
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    update.apply(frame.up(depth), operand.executeDouble(frame));
+                    return 1;
+                }
+            };
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                update.apply(frame.up(depth), operand.executeLong(frame));
+                return 1;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the translated function for the declaration, translating it if needed.
+     */
+    private Function function (FunDeclarationNode decl)
+    {
+        Function function = functions.get(decl);
+        if (function != null)
+            return function;
+
+        Slot[] parameters = new Slot[decl.parameters.size()];
+        for (int i = 0; i < parameters.length; ++i)
+            parameters[i] = tables.slot(decl.parameters.get(i));
+
+        function = new Function(tables.scope(decl), (FunType) tables.type(decl), parameters);
+        // register before translating the body, to support recursion
+        functions.put(decl, function);
+        Scope outer = scope;
+        scope = function.scope;
+        function.body = get(decl.block);
+        scope = outer;
+        return function;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode funDecl (FunDeclarationNode node) {
+        function(node);
+        return NOTHING;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode funCall (FunCallNode node)
+    {
+        ExecNode[] args = get(node.arguments);
+
+        DeclarationNode decl = node.function instanceof ReferenceNode
+            ? tables.decl(node.function)
+            : null;
+
+        if (decl instanceof SyntheticDeclarationNode)
+            return builtin(decl.name(), args, node.arguments);
+
+        if (decl instanceof FunDeclarationNode) {
+            // direct call: the frame of the declaring scope is at a known depth
+            Function function = function((FunDeclarationNode) decl);
+            int depth = frameDepth(scope, function.scope.parent);
+            Store[] stores = new Store[args.length];
+            for (int i = 0; i < args.length; ++i)
+                stores[i] = store(function.parameters[i], args[i], function.type.paramTypes[i]);
+            return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    ScopeStorage callee = new ScopeStorage(function.scope, frame.up(depth), true);
+                    for (Store store: stores)
+                        store.store(frame, callee);
+                    return function.invoke(callee);
+                }
+            };
+        }
+
+        ExecNode callee = get(node.function);
+        FunType type = (FunType) tables.type(node.function);
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                return call(callee.execute(frame), type, args, node.arguments, frame);
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls a function value (whose declaration isn't known statically) of the given type.
+     */
+    private Object call (Object decl, FunType type, ExecNode[] args,
+                         List<ExpressionNode> arguments, ScopeStorage frame)
+    {
+        if (decl == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("calling a null function"));
+
+        if (decl instanceof SyntheticDeclarationNode)
+            return builtin(((SyntheticDeclarationNode) decl).name(), args, arguments)
+                .execute(frame);
+
+        Object[] values = new Object[args.length];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = args[i].execute(frame);
+        return invoke(decl, type, values, frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls a function value of the given type with the given (unconverted) argument values,
+     * from {@code frame}.
+     */
+    private Object invoke (Object decl, FunType type, Object[] values, ScopeStorage frame)
+    {
+        if (decl == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("calling a null function"));
+
+        if (decl instanceof SyntheticDeclarationNode) {
+            ExecNode[] args = new ExecNode[values.length];
+            for (int i = 0; i < args.length; ++i)
+                args[i] = constant(values[i]);
+            List<ExpressionNode> arguments = Collections.nCopies(values.length, null);
+            return builtin(((SyntheticDeclarationNode) decl).name(), args, arguments)
+                .execute(frame);
+        }
+
+        for (int i = 0; i < values.length; ++i)
+            values[i] = Interpreter.convert(values[i], type.paramTypes[i]);
+
+        if (decl instanceof Constructor)
+            return Interpreter.buildStruct(((Constructor) decl).declaration, values);
+
+        if (decl instanceof ChannelType)
+            return Interpreter.newChannel((ChannelType) decl, values[0]);
+
+        Function function = functions.get(decl);
+        ScopeStorage callee = new ScopeStorage(function.scope, frame.find(function.link), true);
+        for (int i = 0; i < values.length; ++i)
+            setArgument(callee, function.parameters[i], values[i]);
+        return function.invoke(callee);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void setArgument (ScopeStorage frame, Slot parameter, Object value)
+    {
+        int index = parameter.index;
+        switch (parameter.kind) {
+            case LONG:
+                frame.primitives[index] = (Long) value;
+                break;
+            case DOUBLE:
+                double d = ((Number) value).doubleValue();
+                frame.primitives[index] = Double.doubleToRawLongBits(d);
+                break;
+            case BOOLEAN:
+                frame.primitives[index] = (Boolean) value ? 1 : 0;
+                break;
+            default:
+                frame.values[index] = value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode builtin (String name, ExecNode[] args, List<ExpressionNode> arguments)
+    {
+        switch (name) {
+            case "print":
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        String out = Interpreter.convertToString(args[0].execute(frame));
+                        System.out.println(out);
+                        return out;
+                    }
+                };
+            case "wait": {
+                // blocks until the task launched to initialize the variable terminates
+                Slot slot = arguments.get(0) instanceof ReferenceNode
+                    ? tables.slot(arguments.get(0))
+                    : null;
+                if (slot == null)
+                    return constant(null);
+                Slot frameSlot = frameSlot(slot);
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        frame.up(frameSlot.depth)
+                            .await(frameSlot.index, frameSlot.kind != Slot.Kind.OBJECT);
+                        return null;
+                    }
+                };
+            }
+            case "pmap": case "preduce": case "pfor":
+                return parallelBuiltin(name, args, arguments);
+            case "send": case "receive": case "close": case "more":
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        Object[] values = new Object[args.length];
+                        for (int i = 0; i < values.length; ++i)
+                            values[i] = args[i].execute(frame);
+                        return Interpreter.channelBuiltin(name, values);
+                    }
+                };
+            default:
+                return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        throw new Error("This is not a builtin function : " + name);
+                    }
+                };
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates a call to {@code pmap}, {@code preduce} or {@code pfor} (cf. {@link
+     * ParallelBuiltins}). The chunks call the function from the frame of the call.
+     */
+    private ExecNode parallelBuiltin (String name, ExecNode[] args, List<ExpressionNode> arguments)
+    {
+        int funIndex = name.equals("pfor") ? 2 : 0;
+        FunType type = (FunType) tables.type(arguments.get(funIndex));
+        Type returnType = type.returnType;
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                Object function = args[funIndex].execute(frame);
+                TaskScope scope = new TaskScope(scheduler.executor(), tasks.get());
+                Supplier<ParallelBuiltins.Callee> callees =
+                    () -> values -> invoke(function, type, values, frame);
+                switch (name) {
+                    case "pmap":
+                        return ParallelBuiltins.map(scope, callees,
+                            Interpreter.nonNullArray(args[1].execute(frame)), returnType);
+                    case "preduce":
+                        Object array = Interpreter.nonNullArray(args[1].execute(frame));
+                        return ParallelBuiltins.reduce(scope, callees, array,
+                            args[2].execute(frame), returnType);
+                    default:
+                        ParallelBuiltins.loop(scope, callees,
+                            args[0].executeLong(frame), args[1].executeLong(frame));
+                        return null;
+                }
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the body of a task that executes {@code code} in {@code frame}, in the task scope
+     * {@code scope}. Exceptions are normalized as in {@link #interpret}.
+     */
+    private static Runnable task (ExecNode code, ScopeStorage frame, TaskScope scope, SighNode node)
+    {
+        return () -> {
+            TaskScope outer = tasks.get();
+            tasks.set(scope);
+            try {
+                code.execute(frame);
+            } catch (PassthroughException e) {
+                throw Exceptions.runtime(e.getCause());
+            } catch (InterpreterException | Error e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw new InterpreterException("exception while executing " + node, e);
+            } finally {
+                tasks.set(outer);
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode launchCall (LaunchNode node) {
+        ExecNode call = get(node.funCall);
+        launches = true;
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                TaskScope scope = tasks.get();
+                scope.launch(task(call, frame, scope, node.funCall));
+                return VoidType.INSTANCE;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode launchStateCall (LaunchStateNode node) {
+        ExecNode varDecl = get(node.varDeclaration);
+        Slot slot = frameSlot(tables.slot(node.varDeclaration));
+        launches = true;
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                TaskScope scope = tasks.get();
+                frame.up(slot.depth).launch(slot.index,
+                    scope.launch(task(varDecl, frame, scope, node.varDeclaration)));
+                return VoidType.INSTANCE;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode ifStmt (IfNode node)
+    {
+        ExecNode condition = get(node.condition);
+        ExecNode trueStatement = get(node.trueStatement);
+        ExecNode falseStatement = node.falseStatement == null
+            ? NOTHING
+            : get(node.falseStatement);
+
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                if (condition.executeBoolean(frame))
+                    trueStatement.execute(frame);
+                else
+                    falseStatement.execute(frame);
+                return null;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode whileStmt (WhileNode node)
+    {
+        ExecNode condition = get(node.condition);
+        loopBody = node.body instanceof BlockNode;
+        ExecNode body = get(node.body);
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                while (condition.executeBoolean(frame))
+                    body.execute(frame);
+                return null;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode reference (ReferenceNode node)
+    {
+        Slot slot = tables.slot(node);
+        if (slot == null)
+            return constant(tables.decl(node)); // structure or function
+
+        boolean global = global(slot);
+        slot = frameSlot(slot);
+        int depth = slot.depth;
+        int index = slot.index;
+
+        if (global)
+            switch (slot.kind) {
+                case LONG: return new LongNode() {
+                    @Override long executeLong (ScopeStorage frame) {
+                        return frame.up(depth).volatilePrimitive(index); }};
+                case DOUBLE: return new DoubleNode() {
+                    @Override double executeDouble (ScopeStorage frame) {
+                        long bits = frame.up(depth).volatilePrimitive(index);
+                        return Double.longBitsToDouble(bits); }};
+                case BOOLEAN: return new BoolNode() {
+                    @Override boolean executeBoolean (ScopeStorage frame) {
+                        return frame.up(depth).volatilePrimitive(index) != 0; }};
+                default: return new ExecNode() {
+                    @Override Object execute (ScopeStorage frame) {
+                        return frame.up(depth).volatileValue(index); }};
+            }
+
+        switch (slot.kind) {
+            case LONG: return new LongNode() {
+                @Override long executeLong (ScopeStorage frame) {
+                    return frame.up(depth).primitives[index]; }};
+            case DOUBLE: return new DoubleNode() {
+                @Override double executeDouble (ScopeStorage frame) {
+                    return Double.longBitsToDouble(frame.up(depth).primitives[index]); }};
+            case BOOLEAN: return new BoolNode() {
+                @Override boolean executeBoolean (ScopeStorage frame) {
+                    return frame.up(depth).primitives[index] != 0; }};
+            default: return new ExecNode() {
+                @Override Object execute (ScopeStorage frame) {
+                    return frame.up(depth).values[index]; }};
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode returnStmt (ReturnNode node)
+    {
+        ExecNode expression = node.expression == null ? null : get(node.expression);
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                throw new Return(expression == null ? null : expression.execute(frame));
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode varDecl (VarDeclarationNode node)
+    {
+        Slot slot = tables.slot(node);
+        Store store = global(slot)
+            ? globalStore(slot, get(node.initializer), tables.type(node))
+            : store(slot, get(node.initializer), tables.type(node));
+        return new ExecNode() {
+            @Override Object execute (ScopeStorage frame) {
+                store.store(frame, frame);
+                return null;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
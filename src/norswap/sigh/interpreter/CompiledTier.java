@@ -0,0 +1,29 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import java.util.function.Function;
+
+/**
+ * A tier of compiled code to which {@link Interpreter} hands over hot functions (cf. {@link
+ * Interpreter#setTier}). The interpreter reports the calls of each function and the iterations of
+ * the loops they contain, and calls the compiled version of a function instead of interpreting it
+ * once it is available.
+ *
+ * <p>Implemented by {@link norswap.sigh.bytecode.TieredCompiler}. Both methods are called by all
+ * the threads that run interpreted code, and must be cheap.
+ */
+public interface CompiledTier
+{
+    /**
+     * Reports a call to {@code function}, and returns its compiled version, or null if it must be
+     * interpreted. The compiled version takes the arguments (converted to the types of the
+     * parameters) and returns the result (null for functions that return nothing), in the
+     * representation of the interpreter.
+     */
+    Function<Object[], Object> call (FunDeclarationNode function);
+
+    /**
+     * Reports an iteration of a loop of {@code function}.
+     */
+    void backEdge (FunDeclarationNode function);
+}
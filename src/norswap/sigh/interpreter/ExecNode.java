@@ -0,0 +1,121 @@
+package norswap.sigh.interpreter;
+
+/**
+ * A node of the executable tree built by {@link ClosureInterpreter} from an analyzed AST.
+ *
+ * <p>Each executable node holds direct references to its children, and has the operators and
+ * types of the AST node it was built from resolved in advance, so that executing it requires no
+ * dispatch and no attribute lookup.
+ *
+ * <p>Nodes whose value is statically known to be an {@code Int}, {@code Float} or {@code Bool}
+ * extend {@link LongNode}, {@link DoubleNode} or {@link BoolNode}, and their parents call the
+ * matching typed entry point ({@link #executeLong}, {@link #executeDouble} or {@link
+ * #executeBoolean}), which avoids boxing intermediate results.
+ */
+abstract class ExecNode
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes the node in the given frame, returning its value (or null for statements). The
+     * value follows the runtime representation documented in {@link Interpreter}.
+     */
+    abstract Object execute (ScopeStorage frame);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a node whose value is an {@code Int}.
+     */
+    long executeLong (ScopeStorage frame) {
+        return (Long) execute(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a node whose value is a {@code Float} (or an {@code Int}, which is converted).
+     */
+    double executeDouble (ScopeStorage frame) {
+        // Int values can end up in Float variables, e.g. via parameters.
+        return ((Number) execute(frame)).doubleValue();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a node whose value is a {@code Bool}.
+     */
+    boolean executeBoolean (ScopeStorage frame) {
+        return (Boolean) execute(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes the node for its side effects only, discarding its value (without boxing it).
+     */
+    void executeVoid (ScopeStorage frame) {
+        execute(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A node whose value is always an {@code Int}.
+     */
+    static abstract class LongNode extends ExecNode
+    {
+        @Override abstract long executeLong (ScopeStorage frame);
+
+        @Override final Object execute (ScopeStorage frame) {
+            return executeLong(frame);
+        }
+
+        @Override final double executeDouble (ScopeStorage frame) {
+            return executeLong(frame);
+        }
+
+        @Override void executeVoid (ScopeStorage frame) {
+            executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A node whose value is always a {@code Float}.
+     */
+    static abstract class DoubleNode extends ExecNode
+    {
+        @Override abstract double executeDouble (ScopeStorage frame);
+
+        @Override final Object execute (ScopeStorage frame) {
+            return executeDouble(frame);
+        }
+
+        @Override void executeVoid (ScopeStorage frame) {
+            executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A node whose value is always a {@code Bool}.
+     */
+    static abstract class BoolNode extends ExecNode
+    {
+        @Override abstract boolean executeBoolean (ScopeStorage frame);
+
+        @Override final Object execute (ScopeStorage frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override void executeVoid (ScopeStorage frame) {
+            executeBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
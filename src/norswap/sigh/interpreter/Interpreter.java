@@ -1,24 +1,25 @@
 package norswap.sigh.interpreter;
 
+import norswap.sigh.AttributeTables;
 import norswap.sigh.ast.*;
 import norswap.sigh.scopes.DeclarationContext;
-import norswap.sigh.scopes.DeclarationKind;
 import norswap.sigh.scopes.RootScope;
 import norswap.sigh.scopes.Scope;
+import norswap.sigh.scopes.Slot;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
 import norswap.sigh.types.*;
 import norswap.uranium.Reactor;
-import norswap.utils.Util;
 import norswap.utils.exceptions.Exceptions;
 import norswap.utils.exceptions.NoStackException;
-import norswap.utils.visitors.ValuedVisitor;
 //import org.graalvm.compiler.graph.spi.Canonicalizable.Binary;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static norswap.utils.Util.cast;
-import static norswap.utils.Vanilla.coIterate;
 import static norswap.utils.Vanilla.map;
 
 /**
@@ -36,70 +37,190 @@ import static norswap.utils.Vanilla.map;
  *     <li>{@code Int}, {@code Float}, {@code Bool}: {@link Long}, {@link Double}, {@link Boolean}</li>
  *     <li>{@code String}: {@link String}</li>
  *     <li>{@code null}: {@link Null#INSTANCE}</li>
- *     <li>Arrays: {@code Object[]}</li>
+ *     <li>Arrays: {@code long[]}, {@code double[]}, {@code boolean[]} for arrays of {@code Int},
+ *     {@code Float}, {@code Bool}, {@code Object[]} otherwise (cf. {@link ArrayValues})</li>
  *     <li>Structs: {@code HashMap<String, Object>}</li>
  *     <li>Functions: the corresponding {@link DeclarationNode} ({@link FunDeclarationNode} or
  *     {@link SyntheticDeclarationNode}), excepted structure constructors, which are
- *     represented by {@link Constructor}</li>
+ *     represented by {@link Constructor}, and channel constructors, which are represented by
+ *     the {@link ChannelType} of the channel</li>
+ *     <li>Channels: {@link Channel}</li>
  *     <li>Types: the corresponding {@link StructDeclarationNode}</li>
  * </ul>
+ *
+ * <p>Given a {@link CompiledTier} (cf. {@link #setTier}), the interpreter reports function calls
+ * and loop iterations to it, and calls the compiled version of the functions that got hot instead
+ * of interpreting them.
  */
 public final class Interpreter
 {
     // ---------------------------------------------------------------------------------------------
 
-    private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
     private final Reactor reactor;
+    private AttributeTables tables;
     private ScopeStorage storage = null;
     private RootScope rootScope;
     private ScopeStorage rootStorage;
 
-    private ExecutorService executorService;
-    private ReentrantLock l;
+    /** Tasks launched in the block being executed, null until the block launches a task. */
+    private TaskScope tasks;
+
+    /** The innermost task scope enclosing the block being executed, or null. */
+    private TaskScope enclosingTasks;
+
+    private LaunchScheduler scheduler = LaunchScheduler.FIXED;
+
+    private ProtectMode protectMode = ProtectMode.LOCK;
+
+    /** The transaction of the protect block being executed (cf. {@link ProtectMode}), or null. */
+    private Transaction transaction;
+
+    /** Fused forms of array expressions (cf. {@link ArrayFusion}), empty if not fused. */
+    private final Map<BinaryExpressionNode, Optional<ArrayFusion>> fusions;
+
+    /** Atomic forms of protect blocks (cf. {@link AtomicUpdate}), empty if not atomic. */
+    private final Map<ProtectBlockNode, Optional<AtomicUpdate>> atomics;
+
+    /** How read-only protect blocks run (cf. {@link ProtectLock#analyze}). */
+    private final Map<ProtectBlockNode, ProtectLock.ReadBlock> readBlocks;
+
+    /** Lock shared by the protect blocks of programs that have read-only blocks. */
+    private final ProtectLock protectLock;
+
+    /** The tier to which hot functions are handed over, or null. */
+    private CompiledTier tier;
+
+    /** The function being executed, or null in top-level code. */
+    private FunDeclarationNode function;
 
     // ---------------------------------------------------------------------------------------------
 
     public Interpreter (Reactor reactor) {
         this.reactor = reactor;
+        this.fusions = new ConcurrentHashMap<>();
+        this.atomics = new ConcurrentHashMap<>();
+        this.readBlocks = new ConcurrentHashMap<>();
+        this.protectLock = new ProtectLock();
+    }
 
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an interpreter for a task launched by {@code parent} in the given task scope. It
+     * shares everything with its parent (tables, root storage, ...), excepted the current storage,
+     * which is initially {@code storage}.
+     */
+    private Interpreter (Interpreter parent, ScopeStorage storage, TaskScope scope) {
+        this.reactor = parent.reactor;
+        this.tables = parent.tables;
+        this.fusions = parent.fusions;
+        this.atomics = parent.atomics;
+        this.readBlocks = parent.readBlocks;
+        this.protectLock = parent.protectLock;
+        this.rootScope = parent.rootScope;
+        this.rootStorage = parent.rootStorage;
+        this.enclosingTasks = scope;
+        this.scheduler = parent.scheduler;
+        this.protectMode = parent.protectMode;
+        this.tier = parent.tier;
+        this.storage = storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps node classes to the methods that evaluate them. The table is shared by all
+     * interpreters and never modified after class initialization, so that an interpreter only
+     * holds the state of an execution, and is cheap to create for each launched task.
+     */
+    private static final Map<Class<?>, BiFunction<Interpreter, SighNode, Object>> dispatch =
+        new HashMap<>();
+
+    private static <T extends SighNode> void register
+            (Class<T> klass, BiFunction<Interpreter, T, ?> method) {
+        dispatch.put(klass, (interpreter, node) -> method.apply(interpreter, cast(node)));
+    }
+
+    static {
         // expressions
-        visitor.register(IntLiteralNode.class,           this::intLiteral);
-        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
-        visitor.register(StringLiteralNode.class,        this::stringLiteral);
-        visitor.register(ReferenceNode.class,            this::reference);
-        visitor.register(ConstructorNode.class,          this::constructor);
-        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
-        visitor.register(ParenthesizedNode.class,        this::parenthesized);
-        visitor.register(FieldAccessNode.class,          this::fieldAccess);
-        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
-        visitor.register(FunCallNode.class,              this::funCall);
-        visitor.register(LaunchNode.class,               this::launchCall);
-        visitor.register(LaunchStateNode.class,          this::launchStateCall);
-        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
-        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
-        visitor.register(ProtectBlockNode.class,         this::protectedBlock);
-        visitor.register(AssignmentNode.class,           this::assignment);
+        register(IntLiteralNode.class,           Interpreter::intLiteral);
+        register(FloatLiteralNode.class,         Interpreter::floatLiteral);
+        register(StringLiteralNode.class,        Interpreter::stringLiteral);
+        register(ReferenceNode.class,            Interpreter::reference);
+        register(ConstructorNode.class,          Interpreter::constructor);
+        register(ChannelConstructorNode.class,   Interpreter::channelConstructor);
+        register(ArrayLiteralNode.class,         Interpreter::arrayLiteral);
+        register(ParenthesizedNode.class,        Interpreter::parenthesized);
+        register(FieldAccessNode.class,          Interpreter::fieldAccess);
+        register(ArrayAccessNode.class,          Interpreter::arrayAccess);
+        register(FunCallNode.class,              Interpreter::funCall);
+        register(LaunchNode.class,               Interpreter::launchCall);
+        register(LaunchStateNode.class,          Interpreter::launchStateCall);
+        register(UnaryExpressionNode.class,      Interpreter::unaryExpression);
+        register(BinaryExpressionNode.class,     Interpreter::binaryExpression);
+        register(ProtectBlockNode.class,         Interpreter::protectedBlock);
+        register(AssignmentNode.class,           Interpreter::assignment);
 
         // statement groups & declarations
-        visitor.register(RootNode.class,                 this::root);
-        visitor.register(BlockNode.class,                this::block);
-        visitor.register(VarDeclarationNode.class,       this::varDecl);
-        // no need to visitor other declarations! (use fallback)
+        register(RootNode.class,                 Interpreter::root);
+        register(BlockNode.class,                Interpreter::block);
+        register(VarDeclarationNode.class,       Interpreter::varDecl);
+        // no need to visitor other declarations! (evaluate to null)
 
         // statements
-        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
-        visitor.register(IfNode.class,                   this::ifStmt);
-        visitor.register(WhileNode.class,                this::whileStmt);
-        visitor.register(ReturnNode.class,               this::returnStmt);
+        register(ExpressionStatementNode.class,  Interpreter::expressionStmt);
+        register(IfNode.class,                   Interpreter::ifStmt);
+        register(WhileNode.class,                Interpreter::whileStmt);
+        register(ReturnNode.class,               Interpreter::returnStmt);
+    }
 
-        visitor.registerFallback(node -> null);
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an interpreter that reads attributes from the given tables, instead of freezing
+     * its own tables when {@link #interpret} is called.
+     */
+    public Interpreter (AttributeTables tables) {
+        this(tables.reactor());
+        this.tables = tables;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the scheduler of the tasks launched by the programs run by this interpreter ({@link
+     * LaunchScheduler#FIXED} by default).
+     */
+    public void setScheduler (LaunchScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets how the protect blocks of the programs run by this interpreter are executed ({@link
+     * ProtectMode#LOCK} by default).
+     */
+    public void setProtectMode (ProtectMode protectMode) {
+        this.protectMode = protectMode;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the tier to which the functions that get hot are handed over (none by default). The
+     * tier must use the same attribute tables as this interpreter.
+     */
+    public void setTier (CompiledTier tier) {
+        this.tier = tier;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     public Object interpret (SighNode root) {
+        if (tables == null)
+            tables = AttributeTables.freeze(root, reactor);
         try {
-            l = new ReentrantLock();
             return run(root);
         } catch (PassthroughException e) {
             throw Exceptions.runtime(e.getCause());
@@ -110,8 +231,9 @@ public final class Interpreter
 
     private Object run (SighNode node) {
         try {
-            return visitor.apply(node);
-        } catch (InterpreterException | Return | PassthroughException e) {
+            BiFunction<Interpreter, SighNode, Object> method = dispatch.get(node.getClass());
+            return method == null ? null : method.apply(this, node);
+        } catch (InterpreterException | Return | PassthroughException | Transaction.Conflict e) {
             throw e;
         } catch (RuntimeException e) {
             throw new InterpreterException("exception while executing " + node, e);
@@ -158,16 +280,17 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] arrayLiteral (ArrayLiteralNode node) {
-        return map(node.components, new Object[0], visitor);
+    private Object arrayLiteral (ArrayLiteralNode node) {
+        Type componentType = ((ArrayType) tables.type(node)).componentType;
+        return ArrayValues.create(componentType, map(node.components, new Object[0], this::get));
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Object binaryExpression (BinaryExpressionNode node)
     {
-        Type leftType  = reactor.get(node.left, "type");
-        Type rightType = reactor.get(node.right, "type");
+        Type leftType  = tables.type(node.left);
+        Type rightType = tables.type(node.right);
 
         // Cases where both operands should not be evaluated.
         switch (node.operator) {
@@ -176,6 +299,13 @@ public final class Interpreter
             case MAT_PRODUCT: return matricialProduct(node); // We treat this case apart
         }
 
+        if (leftType instanceof ArrayType && rightType instanceof ArrayType) {
+            ArrayFusion fusion = fusions.computeIfAbsent(node, n -> Optional.ofNullable(
+                ArrayFusion.of(n, tables::type))).orElse(null);
+            if (fusion != null)
+                return fusedArrayExpression(fusion);
+        }
+
         Object left  = get(node.left);
         Object right = get(node.right);
 
@@ -187,28 +317,14 @@ public final class Interpreter
         boolean numeric  = floating || leftType instanceof IntType;
         boolean array = leftType instanceof ArrayType && rightType instanceof ArrayType;
 
-
         if (numeric)
             return numericOp(node, floating, (Number) left, (Number) right);
-        if (array) {
-
-            // diving into the multi dimension to find the type of the array
-            while ((((ArrayType) leftType).componentType instanceof ArrayType)) {
-                leftType = ((ArrayType) leftType).componentType;
-            }
-            while ((((ArrayType) rightType).componentType instanceof ArrayType)) {
-                rightType = ((ArrayType) rightType).componentType;
-            }
-            boolean arrayOfFloatLeft = (((ArrayType) leftType).componentType == FloatType.INSTANCE);
-            boolean arrayOfFloatRight = (((ArrayType) rightType).componentType == FloatType.INSTANCE);
 
-            Object[] nodeLeft = getNonNullArray(node.left);
-            Object[] noderight =  getNonNullArray(node.right);
-
-            if (node.operator == BinaryOperator.MULTIPLY || node.operator == BinaryOperator.DIVIDE ||
-                node.operator == BinaryOperator.ADD || node.operator == BinaryOperator.SUBTRACT)
-                return arrayOp(node);
-        }
+        if (array && (node.operator == BinaryOperator.MULTIPLY
+                || node.operator == BinaryOperator.DIVIDE
+                || node.operator == BinaryOperator.ADD
+                || node.operator == BinaryOperator.SUBTRACT))
+            return ArrayValues.compute(nonNullArray(left), nonNullArray(right), node.operator);
 
         switch (node.operator) {
             case EQUALITY:
@@ -221,6 +337,16 @@ public final class Interpreter
     }
 
 
+    // ---------------------------------------------------------------------------------------------
+
+    private Object fusedArrayExpression (ArrayFusion fusion)
+    {
+        Object[] values = new Object[fusion.leaves.size()];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = getNonNullArray(fusion.leaves.get(i));
+        return fusion.evaluate(values);
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     private boolean booleanOp (BinaryExpressionNode node, boolean isAnd)
@@ -287,205 +413,8 @@ public final class Interpreter
     // ---------------------------------------------------------------------------------------------
 
     private Object matricialProduct (BinaryExpressionNode node) {
-        Object[] ar1 = getNonNullArray(node.left);
-        Object[] ar2 = getNonNullArray(node.right);
-        Object[] first1 = (Object[]) ar1[0];
-        Object[] first2 = (Object[]) ar2[0];
-        if (ar1.length != first2.length)
-            throw new Error("Number of lines of array1 : " + ar1.length + " is different of number of columns of array2 : " + first2.length);
-
-        Object[][] ar2DA = new Object[ar1.length][first1.length];
-        Object[][] ar2DB = new Object[ar2.length][first2.length];
-        for (int i = 0; i < ar1.length; i++) {
-            ar2DA[i] = (Object[]) ar1[i];
-        }
-        for (int i = 0; i < ar2.length; i++) {
-            ar2DB[i] = (Object[]) ar2[i];
-        }
-        return multiplyMatrices(ar2DA, ar2DB);
-    }
-
-    private Object[][] multiplyMatrices(Object[][] firstMatrix, Object[][] secondMatrix) {
-        Object[][] result = new Double[firstMatrix.length][secondMatrix[0].length];
-        Object o = firstMatrix[0][0];
-
-        for (int row = 0; row < result.length; row++) {
-            for (int col = 0; col < result[row].length; col++) {
-                result[row][col] = multiplyMatricesCell(firstMatrix, secondMatrix, row, col);
-            }
-        }
-
-        return result;
-    }
-
-    private Object multiplyMatricesCell(Object[][] firstMatrix, Object[][] secondMatrix, int row, int col) {
-        double cell = 0.0;
-        for (int i = 0; i < secondMatrix.length; i++) {
-            if (firstMatrix[row][i] instanceof Double) {
-                if (secondMatrix[i][col] instanceof Double)
-                    cell += (Double) firstMatrix[row][i] * (Double) secondMatrix[i][col];
-                else if (secondMatrix[i][col] instanceof Long)
-                    cell += (Double) firstMatrix[row][i] * ((Long) secondMatrix[i][col]).doubleValue();
-            }
-            else if (firstMatrix[row][i] instanceof Long) {
-                if (secondMatrix[i][col] instanceof Double)
-                    cell += ((Long) firstMatrix[row][i]).doubleValue() * (Double) secondMatrix[i][col];
-                else if (secondMatrix[i][col] instanceof Long)
-                    cell += ((Long) firstMatrix[row][i]).doubleValue() * ((Long) secondMatrix[i][col]).doubleValue();
-            }
-        }
-        return cell;
-    }
-
-    public Object arrayOp (BinaryExpressionNode node) {
-        Object[] ar1 = getNonNullArray(node.left);
-        Object[] ar2 = getNonNullArray(node.right);
-        return computeArrayExpression(ar1, ar2, node.operator);
-    }
-
-    private Object computeArrayExpression(Object[] ar1, Object[] ar2, BinaryOperator operator) {
-        // verifying that the 2 arrays have the same length
-        if (ar1.length != ar2.length) {
-            throw new Error("The two arrays must have the same length: array1.length is " + ar1.length + " and array2.length is " + ar2.length);
-        }
-
-        if (ar1.length == 0)
-            return new Object[0];
-        /*if (ar1.length == 0) {
-            throw new Error("No operations allowed on empty arrays"); // TODO, changer
-        }*/
-
-        Object[] res = new Object[ar1.length];
-        if (ar1[0].getClass().isArray() && ar2[0].getClass().isArray()) {
-            for (int i = 0; i < ar1.length; i++) {
-                // Recursive call to deal with multi-dimensional array
-                res[i] = computeArrayExpression((Object[]) ar1[i], (Object[]) ar2[i], operator);
-            }
-            return res;
-        }
-
-        boolean floatLeft = ar1[0] instanceof Double;
-        boolean floatRight = ar2[0] instanceof Double;
-        switch (operator) {
-            case ADD:
-                if (floatLeft || floatRight) {
-                    Double[] resultD = new Double[ar1.length];
-                    if (floatLeft && floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] + (Double) ar2[i];
-                        }
-                        return resultD;
-                    }
-                    else if (floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar2[i] + ((Number) ar1[i]).doubleValue();
-                        }
-                        return resultD;
-                    }
-                    else {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] + ((Number) ar2[i]).doubleValue();
-                        }
-                        return resultD;
-                    }
-                }
-                else if (ar1[0] instanceof Long && ar2[0] instanceof Long) {
-                    Long[] resultL = new Long[ar1.length];
-                    for (int i = 0; i < ar1.length; i++) {
-                        resultL[i] = (Long) ar1[i] + (Long) ar2[i];
-                    }
-                    return resultL;
-                }
-            case SUBTRACT:
-                if (floatLeft || floatRight) {
-                    Double[] resultD = new Double[ar1.length];
-                    if (floatLeft && floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] - (Double) ar2[i];
-                        }
-                        return resultD;
-                    }
-                    else if (floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = ((Number) ar1[i]).doubleValue() - (Double) ar2[i];
-                        }
-                        return resultD;
-                    }
-                    else {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] - ((Number) ar2[i]).doubleValue();
-                        }
-                        return resultD;
-                    }
-                }
-                else if (ar1[0] instanceof Long && ar2[0] instanceof Long) {
-                    Long[] resultL = new Long[ar1.length];
-                    for (int i = 0; i < ar1.length; i++) {
-                        resultL[i] = (Long) ar1[i] - (Long) ar2[i];
-                    }
-                    return resultL;
-                }
-            case MULTIPLY:
-                if (floatLeft || floatRight) {
-                    Double[] resultD = new Double[ar1.length];
-                    if (floatLeft && floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] * (Double) ar2[i];
-                        }
-                        return resultD;
-                    }
-                    else if (floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar2[i] * ((Number) ar1[i]).doubleValue();
-                        }
-                        return resultD;
-                    }
-                    else {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] * ((Number) ar2[i]).doubleValue();
-                        }
-                        return resultD;
-                    }
-                }
-                else if (ar1[0] instanceof Long && ar2[0] instanceof Long) {
-                    Long[] resultL = new Long[ar1.length];
-                    for (int i = 0; i < ar1.length; i++) {
-                        resultL[i] = (Long) ar1[i] * (Long) ar2[i];
-                    }
-                    return resultL;
-                }
-            case DIVIDE:
-                if (floatLeft || floatRight) {
-                    Double[] resultD = new Double[ar1.length];
-                    if (floatLeft && floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] / (Double) ar2[i];
-                        }
-                        return resultD;
-                    }
-                    else if (floatRight) {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = ((Number) ar1[i]).doubleValue() / (Double) ar2[i];
-                        }
-                        return resultD;
-                    }
-                    else {
-                        for (int i = 0; i < ar1.length; i++) {
-                            resultD[i] = (Double) ar1[i] / ((Number) ar2[i]).doubleValue();
-                        }
-                        return resultD;
-                    }
-                }
-                else if (ar1[0] instanceof Long && ar2[0] instanceof Long) {
-                    Long[] resultL = new Long[ar1.length];
-                    for (int i = 0; i < ar1.length; i++) {
-                        resultL[i] = (Long) ar1[i] / (Long) ar2[i];
-                    }
-                    return resultL;
-                }
-            default: throw new Error("Operand not supported, use among : + ; - ; * ; / or types of array1 and array2 are different from :" +
-                "Float - Integer / Integer - Float / Float - Float / Integer - Integer");
-        }
+        Object left = getNonNullArray(node.left);
+        return MatrixProduct.multiply(left, getNonNullArray(node.right));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -493,19 +422,23 @@ public final class Interpreter
     public Object assignment (AssignmentNode node)
     {
         if (node.left instanceof ReferenceNode) {
-            Scope scope = reactor.get(node.left, "scope");
-            String name = ((ReferenceNode) node.left).name;
+            Slot slot = tables.slot(node.left);
             Object rvalue = get(node.right);
-            assign(scope, name, rvalue, reactor.get(node, "type"));
+            assign(slot, rvalue, tables.type(node));
             return rvalue;
         }
 
         if (node.left instanceof ArrayAccessNode) {
             ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
-            Object[] array = getNonNullArray(arrayAccess.array);
+            Object array = getNonNullArray(arrayAccess.array);
             int index = getIndex(arrayAccess.index);
+            Object rvalue = get(node.right);
             try {
-                return array[index] = get(node.right);
+                if (transaction != null)
+                    transaction.write(array, index, convert(rvalue, tables.type(node)));
+                else
+                    ArrayValues.set(array, index, convert(rvalue, tables.type(node)));
+                return rvalue;
             } catch (ArrayIndexOutOfBoundsException e) {
                 throw new PassthroughException(e);
             }
@@ -519,7 +452,10 @@ public final class Interpreter
                     new NullPointerException("accessing field of null object"));
             Map<String, Object> struct = cast(object);
             Object right = get(node.right);
-            struct.put(fieldAccess.fieldName, right);
+            if (transaction != null)
+                transaction.write(struct, fieldAccess.fieldName, convert(right, tables.type(node)));
+            else
+                struct.put(fieldAccess.fieldName, convert(right, tables.type(node)));
             return right;
         }
 
@@ -540,12 +476,17 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] getNonNullArray (ExpressionNode node)
+    private Object getNonNullArray (ExpressionNode node) {
+        return nonNullArray(get(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static Object nonNullArray (Object object)
     {
-        Object object = get(node);
         if (object == Null.INSTANCE)
             throw new PassthroughException(new NullPointerException("indexing null array"));
-        return (Object[]) object;
+        return object;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -561,9 +502,11 @@ public final class Interpreter
 
     private Object arrayAccess (ArrayAccessNode node)
     {
-        Object[] array = getNonNullArray(node.array);
+        Object array = getNonNullArray(node.array);
         try {
-            return array[getIndex(node.index)];
+            return transaction != null
+                ? transaction.read(array, getIndex(node.index))
+                : ArrayValues.get(array, getIndex(node.index));
         } catch (ArrayIndexOutOfBoundsException e) {
             throw new PassthroughException(e);
         }
@@ -574,43 +517,73 @@ public final class Interpreter
     private Object root (RootNode node)
     {
         assert storage == null;
-        rootScope = reactor.get(node, "scope");
+        rootScope = (RootScope) tables.scope(node);
         storage = rootStorage = new ScopeStorage(rootScope, null);
         storage.initRoot(rootScope);
 
-        int cores = Runtime.getRuntime().availableProcessors();
-
-        executorService = Executors.newFixedThreadPool(cores*2);
-
+        tasks = enclosingTasks = null;
+        Object value = null;
+        boolean completed = false;
 
         try {
             node.statements.forEach(this::run);
-            executorService.shutdown();
-            try {
-                boolean terminated = false;
-                while (!executorService.isTerminated() && !terminated) {
-                    terminated = executorService.awaitTermination(1000, TimeUnit.MILLISECONDS);
-                }
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+            completed = true;
         } catch (Return r) {
-            return r.value;
+            value = r.value;
+            completed = true;
             // allow returning from the main script
         } finally {
             storage = null;
+            if (tasks != null)
+                tasks.join(completed);
+        }
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs a block, then joins the tasks launched in it (cf. {@link TaskScope}).
+     */
+    private Void block (BlockNode node)
+    {
+        TaskScope outerTasks = tasks;
+        TaskScope outerEnclosing = enclosingTasks;
+        if (tasks != null)
+            enclosingTasks = tasks;
+        tasks = null;
+        boolean completed = false;
+
+        try {
+            blockBody(node);
+            completed = true;
+        } catch (Return r) {
+            completed = true;
+            throw r;
+        } finally {
+            TaskScope own = tasks;
+            tasks = outerTasks;
+            enclosingTasks = outerEnclosing;
+            if (own != null)
+                own.join(completed);
         }
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Void block (BlockNode node) {
-        Scope scope = reactor.get(node, "scope");
+    /**
+     * Runs the statements of a block, launching its tasks in the current task scope.
+     */
+    private void blockBody (BlockNode node)
+    {
+        Scope scope = tables.scope(node);
         storage = new ScopeStorage(scope, storage);
-        node.statements.forEach(this::run);
-        storage = storage.parent;
-        return null;
+        try {
+            node.statements.forEach(this::run);
+        } finally {
+            storage = storage.parent;
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -622,6 +595,12 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
+    private ChannelType channelConstructor (ChannelConstructorNode node) {
+        return (ChannelType) ((FunType) tables.type(node)).returnType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object expressionStmt (ExpressionStatementNode node) {
         get(node.expression);
         return null;  // discard value
@@ -635,27 +614,89 @@ public final class Interpreter
         if (stem == Null.INSTANCE)
             throw new PassthroughException(
                 new NullPointerException("accessing field of null object"));
-        return stem instanceof Map
-            ? Util.<Map<String, Object>>cast(stem).get(node.fieldName)
-            : (long) ((Object[]) stem).length; // only field on arrays
+        if (!(stem instanceof Map))
+            return (long) ArrayValues.length(stem); // only field on arrays
+        Map<String, Object> struct = cast(stem);
+        return transaction != null
+            ? transaction.read(struct, node.fieldName)
+            : struct.get(node.fieldName);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Object protectedBlock(ProtectBlockNode node) {
-        if (node.lock == null) {
-            l.lock();
-            if (node.lock == null) {
-                node.lock = new ReentrantLock();
+        if (protectMode == ProtectMode.TRANSACTION)
+            return transactionalBlock(node);
+
+        AtomicUpdate update = atomics.computeIfAbsent(node, n -> Optional.ofNullable(
+            AtomicUpdate.of(n, tables, false))).orElse(null);
+        if (update != null) {
+            // the operand is in the scope of the block
+            storage = new ScopeStorage(tables.scope(node.protectedBlock), storage);
+            try {
+                update.apply(rootStorage, (Object) get(update.operand));
+            } finally {
+                storage = storage.parent;
             }
-            l.unlock();
+            return 1;
+        }
+
+        if (node.readOnly) {
+            ProtectLock.ReadBlock read =
+                readBlocks.computeIfAbsent(node, n -> ProtectLock.analyze(n, tables));
+            // blocks that call functions run like the other blocks
+            if (!read.exclusive)
+                return protectLock.read(
+                    read.optimistic ? () -> snapshot(read.assigned) : null,
+                    () -> protectedBody(node));
         }
+
+        return tables.readProtects()
+            ? protectLock.write(() -> lockedBlock(node))
+            : lockedBlock(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Saves the variables that a read-only block assigns, and returns an action that restores them
+     * (cf. {@link ProtectLock#read}).
+     */
+    private Runnable snapshot (List<ReferenceNode> assigned)
+    {
+        ScopeStorage[] frames = new ScopeStorage[assigned.size()];
+        Object[] values = new Object[frames.length];
+        for (int i = 0; i < frames.length; ++i) {
+            ReferenceNode reference = assigned.get(i);
+            frames[i] = storage.find(tables.scope(reference));
+            values[i] = frames[i].values[tables.slot(reference).index];
+        }
+        return () -> {
+            for (int i = 0; i < frames.length; ++i)
+                frames[i].values[tables.slot(assigned.get(i)).index] = values[i];
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object lockedBlock (ProtectBlockNode node)
+    {
+        ReentrantLock lock = node.lock();
+        lock.lock();
         try {
-            node.lock.lock();
-            get(node.protectedBlock);
-            node.lock.unlock();
+            return protectedBody(node);
+        } finally {
+            lock.unlock();
         }
-        catch (Return r) {
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object protectedBody (ProtectBlockNode node)
+    {
+        try {
+            get(node.protectedBlock);
+        } catch (Return r) {
             return r.value;
         }
         return 1;
@@ -663,89 +704,166 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
+    private Object transactionalBlock (ProtectBlockNode node)
+    {
+        // nested blocks are part of the enclosing transaction
+        if (transaction != null)
+            return protectedBody(node);
+
+        try {
+            return Transaction.run(transaction -> {
+                this.transaction = transaction;
+                return protectedBody(node);
+            });
+        } finally {
+            transaction = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object funCall (FunCallNode node)
     {
         Object decl = get(node.function);
-        node.arguments.forEach(this::run);
-        Object[] args = map(node.arguments, new Object[0], visitor);
-
-        if (decl == Null.INSTANCE)
-            throw new PassthroughException(new NullPointerException("calling a null function"));
+        Object[] args = map(node.arguments, new Object[0], this::get);
 
         if (decl instanceof SyntheticDeclarationNode) {
+            String name = ((SyntheticDeclarationNode) decl).name();
+            switch (name) {
+                case "pmap": case "preduce": case "pfor":
+                    return parallelBuiltin(name, node, args);
+                case "send": case "receive": case "close": case "more":
+                    return channelBuiltin(name, args);
+            }
             List<Object> objects = new ArrayList<>();
             objects.add(args[0]);
-            if (node.arguments.get(0) instanceof ReferenceNode) {
-                ReferenceNode referenceNode = (ReferenceNode) node.arguments.get(0);
-                objects.add(referenceNode.name);
-            }
-            return builtin(((SyntheticDeclarationNode) decl).name(), objects.toArray());
+            if (node.arguments.get(0) instanceof ReferenceNode)
+                objects.add(node.arguments.get(0));
+            return builtin(name, objects.toArray());
         }
 
+        return call(decl, (FunType) tables.type(node.function), args);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls a function value of the given type, with the given (unconverted) arguments.
+     */
+    private Object call (Object decl, FunType funType, Object[] args)
+    {
+        if (decl == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("calling a null function"));
+
+        if (decl instanceof SyntheticDeclarationNode)
+            return builtin(((SyntheticDeclarationNode) decl).name(), args);
+
+        for (int i = 0; i < args.length; ++i)
+            args[i] = convert(args[i], funType.paramTypes[i]);
+
         if (decl instanceof Constructor)
             return buildStruct(((Constructor) decl).declaration, args);
 
-        ScopeStorage oldStorage = storage;
-        Scope scope = reactor.get(decl, "scope");
-        storage = new ScopeStorage(scope, storage);
+        if (decl instanceof ChannelType)
+            return newChannel((ChannelType) decl, args[0]);
 
         FunDeclarationNode funDecl = (FunDeclarationNode) decl;
-        coIterate(args, funDecl.parameters,
-            (arg, param) -> storage.set(scope, param.name, arg));
+        if (tier != null) {
+            Function<Object[], Object> compiled = tier.call(funDecl);
+            if (compiled != null)
+                return convert(compiled.apply(args), funType.returnType);
+        }
+
+        ScopeStorage oldStorage = storage;
+        FunDeclarationNode oldFunction = function;
+        function = funDecl;
+        Scope scope = tables.scope(funDecl);
+        // the parent frame is the one of the scope where the function is declared
+        storage = new ScopeStorage(scope, storage.find(scope.parent));
+
+        // parameters occupy the first slots of the function's scope, in order
+        System.arraycopy(args, 0, storage.values, 0, args.length);
 
         try {
             get(funDecl.block);
         } catch (Return r) {
-            return r.value;
+            return convert(r.value, funType.returnType);
         } finally {
             storage = oldStorage;
+            function = oldFunction;
         }
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Runs {@code pmap}, {@code preduce} or {@code pfor} (cf. {@link ParallelBuiltins}). Each
+     * chunk calls the function in its own interpreter, which shares the current storage.
+     */
+    private Object parallelBuiltin (String name, FunCallNode node, Object[] args)
+    {
+        TaskScope parent = tasks != null ? tasks : enclosingTasks;
+        TaskScope scope = new TaskScope(scheduler.executor(), parent);
+        ScopeStorage storage = this.storage;
+        int funIndex = name.equals("pfor") ? 2 : 0;
+        Object function = args[funIndex];
+        FunType funType = (FunType) tables.type(node.arguments.get(funIndex));
+        Supplier<ParallelBuiltins.Callee> callees = () -> {
+            Interpreter interpreter = new Interpreter(this, storage, scope);
+            return values -> interpreter.call(function, funType, values);
+        };
+
+        switch (name) {
+            case "pmap":
+                return ParallelBuiltins.map(scope, callees, nonNullArray(args[1]),
+                    ((ArrayType) tables.type(node)).componentType);
+            case "preduce":
+                return ParallelBuiltins.reduce(scope, callees, nonNullArray(args[1]), args[2],
+                    tables.type(node));
+            case "pfor":
+                ParallelBuiltins.loop(scope, callees, (Long) args[0], (Long) args[1]);
+                return null;
+            default:
+                throw new Error("should not reach here");
+        }
+    }
 
-    private class LaunchInterpreter implements Runnable {
+    // ---------------------------------------------------------------------------------------------
 
-        FunCallNode funcall;
-        VarDeclarationNode varDecl;
+    private class LaunchInterpreter implements Runnable {
 
-        public LaunchInterpreter (FunCallNode funcall, VarDeclarationNode varDecl) {
-            this.funcall = funcall;
-            this.varDecl = varDecl;
+        SighNode node;
+        // the storage in which the launch statement is executed
+        ScopeStorage storage;
+        // the task scope in which the task is launched
+        TaskScope scope;
+
+        public LaunchInterpreter (SighNode node) {
+            this.node = node;
+            this.storage = Interpreter.this.storage;
+            if (tasks == null)
+                tasks = new TaskScope(scheduler.executor(), enclosingTasks);
+            this.scope = tasks;
         }
 
         @Override
         public void run () {
-            Interpreter interpreter2 = new Interpreter(reactor);
-            interpreter2.rootStorage = rootStorage;
-            interpreter2.storage = storage;
-            if (funcall == null) {
-                interpreter2.interpret(varDecl);
-            } else {
-                interpreter2.interpret(funcall);
-            }
+            new Interpreter(Interpreter.this, storage, scope).interpret(node);
         }
     }
 
     private Object launchCall(LaunchNode node) {
-        LaunchInterpreter launchInterpreter = new LaunchInterpreter(node.funCall, null);
-        try {
-            executorService.execute(launchInterpreter);
-        } catch (Exception e) {
-            System.out.println("thread didn't run correctly");
-        }
+        LaunchInterpreter launchInterpreter = new LaunchInterpreter(node.funCall);
+        launchInterpreter.scope.launch(launchInterpreter);
         return VoidType.INSTANCE;
     }
 
     private Object launchStateCall(LaunchStateNode node) {
-        LaunchInterpreter launchInterpreter = new LaunchInterpreter(null, node.varDeclaration);
-        try {
-            executorService.execute(launchInterpreter);
-        } catch (Exception e) {
-            System.out.println("thread didn't run correctly");
-        }
+        LaunchInterpreter launchInterpreter = new LaunchInterpreter(node.varDeclaration);
+        Slot slot = tables.slot(node.varDeclaration);
+        TaskScope.Task task = launchInterpreter.scope.launch(launchInterpreter);
+        storage.up(slot.depth).launch(slot.index, task);
         return VoidType.INSTANCE;
     }
 
@@ -758,24 +876,13 @@ public final class Interpreter
             System.out.println(out);
             return out;
         } else if (Objects.equals(name, "wait")) {
-            while (true) {
-                // waiting 20 milliseconds to not overuse the main thread
-                try {
-                    TimeUnit.MILLISECONDS.sleep(20);
-                } catch (Exception e) {
-                    System.out.println("problem with waiting");
-                }
-                try {
-                    String variable = args[1].toString();
-                    Object valueVar = rootStorage.get(rootScope, variable);
-                    if (valueVar != null) {
-                        // the variable is assigned, we can continue the execution of the main thread
-                        return null;
-                    }
-                } catch (Exception e) {
-                    System.out.println("problem while trying to retrieve the value of the var in the rootStorage");
-                }
+            // blocks until the task launched to initialize the variable terminates
+            if (args.length > 1) {
+                Slot slot = tables.slot((ReferenceNode) args[1]);
+                if (slot != null)
+                    storage.up(slot.depth).await(slot.index, false);
             }
+            return null;
         } else {
             throw new Error("This is not a builtin function : " + name);
         }
@@ -783,25 +890,73 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private String convertToString (Object arg)
+    /**
+     * Creates a channel of the given type (for {@code $Channel<T>(capacity)}).
+     */
+    static Channel newChannel (ChannelType type, Object capacity)
+    {
+        try {
+            return new Channel((Long) capacity, type.componentType);
+        } catch (IllegalArgumentException e) {
+            throw new PassthroughException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code send}, {@code receive}, {@code close} or {@code more} on the channel passed as
+     * first argument (cf. {@link Channel}).
+     */
+    static Object channelBuiltin (String name, Object[] args)
+    {
+        if (args[0] == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("using a null channel"));
+        Channel channel = (Channel) args[0];
+        try {
+            switch (name) {
+                case "send":
+                    channel.send(args[1]);
+                    return null;
+                case "receive":
+                    return channel.receive();
+                case "close":
+                    channel.close();
+                    return null;
+                case "more":
+                    return channel.more();
+                default:
+                    throw new Error("should not reach here");
+            }
+        } catch (IllegalStateException e) {
+            // using a closed channel
+            throw new PassthroughException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static String convertToString (Object arg)
     {
         if (arg == Null.INSTANCE)
             return "null";
-        else if (arg instanceof Object[])
-            return Arrays.deepToString((Object[]) arg);
+        else if (arg.getClass().isArray())
+            return ArrayValues.toString(arg);
         else if (arg instanceof FunDeclarationNode)
             return ((FunDeclarationNode) arg).name;
         else if (arg instanceof StructDeclarationNode)
             return ((StructDeclarationNode) arg).name;
         else if (arg instanceof Constructor)
             return "$" + ((Constructor) arg).declaration.name;
+        else if (arg instanceof ChannelType)
+            return "$" + arg;
         else
             return arg.toString();
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private HashMap<String, Object> buildStruct (StructDeclarationNode node, Object[] args)
+    static HashMap<String, Object> buildStruct (StructDeclarationNode node, Object[] args)
     {
         HashMap<String, Object> struct = new HashMap<>();
         for (int i = 0; i < node.fields.size(); ++i)
@@ -824,8 +979,15 @@ public final class Interpreter
 
     private Void whileStmt (WhileNode node)
     {
-        while (get(node.condition))
-            get(node.body);
+        // tasks launched in the body belong to the enclosing scope
+        while (get(node.condition)) {
+            if (node.body instanceof BlockNode)
+                blockBody((BlockNode) node.body);
+            else
+                run(node.body);
+            if (tier != null && function != null)
+                tier.backEdge(function);
+        }
         return null;
     }
 
@@ -833,21 +995,17 @@ public final class Interpreter
 
     private Object reference (ReferenceNode node)
     {
-        Scope scope = reactor.get(node, "scope");
-        DeclarationNode decl = reactor.get(node, "decl");
-
-        if (decl instanceof VarDeclarationNode
-            || decl instanceof ParameterNode
-            || decl instanceof SyntheticDeclarationNode
-            && ((SyntheticDeclarationNode) decl).kind() == DeclarationKind.VARIABLE)
-
-            if (scope == rootScope) {
-                return rootStorage.get(scope, node.name);
-            } else {
-                return storage.get(scope, node.name);
-            }
-
-        return decl; // structure or function
+        // only set for variables
+        Slot slot = tables.slot(node);
+        if (slot == null)
+            return tables.decl(node); // structure or function
+
+        if (transaction != null) {
+            ScopeStorage declaring = storage.up(slot.depth);
+            if (declaring.shared)
+                return transaction.read(declaring, slot.index);
+        }
+        return storage.get(slot);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -860,18 +1018,40 @@ public final class Interpreter
 
     private Void varDecl (VarDeclarationNode node)
     {
-        Scope scope = reactor.get(node, "scope");
-        assign(scope, node.name, get(node.initializer), reactor.get(node, "type"));
+        Slot slot = tables.slot(node);
+        assign(slot, get(node.initializer), tables.type(node));
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private void assign (Scope scope, String name, Object value, Type targetType)
+    private void assign (Slot slot, Object value, Type targetType)
+    {
+        if (transaction != null) {
+            ScopeStorage declaring = storage.up(slot.depth);
+            if (declaring.shared)
+                transaction.write(declaring, slot.index, convert(value, targetType));
+            else
+                transaction.writeLocal(declaring, slot.index, convert(value, targetType));
+            return;
+        }
+        storage.set(slot, convert(value, targetType));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Converts a value before storing it in a location whose static type is {@code type}: {@code
+     * Int} values become {@code Float} values, and arrays are converted by {@link
+     * ArrayValues#convert}.
+     */
+    static Object convert (Object value, Type type)
     {
-        if (value instanceof Long && targetType instanceof FloatType)
-            value = ((Long) value).doubleValue();
-        storage.set(scope, name, value);
+        if (type instanceof FloatType && value instanceof Long)
+            return ((Long) value).doubleValue();
+        if (type instanceof ArrayType)
+            return ArrayValues.convert(value, (ArrayType) type);
+        return value;
     }
 
     // ---------------------------------------------------------------------------------------------
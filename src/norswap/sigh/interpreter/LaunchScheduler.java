@@ -0,0 +1,85 @@
+package norswap.sigh.interpreter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The kinds of executors in which the tasks started by {@code launch} statements run, for both
+ * {@link Interpreter} and {@link ClosureInterpreter}.
+ *
+ * <p>Each scheduler has a {@link #executor() shared executor}, created on first use and never shut
+ * down, which is used by all the runs of all programs: runs don't pay for the creation of threads,
+ * and track their own tasks (cf. {@link TaskScope}). Its threads are daemon threads, so that they
+ * do not prevent the JVM from exiting.
+ *
+ * <p>The scheduler matters for programs whose tasks block (e.g. on {@code wait}): such tasks hold
+ * on to the threads of a {@link #FIXED} pool, which can exhaust it. {@link #VIRTUAL} threads do not
+ * hold on to a platform thread while blocked, and allow a very large number of concurrent tasks.
+ */
+public enum LaunchScheduler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** A fixed pool with twice as many platform threads as there are available processors. */
+    FIXED {
+        @Override public ExecutorService create () {
+            int threads = Runtime.getRuntime().availableProcessors() * 2;
+            return Executors.newFixedThreadPool(threads, DAEMON);
+        }
+    },
+
+    /**
+     * A work-stealing {@link java.util.concurrent.ForkJoinPool} whose parallelism is the number of
+     * available processors. The pool adds threads to compensate for the tasks blocked on {@code
+     * wait}, up to a limit.
+     */
+    WORK_STEALING {
+        @Override public ExecutorService create () {
+            return Executors.newWorkStealingPool();
+        }
+    },
+
+    /** A new virtual thread for each task. */
+    VIRTUAL {
+        @Override public ExecutorService create () {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+    };
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final ThreadFactory DAEMON = runnable -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    private volatile ExecutorService executor;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new executor of this kind.
+     */
+    public abstract ExecutorService create ();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the shared executor of this kind, creating it if needed.
+     */
+    public ExecutorService executor ()
+    {
+        ExecutorService executor = this.executor;
+        if (executor != null)
+            return executor;
+        synchronized (this) {
+            if (this.executor == null)
+                this.executor = create();
+            return this.executor;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,183 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Implements the matrix product ({@code @}) between two 2-dimensional numeric arrays, for both
+ * {@link Interpreter} and {@link ClosureInterpreter}.
+ *
+ * <p>The rows of both operands (which are {@code long[]} or {@code double[]}, cf. {@link
+ * ArrayValues}) are first packed into contiguous row-major {@code double[]} buffers. The product is
+ * then computed in a third buffer by a tiled (cache-blocked) kernel, and finally unpacked into an
+ * array of {@code double[]} rows.
+ *
+ * <p>Products that require fewer multiply-adds than {@link ArrayParallelism#threshold()} run
+ * sequentially on the calling thread. Larger products are split into blocks of rows, computed by
+ * fork/join tasks run in {@link ArrayParallelism#pool()}.
+ */
+public final class MatrixProduct
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of rows of the left operand (and of the result) in a tile. */
+    private static final int ROW_TILE = 32;
+
+    /** Number of columns of the left operand (rows of the right operand) in a tile. */
+    private static final int INNER_TILE = 128;
+
+    /** Number of columns of the right operand (and of the result) in a tile. */
+    private static final int COLUMN_TILE = 512;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private MatrixProduct () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the matrix product of the two 2-dimensional arrays, whose rows are {@code long[]}
+     * or {@code double[]}. The result is always an array of {@code double[]} rows.
+     */
+    public static Object[] multiply (Object left, Object right)
+    {
+        Object[] ar1 = (Object[]) left;
+        Object[] ar2 = (Object[]) right;
+        int columns = ar2.length == 0 ? 0 : ArrayValues.length(ar2[0]);
+        if (ar1.length != columns)
+            throw new Error("Number of lines of array1 : " + ar1.length
+                + " is different of number of columns of array2 : " + columns);
+
+        int rows = ar1.length;
+        int inner = ar2.length;
+        double[] a = pack(ar1, inner);
+        double[] b = pack(ar2, columns);
+        double[] c = new double[rows * columns];
+
+        long work = (long) rows * inner * columns;
+        int threshold = ArrayParallelism.threshold();
+        if (rows < 2 || work < threshold)
+            multiply(a, b, c, inner, columns, 0, rows);
+        else {
+            long rowWork = Math.max(1L, (long) inner * columns);
+            int grain = (int) Math.max(1, threshold / rowWork);
+            RowBlock task = new RowBlock(a, b, c, inner, columns, 0, rows, grain);
+            if (ForkJoinTask.inForkJoinPool())
+                task.invoke(); // nested operation: run in the current pool
+            else
+                ArrayParallelism.pool().invoke(task);
+        }
+
+        return unpack(c, rows, columns);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies the rows of the matrix into a row-major buffer, checking that they all have {@code
+     * width} components.
+     */
+    private static double[] pack (Object[] matrix, int width)
+    {
+        double[] buffer = new double[matrix.length * width];
+        for (int i = 0; i < matrix.length; i++) {
+            Object row = matrix[i];
+            int length = ArrayValues.length(row);
+            if (length != width)
+                throw new Error("Row " + i + " has " + length + " columns instead of " + width);
+            int offset = i * width;
+            if (row instanceof double[])
+                System.arraycopy(row, 0, buffer, offset, width);
+            else {
+                long[] longs = (long[]) row;
+                for (int j = 0; j < width; j++)
+                    buffer[offset + j] = longs[j];
+            }
+        }
+        return buffer;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Splits a row-major buffer into an array of {@code double[]} rows.
+     */
+    private static Object[] unpack (double[] buffer, int rows, int columns)
+    {
+        Object[] result = new Object[rows];
+        for (int i = 0; i < rows; i++)
+            result[i] = Arrays.copyOfRange(buffer, i * columns, (i + 1) * columns);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the product of the rows of {@code a} between {@code lo} (inclusive) and {@code hi}
+     * (exclusive) with {@code b} to the corresponding rows of {@code c}, tile by tile. Within a
+     * tile, the loops are ordered so that the innermost loop runs over contiguous rows of both
+     * {@code b} and {@code c}.
+     */
+    private static void multiply (double[] a, double[] b, double[] c, int inner, int columns,
+                                  int lo, int hi)
+    {
+        for (int i0 = lo; i0 < hi; i0 += ROW_TILE) {
+            int i1 = Math.min(i0 + ROW_TILE, hi);
+            for (int k0 = 0; k0 < inner; k0 += INNER_TILE) {
+                int k1 = Math.min(k0 + INNER_TILE, inner);
+                for (int j0 = 0; j0 < columns; j0 += COLUMN_TILE) {
+                    int j1 = Math.min(j0 + COLUMN_TILE, columns);
+                    for (int i = i0; i < i1; i++) {
+                        int ai = i * inner;
+                        int ci = i * columns;
+                        for (int k = k0; k < k1; k++) {
+                            double factor = a[ai + k];
+                            int bk = k * columns;
+                            for (int j = j0; j < j1; j++)
+                                c[ci + j] += factor * b[bk + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the rows of the product in a range, splitting it in two halves as long as it is
+     * larger than {@code grain}.
+     */
+    private static final class RowBlock extends RecursiveAction
+    {
+        final double[] a, b, c;
+        final int inner, columns, lo, hi, grain;
+
+        RowBlock (double[] a, double[] b, double[] c, int inner, int columns, int lo, int hi,
+                  int grain) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.inner = inner;
+            this.columns = columns;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override protected void compute ()
+        {
+            if (hi - lo <= grain) {
+                multiply(a, b, c, inner, columns, lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(
+                new RowBlock(a, b, c, inner, columns, lo, mid, grain),
+                new RowBlock(a, b, c, inner, columns, mid, hi, grain));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
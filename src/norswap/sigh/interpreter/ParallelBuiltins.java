@@ -0,0 +1,148 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.types.Type;
+import norswap.utils.exceptions.Exceptions;
+import java.util.function.Supplier;
+
+/**
+ * Implements the data-parallel builtins {@code pmap}, {@code preduce} and {@code pfor}, for both
+ * {@link Interpreter} and {@link ClosureInterpreter}. Compiled code only uses {@link #launch},
+ * with chunk bodies generated by {@link norswap.sigh.bytecode.BytecodeCompiler}.
+ *
+ * <p>The elements (or indices) are split into at most {@link #CHUNKS} contiguous chunks, each of
+ * which is a task launched in a new {@link TaskScope}, in the executor of the scheduler of the
+ * interpreter. The calling thread then joins the scope, which runs the chunks that haven't started
+ * yet itself, like a fork/join pool. A failure in a chunk cancels the chunks that haven't started
+ * and is rethrown by the call.
+ *
+ * <p>{@code preduce} reduces each chunk from its first element, then combines the results of the
+ * chunks, in order, starting from the initial value. The result is the same as that of a
+ * sequential reduction as long as the function is associative.
+ */
+public final class ParallelBuiltins
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Maximum number of chunks, a few per processor to balance uneven chunks. */
+    public static final int CHUNKS = 4 * Runtime.getRuntime().availableProcessors();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ParallelBuiltins () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls the function passed to a builtin. Each chunk gets its own callee, which is only used
+     * by the thread that runs the chunk.
+     */
+    interface Callee {
+        Object call (Object... args);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code body} for each chunk of {@code [0, count)}, in tasks of {@code scope}, and
+     * returns when they have all completed.
+     */
+    private static void split (TaskScope scope, long count, ChunkBody body)
+    {
+        if (count == 0)
+            return;
+        launch(scope, count, body);
+        scope.join(true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Launches a task of {@code scope} that runs {@code body} for each chunk of {@code [0,
+     * count)}, which must not be empty.
+     */
+    public static void launch (TaskScope scope, long count, ChunkBody body)
+    {
+        int chunks = (int) Math.min(count, CHUNKS);
+        long size = count / chunks;
+        long extra = count % chunks; // the first chunks get one more element
+        for (int i = 0; i < chunks; ++i) {
+            int chunk = i;
+            long lo = chunk * size + Math.min(chunk, extra);
+            long hi = lo + size + (chunk < extra ? 1 : 0);
+            scope.launch(() -> {
+                try {
+                    body.run(chunk, lo, hi);
+                } catch (PassthroughException e) {
+                    throw Exceptions.runtime(e.getCause());
+                }
+            });
+        }
+    }
+
+    /** Runs the chunk number {@code chunk}, made of the elements (or indices) in [lo, hi). */
+    public interface ChunkBody {
+        void run (int chunk, long lo, long hi);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@code pmap(f, array)}: returns the array of the results of {@code f} for each component of
+     * {@code array}, whose component type is {@code componentType}.
+     */
+    static Object map (TaskScope scope, Supplier<Callee> callees, Object array, Type componentType)
+    {
+        Object[] results = new Object[ArrayValues.length(array)];
+        split(scope, results.length, (chunk, lo, hi) -> {
+            Callee f = callees.get();
+            for (int i = (int) lo; i < hi; ++i)
+                results[i] = f.call(ArrayValues.get(array, i));
+        });
+        return ArrayValues.create(componentType, results);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@code preduce(f, array, init)}: reduces the components of {@code array} with {@code f},
+     * starting from {@code init}, and returns the result, converted to {@code type}.
+     */
+    static Object reduce (TaskScope scope, Supplier<Callee> callees, Object array, Object init,
+                          Type type)
+    {
+        int length = ArrayValues.length(array);
+        Object[] partials = new Object[(int) Math.min(length, CHUNKS)];
+        split(scope, length, (chunk, lo, hi) -> {
+            Callee f = callees.get();
+            Object accumulator = ArrayValues.get(array, (int) lo);
+            for (int i = (int) lo + 1; i < hi; ++i)
+                accumulator = f.call(accumulator, ArrayValues.get(array, i));
+            partials[chunk] = accumulator;
+        });
+
+        Callee f = callees.get();
+        Object result = init;
+        for (Object partial: partials)
+            result = f.call(result, partial);
+        return Interpreter.convert(result, type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@code pfor(lo, hi, f)}: calls {@code f} with each integer from {@code lo} (inclusive) to
+     * {@code hi} (exclusive).
+     */
+    static void loop (TaskScope scope, Supplier<Callee> callees, long lo, long hi)
+    {
+        if (hi <= lo)
+            return;
+        split(scope, hi - lo, (chunk, from, to) -> {
+            Callee f = callees.get();
+            for (long i = lo + from; i < lo + to; ++i)
+                f.call(i);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
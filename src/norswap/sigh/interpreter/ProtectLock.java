@@ -0,0 +1,203 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.AttributeTables;
+import norswap.sigh.ast.AssignmentNode;
+import norswap.sigh.ast.DeclarationNode;
+import norswap.sigh.ast.FunCallNode;
+import norswap.sigh.ast.LaunchNode;
+import norswap.sigh.ast.LaunchStateNode;
+import norswap.sigh.ast.ProtectBlockNode;
+import norswap.sigh.ast.ReferenceNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.WhileNode;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * The read-write lock shared by the {@code protect} blocks of a program that contains read-only
+ * ({@code protect read}) blocks, for both {@link Interpreter} and {@link ClosureInterpreter}.
+ *
+ * <p>Read-only blocks run at the same time as each other, but never at the same time as the other
+ * protect blocks, which hold the lock exclusively (in addition to their own lock). Programs without
+ * read-only blocks don't use this lock, so that their protect blocks only exclude other executions
+ * of the same block.
+ *
+ * <p>A read-only block that calls functions or launches tasks runs like the other blocks, holding
+ * the lock exclusively: the functions can write shared state, which read-only blocks can't do
+ * directly (cf. {@link ReadBlock#exclusive}).
+ *
+ * <p>A read-only block whose execution is bounded (it has no loop and no call, cf. {@link
+ * ReadBlock#optimistic}) first runs without taking the lock, then checks that no exclusive block
+ * ran in the meantime. Otherwise (or if the check fails), it runs again while holding the lock in
+ * shared mode. Read-only blocks can only assign variables that aren't shared: the values of those
+ * declared outside the block are saved before the optimistic run, and restored before running the
+ * block again, so that the failed run has no visible effect.
+ *
+ * <p>A protect block reached (through a call) from a protect block that holds the lock in the same
+ * thread runs directly, excepted for an exclusive block reached from a read-only block, which is
+ * an error. Note that a task launched in a protect block can't run a protect block before the
+ * launching block completes.
+ */
+final class ProtectLock
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Object READ = "read", WRITE = "write";
+
+    private final StampedLock lock = new StampedLock();
+
+    /** How the current thread holds the lock ({@link #READ} or {@link #WRITE}), or null. */
+    private final ThreadLocal<Object> held = new ThreadLocal<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * How a read-only block runs (cf. {@link #analyze}).
+     */
+    static final class ReadBlock
+    {
+        /**
+         * Whether the block calls functions (other than {@code print}) or launches tasks, in which
+         * case it holds the lock exclusively.
+         */
+        final boolean exclusive;
+
+        /**
+         * Whether the block can run optimistically, without taking the lock: it has no loop, no
+         * call and no launch, so that it terminates even if it reads inconsistent values.
+         */
+        final boolean optimistic;
+
+        /**
+         * A reference to each variable declared outside the block that the block assigns, whose
+         * value must be restored if an optimistic run fails.
+         */
+        final List<ReferenceNode> assigned;
+
+        private ReadBlock (boolean exclusive, boolean optimistic, List<ReferenceNode> assigned) {
+            this.exclusive = exclusive;
+            this.optimistic = optimistic;
+            this.assigned = assigned;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Analyzes a read-only block.
+     */
+    static ReadBlock analyze (ProtectBlockNode node, AttributeTables tables)
+    {
+        boolean[] calls = { false };
+        boolean[] optimistic = { true };
+        HashSet<DeclarationNode> declared = new HashSet<>();
+        ArrayList<ReferenceNode> targets = new ArrayList<>();
+        ReflectiveFieldWalker<SighNode> walker
+            = new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, child -> {
+            if (child instanceof WhileNode)
+                optimistic[0] = false;
+            else if (child instanceof LaunchNode || child instanceof LaunchStateNode) {
+                calls[0] = true;
+                optimistic[0] = false;
+            }
+            else if (child instanceof FunCallNode) {
+                SighNode function = ((FunCallNode) child).function;
+                DeclarationNode decl = function instanceof ReferenceNode
+                    ? tables.decl(function)
+                    : null;
+                if (!(decl instanceof SyntheticDeclarationNode && decl.name().equals("print")))
+                    calls[0] = true;
+                optimistic[0] = false; // even printing twice would be visible
+            }
+            else if (child instanceof DeclarationNode)
+                declared.add((DeclarationNode) child);
+            else if (child instanceof AssignmentNode
+                    && ((AssignmentNode) child).left instanceof ReferenceNode)
+                targets.add((ReferenceNode) ((AssignmentNode) child).left);
+        });
+        walker.walk(node.protectedBlock);
+
+        ArrayList<ReferenceNode> assigned = new ArrayList<>();
+        HashSet<DeclarationNode> seen = new HashSet<>();
+        for (ReferenceNode target: targets) {
+            DeclarationNode decl = tables.decl(target);
+            if (!declared.contains(decl) && seen.add(decl))
+                assigned.add(target);
+        }
+        return new ReadBlock(calls[0], optimistic[0], assigned);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs a read-only block and returns its value. The block runs optimistically first if {@code
+     * snapshot} is non-null: it is called before that run, to save the variables the block
+     * assigns, and returns an action that restores them.
+     */
+    <T> T read (Supplier<Runnable> snapshot, Supplier<T> block)
+    {
+        // no stamp is issued if the current thread holds the lock exclusively
+        if (snapshot != null) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                Runnable restore = snapshot.get();
+                try {
+                    T value = block.get();
+                    if (lock.validate(stamp))
+                        return value;
+                } catch (RuntimeException e) {
+                    // the block may have failed because it read inconsistent values
+                    if (lock.validate(stamp))
+                        throw e;
+                }
+                restore.run();
+            }
+        }
+
+        if (held.get() != null)
+            return block.get();
+
+        long stamp = lock.readLock();
+        held.set(READ);
+        try {
+            return block.get();
+        } finally {
+            held.remove();
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs an exclusive block and returns its value.
+     */
+    <T> T write (Supplier<T> block)
+    {
+        Object mode = held.get();
+        if (mode == WRITE)
+            return block.get();
+        if (mode == READ)
+            throw new IllegalStateException(
+                "executing a protect block inside a read-only protect block");
+
+        long stamp = lock.writeLock();
+        held.set(WRITE);
+        try {
+            return block.get();
+        } finally {
+            held.remove();
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
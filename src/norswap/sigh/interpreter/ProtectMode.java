@@ -0,0 +1,30 @@
+package norswap.sigh.interpreter;
+
+/**
+ * How {@link Interpreter} executes the {@code protect} blocks of the programs it runs.
+ */
+public enum ProtectMode
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Each block has a lock, which is held while the block runs, so that two executions of the
+     * same block never overlap. Blocks that are a single update of a global variable are instead
+     * executed atomically (cf. {@link AtomicUpdate}).
+     */
+    LOCK,
+
+    /**
+     * Each execution of a block is an optimistic software transaction (cf. {@link Transaction}):
+     * the block runs without any lock, buffering its writes to global variables, struct fields
+     * and array components, which are applied when it commits. If a location the block read has
+     * been written by another block in the meantime, the block is run again.
+     *
+     * <p>Blocks that update disjoint locations run in parallel, and all blocks are atomic with
+     * respect to each other (not only to other executions of the same block). The other effects
+     * of a block (e.g. printing, launching a task) happen again each time the block is retried.
+     */
+    TRANSACTION;
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -2,7 +2,13 @@ package norswap.sigh.interpreter;
 
 import norswap.sigh.scopes.RootScope;
 import norswap.sigh.scopes.Scope;
-import java.util.HashMap;
+import norswap.sigh.scopes.Slot;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * The concrete instantiation of a {@link Scope} at runtime.
@@ -10,6 +16,23 @@ import java.util.HashMap;
  * <p>The scope itself cannot be used directly, as many "copies" of the scope will be needed
  * at runtime (for instance, one for each function invocation), sometimes at the same type,
  * in the presence of recursion.
+ *
+ * <p>A storage is a frame with one slot per variable declared in its scope (cf. {@link
+ * Scope#slotCount()}). Its parent is the storage of the lexically enclosing scope, so that a
+ * variable can be located by the {@link Slot} computed during semantic analysis.
+ *
+ * <p>{@link Interpreter} stores all values boxed, in {@link #values}. {@link ClosureInterpreter}
+ * creates storages with primitive slots, in which slots live either in {@link #values} or, for
+ * slots whose {@link Slot.Kind kind} is not {@code OBJECT}, unboxed in {@link #primitives}.
+ *
+ * <p>The root storage, which holds the global variables, is shared by the launched tasks: its slots
+ * are accessed with volatile semantics (cf. {@link #shared}), so that a task sees the globals
+ * written by other tasks, without any lock. The other storages are only shared through {@code
+ * launch var}, whose tasks are awaited before their variable is read (cf. {@link #await}).
+ *
+ * <p>A storage also holds the task launched for each of its variables that is declared by a {@code
+ * launch var} statement, which completes when the variable is initialized (cf. {@link #launch} and
+ * {@link #await}).
  */
 public final class ScopeStorage
 {
@@ -20,43 +43,225 @@ public final class ScopeStorage
 
     // ---------------------------------------------------------------------------------------------
 
-    private final HashMap<String, Object> values = new HashMap<>();
+    final Object[] values;
+    final long[] primitives;
+
+    /** Whether the slots are accessed with volatile semantics: true for the root storage. */
+    final boolean shared;
+
+    /**
+     * Tasks of the launched variables (or futures for the variables awaited before being launched),
+     * indexed by slot.
+     */
+    private CompletableFuture<?>[] futures;
+
+    private static final Object[] NO_VALUES = new Object[0];
+    private static final long[] NO_PRIMITIVES = new long[0];
+
+    private static final VarHandle VALUES =
+        MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle PRIMITIVES =
+        MethodHandles.arrayElementVarHandle(long[].class);
 
     // ---------------------------------------------------------------------------------------------
 
     ScopeStorage (Scope scope, ScopeStorage parent) {
+        this(scope, parent, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a storage, which has primitive slots if {@code primitive} is true.
+     */
+    ScopeStorage (Scope scope, ScopeStorage parent, boolean primitive) {
         this.scope = scope;
         this.parent = parent;
+        int size = scope.slotCount();
+        this.values = size == 0 ? NO_VALUES : new Object[size];
+        this.primitives = size == 0 || !primitive ? NO_PRIMITIVES : new long[size];
+        this.shared = scope instanceof RootScope;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns the value with the given name, defined in the given scope (determined by semantic
-     * analysis), which should be this scope or one of its ancestors.
+     * Returns the storage {@code depth} levels up from this one.
      */
-    Object get (Scope scope, String name)
+    ScopeStorage up (int depth)
     {
-        if (scope == this.scope)
-            return values.get(name);
-        else if (parent != null)
-            return parent.get(scope, name);
-        else
-            throw new Error("[implementation bug] could not lookup name: " + name);
+        ScopeStorage storage = this;
+        for (int i = depth; i > 0; --i)
+            storage = storage.parent;
+        return storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value in the given slot (determined by semantic analysis), relative to this
+     * storage.
+     */
+    Object get (Slot slot) {
+        ScopeStorage storage = up(slot.depth);
+        return storage.shared
+            ? storage.volatileValue(slot.index)
+            : storage.values[slot.index];
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Sets the value with the given name, defined in the given scope (determined by semantic
-     * analysis), which should be this scope or one of its ancestors.
+     * Sets the value in the given slot (determined by semantic analysis), relative to this
+     * storage.
      */
-    void set (Scope scope, String name, Object value)
+    void set (Slot slot, Object value)
     {
-        if (scope == this.scope)
-            values.put(name, value);
+        ScopeStorage storage = up(slot.depth);
+        if (storage.shared)
+            storage.setVolatileValue(slot.index, value);
         else
-            parent.set(scope, name, value);
+            storage.values[slot.index] = value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads {@code values[index]} with volatile semantics. */
+    Object volatileValue (int index) {
+        return VALUES.getVolatile(values, index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Writes {@code values[index]} with volatile semantics. */
+    void setVolatileValue (int index, Object value) {
+        VALUES.setVolatile(values, index, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads {@code primitives[index]} with volatile semantics. */
+    long volatilePrimitive (int index) {
+        return (long) PRIMITIVES.getVolatile(primitives, index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Writes {@code primitives[index]} with volatile semantics. */
+    void setVolatilePrimitive (int index, long value) {
+        PRIMITIVES.setVolatile(primitives, index, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Atomically sets {@code values[index]} to {@code update} if it is {@code expected}. */
+    boolean compareAndSetValue (int index, Object expected, Object update) {
+        return VALUES.compareAndSet(values, index, expected, update);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Atomically sets {@code primitives[index]} to {@code update} if it is {@code expected}. */
+    boolean compareAndSetPrimitive (int index, long expected, long update) {
+        return PRIMITIVES.compareAndSet(primitives, index, expected, update);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Atomically adds {@code delta} to {@code primitives[index]}, and returns the old value. */
+    long getAndAddPrimitive (int index, long delta) {
+        return (long) PRIMITIVES.getAndAdd(primitives, index, delta);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the closest storage (starting with this one) for the given scope. This is used
+     * to find the storage of the lexically enclosing scope when calling a function.
+     */
+    ScopeStorage find (Scope scope)
+    {
+        ScopeStorage storage = this;
+        while (storage.scope != scope) {
+            storage = storage.parent;
+            if (storage == null)
+                throw new Error("[implementation bug] could not find storage for: " + scope);
+        }
+        return storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the future for the variable in the given slot of this storage, creating it if
+     * needed.
+     */
+    private synchronized CompletableFuture<?> future (int index)
+    {
+        if (futures == null)
+            futures = new CompletableFuture<?>[values.length];
+        CompletableFuture<?> future = futures[index];
+        if (future == null)
+            future = futures[index] = new CompletableFuture<>();
+        return future;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers the task launched to initialize the variable in the given slot of this storage.
+     * Threads that were already waiting for the variable are released when the task terminates.
+     */
+    void launch (int index, TaskScope.Task task)
+    {
+        CompletableFuture<?> previous;
+        synchronized (this) {
+            if (futures == null)
+                futures = new CompletableFuture<?>[values.length];
+            previous = futures[index];
+            futures[index] = task;
+        }
+        if (previous != null && !previous.isDone())
+            task.whenComplete((result, e) -> {
+                if (e == null)
+                    previous.complete(null);
+                else
+                    previous.completeExceptionally(e);
+            });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Blocks until the variable in the given slot of this storage is initialized, i.e. until the
+     * task launched to initialize it terminates. If the task hasn't started yet, it is run in the
+     * calling thread. If the task failed, its exception is rethrown.
+     *
+     * <p>A variable in a primitive slot ({@code primitive}) has no "uninitialized" value, so it is
+     * considered initialized unless a task is pending for it.
+     */
+    void await (int index, boolean primitive)
+    {
+        if (!primitive && volatileValue(index) != null)
+            return;
+        CompletableFuture<?> future;
+        synchronized (this) {
+            future = futures == null ? null : futures[index];
+            if (future == null) {
+                if (primitive)
+                    return;
+                future = future(index);
+            }
+        }
+        if (future instanceof TaskScope.Task)
+            ((TaskScope.Task) future).run();
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw new PassthroughException(e.getCause());
+        } catch (CancellationException e) {
+            throw new PassthroughException(e);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -66,9 +271,9 @@ public final class ScopeStorage
      */
     void initRoot(RootScope root)
     {
-        set(root, root._true  .name(), true);
-        set(root, root._false .name(), false);
-        set(root, root._null  .name(), Null.INSTANCE);
+        values[root.lookup(root._true  .name()).slot] = true;
+        values[root.lookup(root._false .name()).slot] = false;
+        values[root.lookup(root._null  .name()).slot] = Null.INSTANCE;
 
         // Function and types are not assigned values in frames - instead they derive
         // their runtime value values from the corresponding DeclarationNode.
@@ -77,7 +282,7 @@ public final class ScopeStorage
     // ---------------------------------------------------------------------------------------------
 
     @Override public String toString() {
-        return "ScopeStorage " + values.toString();
+        return "ScopeStorage " + Arrays.toString(values);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,197 @@
+package norswap.sigh.interpreter;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The tasks launched in a scope of a program (the whole program, a function body or a block), for
+ * {@link Interpreter}, {@link ClosureInterpreter} and the code generated by {@link
+ * norswap.sigh.bytecode.BytecodeCompiler} (whose scopes are whole function bodies). The tasks launched in the body of a
+ * {@code while} loop belong to the scope enclosing the loop, so that a loop can launch many tasks
+ * that run at the same time.
+ *
+ * <p>The scope is {@link #join joined} when it exits: the thread that runs the scope waits for all
+ * the tasks launched in it. Tasks launched by these tasks belong to the scopes of the launched
+ * functions, and are joined when these functions return. As a result, no task outlives the scope
+ * (and the storage) in which it was launched.
+ *
+ * <p>Joining works like a fork/join pool: a task that hasn't been started by the executor yet is
+ * run directly by the joining thread, latest first. The same goes for a task awaited by {@code
+ * wait} (cf. {@link ScopeStorage#await}). A thread therefore only blocks on tasks that are running
+ * in other threads, which lets recursive divide-and-conquer code run in a bounded pool without
+ * exhausting it.
+ *
+ * <p>If a task fails, the scope is cancelled: the tasks of the scope that haven't started yet,
+ * and the tasks later launched in the scope or in its nested scopes, are not run (tasks that are
+ * already running complete normally). The first failure is then rethrown when the scope exits,
+ * so that it propagates to the enclosing scope, as any exception would.
+ *
+ * <p>Tasks are only launched and joined by the thread that runs the scope, so a scope isn't
+ * otherwise synchronized.
+ */
+public final class TaskScope
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of tasks after which completed tasks are dropped from {@link #tasks}. */
+    private static final int PRUNE = 1024;
+
+    /** The task that the current thread is running, if any. */
+    private static final ThreadLocal<Task> CURRENT = new ThreadLocal<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Executor executor;
+
+    /** The enclosing scope (which is cancelled if this scope is), or null. */
+    private final TaskScope parent;
+
+    /** The tasks launched in the scope, excepted some of those that have completed. */
+    private final ArrayList<Task> tasks = new ArrayList<>();
+
+    private int prune = PRUNE;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private volatile boolean cancelled;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public TaskScope (Executor executor, TaskScope parent) {
+        this.executor = executor;
+        this.parent = parent;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Launches a task that runs {@code body} in the executor, and returns it. The task completes
+     * exceptionally if {@code body} throws, and with a {@link CancellationException} if the scope
+     * is cancelled before it starts.
+     */
+    public Task launch (Runnable body)
+    {
+        if (tasks.size() >= prune) {
+            tasks.removeIf(Task::isDone);
+            prune = Math.max(PRUNE, tasks.size() * 2);
+        }
+        Task task = new Task(body);
+        tasks.add(task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the task will run when joined or awaited
+        }
+        return task;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an object that identifies the running task: the task that the current thread is
+     * running, or the thread itself if it doesn't run a task (e.g. the main program). Unlike the
+     * thread, the task doesn't change when the executor reuses its threads, or when a task is run
+     * directly by the thread that joins or awaits it.
+     */
+    public static Object owner ()
+    {
+        Task task = CURRENT.get();
+        return task != null ? task : Thread.currentThread();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean cancelled ()
+    {
+        for (TaskScope scope = this; scope != null; scope = scope.parent)
+            if (scope.cancelled)
+                return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Waits for all the tasks of the scope. If {@code completed} is false (the scope exits because
+     * of an exception), the scope is cancelled first. Otherwise, if one of the tasks failed, its
+     * exception is rethrown.
+     */
+    void join (boolean completed)
+    {
+        Throwable failure = settle(completed);
+        if (completed && failure != null)
+            throw new PassthroughException(failure);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #join}, but returns the first failure of the tasks (or null) instead of
+     * throwing it, for callers that rethrow it as is.
+     */
+    public Throwable settle (boolean completed)
+    {
+        if (!completed)
+            cancelled = true;
+
+        for (int i = tasks.size() - 1; i >= 0; --i) {
+            Task task = tasks.get(i);
+            task.run();
+            try {
+                task.join();
+            } catch (CompletionException | CancellationException e) {
+                // recorded in failure
+            }
+        }
+        tasks.clear();
+        return failure.get();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A launched task, which completes when its body terminates.
+     */
+    public final class Task extends CompletableFuture<Void> implements Runnable
+    {
+        private final Runnable body;
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private Task (Runnable body) {
+            this.body = body;
+        }
+
+        /**
+         * Runs the task in the calling thread, unless it has already been started.
+         */
+        @Override public void run ()
+        {
+            if (!started.compareAndSet(false, true))
+                return;
+            if (cancelled()) {
+                completeExceptionally(new CancellationException("the scope was cancelled"));
+                return;
+            }
+            Task enclosing = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                body.run();
+                complete(null);
+            } catch (RuntimeException | Error e) {
+                if (failure.compareAndSet(null, e))
+                    cancelled = true;
+                completeExceptionally(e);
+            } finally {
+                CURRENT.set(enclosing);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
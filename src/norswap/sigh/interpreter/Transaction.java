@@ -0,0 +1,296 @@
+package norswap.sigh.interpreter;
+
+import norswap.utils.Util;
+import norswap.utils.exceptions.NoStackException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * An execution of a {@code protect} block in the {@link ProtectMode#TRANSACTION} mode of {@link
+ * Interpreter}: a software transaction over the locations the block reads and writes, which are
+ * the slots of the root storage (global variables), the fields of structs and the components of
+ * arrays.
+ *
+ * <p>The implementation follows TL2 (Dice, Shalev and Shavit, <i>Transactional Locking II</i>,
+ * 2006). Each location maps to one of {@link #STRIPES} versioned locks, which hold the value of a
+ * global clock at the time of the last commit that wrote a location of the stripe. A transaction
+ * reads the clock when it starts. Its reads check that the locations haven't been written since,
+ * so that the transaction always sees a consistent state. Its writes are buffered until it
+ * commits: the commit locks the stripes of the written locations, increments the clock,
+ * revalidates the reads, then writes the locations and releases the stripes with the new clock
+ * value.
+ *
+ * <p>A transaction that detects a conflict throws {@link Conflict}, and is retried from the start
+ * (cf. {@link #run}). The variables of the other storages (the locals of the enclosing functions)
+ * are written directly, but their previous values are logged, so that they are restored before
+ * the transaction is retried.
+ *
+ * <p>Only the accesses made by transactions are checked: reads and writes made outside {@code
+ * protect} blocks, and operations on whole arrays (such as {@code a + b}), access the locations
+ * directly.
+ */
+final class Transaction
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of versioned locks, a power of two. */
+    private static final int STRIPES = 1 << 16;
+
+    /** The global clock, incremented by each commit that writes. */
+    private static final AtomicLong clock = new AtomicLong();
+
+    /**
+     * The versioned locks: {@code version << 1} when unlocked, {@code version << 1 | 1} when
+     * locked by a committing transaction.
+     */
+    private static final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+    /** Thrown when a transaction must be retried. */
+    static final class Conflict extends NoStackException {
+        private Conflict () {
+            super("transaction conflict");
+        }
+    }
+
+    private static final Conflict CONFLICT = new Conflict();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Value of the clock when the transaction started. */
+    private final long readVersion = clock.get();
+
+    /** Stripes of the locations read by the transaction (with duplicates). */
+    private int[] reads = new int[16];
+    private int readCount;
+
+    /** Buffered writes, in order. */
+    private final LinkedHashMap<Location, Object> writes = new LinkedHashMap<>();
+
+    /** Values of the local slots written by the transaction, before their first write. */
+    private final LinkedHashMap<Location, Object> undo = new LinkedHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A location that can be accessed by a transaction: the slot {@code key} of a {@link
+     * ScopeStorage}, the field {@code key} of a struct, or the component {@code key} of an array.
+     * Two locations are equal if they have the same container (by identity) and equal keys.
+     */
+    private static final class Location
+    {
+        final Object container;
+        final Object key;
+
+        Location (Object container, Object key) {
+            this.container = container;
+            this.key = key;
+        }
+
+        int stripe () {
+            int hash = System.identityHashCode(container) * 31 + key.hashCode();
+            return (hash ^ hash >>> 16) & (STRIPES - 1);
+        }
+
+        Object read ()
+        {
+            if (container instanceof ScopeStorage)
+                return ((ScopeStorage) container).volatileValue((Integer) key);
+            if (container instanceof Map)
+                return ((Map<?, ?>) container).get(key);
+            return ArrayValues.get(container, (Integer) key);
+        }
+
+        void write (Object value)
+        {
+            if (container instanceof ScopeStorage)
+                ((ScopeStorage) container).setVolatileValue((Integer) key, value);
+            else if (container instanceof Map)
+                Util.<Map<Object, Object>>cast(container).put(key, value);
+            else
+                ArrayValues.set(container, (Integer) key, value);
+        }
+
+        @Override public boolean equals (Object other) {
+            return other instanceof Location
+                && ((Location) other).container == container
+                && ((Location) other).key.equals(key);
+        }
+
+        @Override public int hashCode () {
+            return System.identityHashCode(container) * 31 + key.hashCode();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code body} in new transactions until one commits, backing off between retries.
+     * Other exceptions abort the transaction (discarding its writes) and are rethrown.
+     */
+    static <T> T run (Function<Transaction, T> body)
+    {
+        for (int attempt = 0; ; ++attempt) {
+            Transaction transaction = new Transaction();
+            try {
+                T result = body.apply(transaction);
+                transaction.commit();
+                return result;
+            } catch (Conflict e) {
+                transaction.rollback();
+            }
+            if (attempt < 8)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads the slot at {@code index} in the (shared) storage.
+     */
+    Object read (ScopeStorage storage, int index) {
+        return read(new Location(storage, index));
+    }
+
+    /**
+     * Reads the field of the struct.
+     */
+    Object read (Map<String, Object> struct, String field) {
+        return read(new Location(struct, field));
+    }
+
+    /**
+     * Reads the component of the array at {@code index}, throwing an {@link
+     * ArrayIndexOutOfBoundsException} if it is out of bounds.
+     */
+    Object read (Object array, int index) {
+        return read(new Location(array, index));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object read (Location location)
+    {
+        if (writes.containsKey(location))
+            return writes.get(location);
+
+        int stripe = location.stripe();
+        long before = stripes.get(stripe);
+        Object value = location.read();
+        long after = stripes.get(stripe);
+        if ((before & 1) != 0 || before != after || before >>> 1 > readVersion)
+            throw CONFLICT;
+
+        if (readCount == reads.length)
+            reads = Arrays.copyOf(reads, readCount * 2);
+        reads[readCount++] = stripe;
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Buffers a write of the slot at {@code index} in the (shared) storage.
+     */
+    void write (ScopeStorage storage, int index, Object value) {
+        writes.put(new Location(storage, index), value);
+    }
+
+    /**
+     * Buffers a write of the field of the struct.
+     */
+    void write (Map<String, Object> struct, String field, Object value) {
+        writes.put(new Location(struct, field), value);
+    }
+
+    /**
+     * Buffers a write of the component of the array at {@code index}, throwing an {@link
+     * ArrayIndexOutOfBoundsException} if it is out of bounds.
+     */
+    void write (Object array, int index, Object value)
+    {
+        int length = ArrayValues.length(array);
+        if (index >= length)
+            throw new ArrayIndexOutOfBoundsException(
+                "Index " + index + " out of bounds for length " + length);
+        writes.put(new Location(array, index), value);
+    }
+
+    /**
+     * Writes the slot at {@code index} in the (unshared) storage, logging its previous value.
+     */
+    void writeLocal (ScopeStorage storage, int index, Object value)
+    {
+        Location location = new Location(storage, index);
+        if (!undo.containsKey(location))
+            undo.put(location, storage.values[index]);
+        storage.values[index] = value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Restores the local slots written by the transaction, before it is retried.
+     */
+    private void rollback () {
+        undo.forEach((location, value) ->
+            ((ScopeStorage) location.container).values[(Integer) location.key] = value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void commit ()
+    {
+        // read-only transactions are consistent as of their read version
+        if (writes.isEmpty())
+            return;
+
+        int[] locked = new int[writes.size()];
+        int count = 0;
+        for (Location location: writes.keySet())
+            locked[count++] = location.stripe();
+        Arrays.sort(locked);
+
+        // the stripes are locked in order, keeping their versions to validate reads
+        long[] versions = new long[count];
+        int held = 0;
+        try {
+            for (int i = 0; i < count; ++i) {
+                int stripe = locked[i];
+                if (held > 0 && locked[held - 1] == stripe)
+                    continue;
+                long version = stripes.get(stripe);
+                if ((version & 1) != 0 || !stripes.compareAndSet(stripe, version, version | 1))
+                    throw CONFLICT;
+                locked[held] = stripe;
+                versions[held++] = version;
+            }
+
+            long writeVersion = clock.incrementAndGet();
+            if (writeVersion != readVersion + 1)
+                for (int i = 0; i < readCount; ++i) {
+                    int stripe = reads[i];
+                    int own = Arrays.binarySearch(locked, 0, held, stripe);
+                    long version = own >= 0 ? versions[own] : stripes.get(stripe);
+                    if ((version & 1) != 0 || version >>> 1 > readVersion)
+                        throw CONFLICT;
+                }
+
+            writes.forEach(Location::write);
+            for (int i = 0; i < held; ++i)
+                stripes.set(locked[i], writeVersion << 1);
+            held = 0;
+        } finally {
+            for (int i = 0; i < held; ++i)
+                stripes.set(locked[i], versions[i]);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
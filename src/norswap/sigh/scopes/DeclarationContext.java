@@ -4,14 +4,19 @@ import norswap.sigh.ast.DeclarationNode;
 
 /**
  * A pair of a {@link Scope} and a {@link DeclarationNode} declaring an entry in that scope.
+ *
+ * <p>If the declaration is a variable, {@link #slot} is the index of its runtime slot within the
+ * scope (see {@link Scope#declareVariable}), otherwise it is -1.
  */
 public final class DeclarationContext
 {
     public final Scope scope;
     public final DeclarationNode declaration;
+    public final int slot;
 
-    public DeclarationContext(Scope scope, DeclarationNode declaration) {
+    public DeclarationContext(Scope scope, DeclarationNode declaration, int slot) {
         this.scope = scope;
         this.declaration = declaration;
+        this.slot = slot;
     }
 }
@@ -16,7 +16,10 @@ public final class RootScope extends Scope
 
     private SyntheticDeclarationNode decl (String name, DeclarationKind kind) {
         SyntheticDeclarationNode decl = new SyntheticDeclarationNode(name, kind);
-        declare(name,  decl);
+        if (kind == VARIABLE)
+            declareVariable(name, decl);
+        else
+            declare(name,  decl);
         return decl;
     }
 
@@ -41,6 +44,17 @@ public final class RootScope extends Scope
     public final SyntheticDeclarationNode protect = decl("protect", FUNCTION);
     public final SyntheticDeclarationNode relax = decl("relax", FUNCTION);
 
+    // data-parallel functions, typed by SemanticAnalysis for each call
+    public final SyntheticDeclarationNode pmap = decl("pmap", FUNCTION);
+    public final SyntheticDeclarationNode preduce = decl("preduce", FUNCTION);
+    public final SyntheticDeclarationNode pfor = decl("pfor", FUNCTION);
+
+    // channel functions, typed by SemanticAnalysis for each call
+    public final SyntheticDeclarationNode send = decl("send", FUNCTION);
+    public final SyntheticDeclarationNode receive = decl("receive", FUNCTION);
+    public final SyntheticDeclarationNode close = decl("close", FUNCTION);
+    public final SyntheticDeclarationNode more = decl("more", FUNCTION);
+
     // ---------------------------------------------------------------------------------------------
 
     public RootScope (RootNode node, Reactor reactor) {
@@ -68,6 +82,15 @@ public final class RootScope extends Scope
 
         reactor.set(wait,   "type", new FunType(VoidType.INSTANCE, FloatType.INSTANCE));
 
+        reactor.set(pmap,    "type", new FunType(VoidType.INSTANCE));
+        reactor.set(preduce, "type", new FunType(VoidType.INSTANCE));
+        reactor.set(pfor,    "type", new FunType(VoidType.INSTANCE));
+
+        reactor.set(send,    "type", new FunType(VoidType.INSTANCE));
+        reactor.set(receive, "type", new FunType(VoidType.INSTANCE));
+        reactor.set(close,   "type", new FunType(VoidType.INSTANCE));
+        reactor.set(more,    "type", new FunType(VoidType.INSTANCE));
+
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -25,6 +25,13 @@ public class Scope
 
     private final HashMap<String, DeclarationNode> declarations = new HashMap<>();
 
+    /**
+     * Maps the name of variables declared in this scope to the index of their runtime slot.
+     */
+    private final HashMap<String, Integer> slots = new HashMap<>();
+
+    private int slotCount = 0;
+
     // ---------------------------------------------------------------------------------------------
 
     public Scope (SighNode node, Scope parent) {
@@ -39,6 +46,31 @@ public class Scope
      */
     public void declare (String identifier, DeclarationNode node) {
         declarations.put(identifier, node);
+        slots.remove(identifier);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a new variable declaration to this scope, and allocates a runtime slot for it, whose
+     * index is returned.
+     *
+     * <p>Each declaration gets its own slot, even if it shadows a previous declaration with the
+     * same name in this scope.
+     */
+    public int declareVariable (String identifier, DeclarationNode node) {
+        declarations.put(identifier, node);
+        slots.put(identifier, slotCount);
+        return slotCount++;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of runtime slots that must be allocated in frames for this scope.
+     */
+    public int slotCount () {
+        return slotCount;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -51,7 +83,7 @@ public class Scope
     {
         DeclarationNode declaration = declarations.get(name);
         return declaration != null
-                ? new DeclarationContext(this, declaration)
+                ? new DeclarationContext(this, declaration, slots.getOrDefault(name, -1))
                 : parent != null
                     ? parent.lookup(name)
                     : null;
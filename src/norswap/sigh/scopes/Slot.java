@@ -0,0 +1,64 @@
+package norswap.sigh.scopes;
+
+/**
+ * The runtime location of a variable, as resolved by semantic analysis.
+ *
+ * <p>At runtime, each {@link Scope} is instantiated as a frame holding one slot per variable
+ * declared in the scope. A variable is then found by walking up {@link #depth} frames from the
+ * frame of the scope in which the variable is used, and indexing that frame with {@link #index}.
+ *
+ * <p>The {@link #kind} of a slot indicates whether its value is stored boxed or as a primitive.
+ * It depends on the type of the variable, which is not known yet when semantic analysis creates
+ * the slot: slots created by {@link norswap.sigh.SemanticAnalysis} are always {@link
+ * Kind#OBJECT}, and the actual kind is filled in by {@link norswap.sigh.AttributeTables}.
+ */
+public final class Slot
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of lexical scopes between the use of the variable and its declaration (0 if the
+     * variable is declared in the scope where it is used).
+     */
+    public final int depth;
+
+    /**
+     * Index of the variable within the frame of the scope that declares it.
+     */
+    public final int index;
+
+    /**
+     * How the value of the variable is stored in its frame.
+     */
+    public final Kind kind;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The ways a value can be stored in a frame: as an object, or in a primitive slot holding
+     * an {@code Int}, a {@code Float} (as raw long bits) or a {@code Bool} (as 0 or 1).
+     */
+    public enum Kind { OBJECT, LONG, DOUBLE, BOOLEAN }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Slot (int depth, int index) {
+        this(depth, index, Kind.OBJECT);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Slot (int depth, int index, Kind kind) {
+        this.depth = depth;
+        this.index = index;
+        this.kind = kind;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString() {
+        return "Slot(" + depth + ", " + index + ", " + kind + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,23 @@
+package norswap.sigh.types;
+
+public final class ChannelType extends Type
+{
+    public final Type componentType;
+
+    public ChannelType (Type componentType) {
+        this.componentType = componentType;
+    }
+
+    @Override public String name() {
+        return "Channel<" + componentType + ">";
+    }
+
+    @Override public boolean equals (Object o) {
+        return this == o
+            || o instanceof ChannelType && componentType.equals(((ChannelType) o).componentType);
+    }
+
+    @Override public int hashCode () {
+        return 31 * componentType.hashCode() + 7;
+    }
+}
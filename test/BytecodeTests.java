@@ -1,19 +1,32 @@
 import norswap.autumn.Autumn;
 import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
+import norswap.sigh.AttributeTables;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.RootNode;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.bytecode.ByteArrayClassLoader;
 import norswap.sigh.bytecode.BytecodeCompiler;
 import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.bytecode.TieredCompiler;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
 import norswap.uranium.Reactor;
 import norswap.utils.IO;
+import norswap.utils.exceptions.NoStackException;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 import static norswap.utils.Util.cast;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class BytecodeTests
@@ -28,19 +41,8 @@ public class BytecodeTests
      */
     public void check (String input, String expected)
     {
-        SighGrammar grammar = new SighGrammar();
-        ParseOptions options = ParseOptions.builder().recordCallStack(true).get();
-        ParseResult parseResult = Autumn.parse(grammar.root, input, options);
-        if (!parseResult.fullMatch) throw new AssertionError(parseResult.toString());
-
-        SighNode tree = cast(parseResult.topValue());
         Reactor reactor = new Reactor();
-        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        walker.walk(tree);
-        reactor.run();
-
-        if (!reactor.errors().isEmpty())
-            throw new AssertionError(reactor.reportErrors(Object::toString));
+        SighNode tree = analyze(input, reactor);
 
         String className = "BytecodeTestsRun";
         BytecodeCompiler compiler = new BytecodeCompiler(reactor);
@@ -68,6 +70,79 @@ public class BytecodeTests
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Parses the input program and runs the semantic analysis in {@code reactor}.
+     */
+    private SighNode analyze (String input, Reactor reactor)
+    {
+        SighGrammar grammar = new SighGrammar();
+        ParseOptions options = ParseOptions.builder().recordCallStack(true).get();
+        ParseResult parseResult = Autumn.parse(grammar.root, input, options);
+        if (!parseResult.fullMatch) throw new AssertionError(parseResult.toString());
+
+        SighNode tree = cast(parseResult.topValue());
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
+        walker.walk(tree);
+        reactor.run();
+
+        if (!reactor.errors().isEmpty())
+            throw new AssertionError(reactor.reportErrors(Object::toString));
+        return tree;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the input program prints the {@code expected} string (to which a newline is
+     * appended) when compiled, and when run by both interpreters.
+     */
+    public void checkAllEngines (String input, String expected)
+    {
+        check(input, expected);
+
+        List<Function<AttributeTables, Function<SighNode, Object>>> interpreters = Arrays.asList(
+            tables -> new Interpreter(tables)::interpret,
+            tables -> new ClosureInterpreter(tables)::interpret);
+
+        for (Function<AttributeTables, Function<SighNode, Object>> interpreter: interpreters) {
+            Reactor reactor = new Reactor();
+            SighNode tree = analyze(input, reactor);
+            Function<SighNode, Object> run
+                = interpreter.apply(AttributeTables.freeze(tree, reactor));
+            String capture = IO.captureStdout(() -> run.apply(tree)).a;
+            assertEquals(capture, expected + "\n");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the input program prints the {@code expected} string when interpreted with a
+     * {@link TieredCompiler} that compiles functions synchronously after 10 calls and loop
+     * iterations, and that the top-level functions compiled in the end are exactly {@code
+     * compiled}.
+     */
+    public void checkTiered (String input, String expected, String... compiled)
+    {
+        Reactor reactor = new Reactor();
+        SighNode tree = analyze(input, reactor);
+        AttributeTables tables = AttributeTables.freeze(tree, reactor);
+        TieredCompiler tier = new TieredCompiler(tables, 10, Runnable::run);
+        Interpreter interpreter = new Interpreter(tables);
+        interpreter.setTier(tier);
+
+        String capture = IO.captureStdout(() -> interpreter.interpret(tree)).a;
+        assertEquals(capture, expected + "\n");
+
+        List<String> names = Arrays.asList(compiled);
+        ((RootNode) tree).statements.stream()
+            .filter(it -> it instanceof FunDeclarationNode)
+            .map(it -> (FunDeclarationNode) it)
+            .forEach(it -> assertEquals(tier.isCompiled(it), names.contains(it.name), it.name));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Checks that the input <b>expression</b> can be converted to a string and printed, and that the printed
      * string corresponds to the {@code expected} string.
@@ -222,6 +297,27 @@ public class BytecodeTests
         check("var x: Float[] = [1.0, 2.0]; x[0] = 3; print(\"\" + x[0])", "3.0");
     }
 
+    @Test public void testArrayOperations() {
+        checkExpr("[1, 2] + [3, 4]", "[4, 6]");
+        checkExpr("[6, 4] / [3, 2]", "[2, 2]");
+        checkExpr("[1, 2] * [1.5, 2.0]", "[1.5, 4.0]");
+        checkExpr("[1.5, 2.0] - [1, 1]", "[0.5, 1.0]");
+        checkExpr("[1, 2] * [3, 4] + [0.5, 0.5] - ([1, 1] / [1, 2])", "[2.5, 8.5]");
+        checkExpr("[[1, 2], [3, 4]] + [[1, 1], [1, 1]]", "[[2, 3], [4, 5]]");
+        checkExpr("[[1, 2]] * [[0.5, 0.5]]", "[[0.5, 1.0]]");
+        checkExpr("[[[1]], [[2]]] - [[[1]], [[1]]]", "[[[0]], [[1]]]");
+        checkExpr("[[1, 2], [3, 4]] @ [[1, 0], [0, 1]]", "[[1.0, 2.0], [3.0, 4.0]]");
+        checkExpr("[[1.5], [2]] @ [[2, 4]]", "[[3.0, 6.0], [4.0, 8.0]]");
+
+        check("var x: Int[][] = [[1, 2], [3, 4]] ; print(\"\" + x[1][0])", "3");
+        check("var x: Float[][] = [[1], [2]] + [[1], [1]] ; print(\"\" + x[1][0])", "3.0");
+        check("var x: Float[] = [1, 2] ; x = x + [1, 1] ; print(\"\" + x)", "[2.0, 3.0]");
+
+        checkThrows("var x: Int[] = [1, 2] + [1]", Error.class);
+        checkThrows("var x: Int[] = [1, 2] + [1, 2] * [1]", Error.class);
+        checkThrows("var x: Int[][] = [[1, 2]] + [[1]]", Error.class);
+    }
+
     private final String printa = "print(\"a\")";
     private final String printb = "print(\"b\")";
     private final String printx = "print(\"\" + (x))";
@@ -256,6 +352,7 @@ public class BytecodeTests
         check("fun test (x: String):String { return x } print(test(\"a\"))", "a");
         check("fun test (x: String) { print(x) } ; test(\"a\")", "a");
         check("fun test () { fun foo() { print(\"a\") } foo() foo() } test()", "a\na");
+        check("fun widen (x: Int): Float { return x } print(\"\" + widen(1))", "1.0");
     }
 
     private final String makePair =
@@ -267,4 +364,336 @@ public class BytecodeTests
         check(makePair + "x.x = 3; print(\"\" + x.x)", "3");
         check(makePair + "x.y = 3; print(\"\" + x.y)", "3.0");
     }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that running the input program throws an exception of the given class.
+     */
+    public void checkThrows (String input, Class<? extends Throwable> expected)
+    {
+        try {
+            check(input, null);
+        } catch (NoStackException e) {
+            // wraps the InvocationTargetException thrown by the reflective call to main
+            Throwable cause = e.getCause().getCause();
+            assertTrue(expected.isInstance(cause), "unexpected exception: " + cause);
+            return;
+        }
+        throw new AssertionError("expected " + expected.getSimpleName());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final String square = "fun square (x: Int): Int { return x * x } ";
+
+    @Test public void testLaunch() {
+        // tasks are joined before the program (or function) returns
+        check("fun show (x: Int) { print(\"\" + x) } launch show(1)", "1");
+        check("fun show (x: Int) { print(\"\" + x) } fun f () { launch show(2) return } f()",
+            "2");
+
+        // before wait, a launched variable holds the default value of its type
+        check(square + "launch var y: Int = square(7) ; print(\"\" + y) wait(y) print(\"\" + y)",
+            "0\n49");
+        check(square + "launch var y: Float = square(3) ; wait(y) print(\"\" + y)", "9.0");
+
+        check("fun fib (n: Int): Int {" +
+            "    if n < 2 { return n }" +
+            "    launch var a: Int = fib(n - 1)" +
+            "    var b: Int = fib(n - 2)" +
+            "    wait(a)" +
+            "    return a + b" +
+            "}" +
+            "print(\"\" + fib(15))", "610");
+
+        // launched builtins run as the interpreters run them
+        checkAllEngines("launch print(\"x\")", "x");
+        checkAllEngines("fun f () { launch print(\"y\") } f()", "y");
+        checkAllEngines("var a: Int[] = [1, 2, 3]" +
+            "fun add (x: Int, y: Int): Int { return x + y }" +
+            "launch var n: Int = preduce(add, a, 0) wait(n) print(\"\" + n)", "6");
+        checkAllEngines("fun show (i: Int): String { return print(\"\" + i) }" +
+            "launch pfor(0, 1, show)", "0");
+
+        // failures of tasks propagate
+        checkThrows("fun bad (a: Int[]) { a[3] = 1 } launch bad([1])",
+            ArrayIndexOutOfBoundsException.class);
+        checkThrows("fun bad (a: Int[]): Int { return a[3] } launch var x: Int = bad([1]) wait(x)",
+            ArrayIndexOutOfBoundsException.class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final String addAll =
+        "fun add (a: Int[], i: Int) { protect : { a[0] = a[0] + i } }" +
+        "fun addAll (a: Int[]) {" +
+        "    var i: Int = 0" +
+        "    while i < 100 { launch add(a, i) ; i = i + 1 }" +
+        "}" +
+        "var a: Int[] = [0] ;";
+
+    @Test public void testProtect() {
+        check(addAll + "addAll(a) print(\"\" + a[0])", "4950");
+
+        // a return only exits the innermost protect block, and releases its monitor
+        check("fun once (a: Int[]): Int {" +
+            "    protect : { if a[0] > 0 { return 5 } protect : { a[0] = 1  return 6 } }" +
+            "    return a[0]" +
+            "}" +
+            "var a: Int[] = [0] ;" +
+            "print(\"\" + once(a) + once(a))", "11");
+
+        // exceptions release the monitor
+        checkThrows("fun bad (a: Int[]) { protect : { a[3] = 1 } } bad([1])",
+            ArrayIndexOutOfBoundsException.class);
+
+        // with read-only blocks, all blocks share a read-write lock
+        check(addAll +
+            "fun get (a: Int[]): Int { var v: Int = 0  protect read : { v = a[0] } return v }" +
+            "addAll(a) print(\"\" + get(a))", "4950");
+        checkThrows("fun set (a: Int[]) { protect : { a[0] = 1 } }" +
+            "fun get (a: Int[]): Int { protect read : { set(a) } return a[0] }" +
+            "print(\"\" + get([0]))", IllegalStateException.class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testProtectReturn() {
+        // a return in a protect block exits the block, in all engines
+        checkAllEngines(
+            "fun f (a: Int[]): Int {" +
+            "    protect : { a[0] = 5  if a[0] > 0 { return a[0] }  a[0] = 6 }" +
+            "    a[0] = a[0] + 2" +
+            "    return a[0]" +
+            "}" +
+            "print(\"\" + f([0]))", "7");
+        checkAllEngines(
+            "fun f (a: Int[]): Int {" +
+            "    protect : { protect : { a[0] = 1  return 9 } a[0] = a[0] + 1 }" +
+            "    return a[0]" +
+            "}" +
+            "print(\"\" + f([0]))", "2");
+        checkAllEngines(
+            "var count: Int = 0" +
+            "fun next (): Int { count = count + 1  return count }" +
+            "fun f (): Int { protect : { return next() } count = count + 10  return 0 }" +
+            "print(\"\" + f() + \" \" + count)", "0 11");
+        checkAllEngines(
+            "protect : { print(\"a\") return 1 } print(\"b\")", "a\nb");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testGlobals() {
+        // functions share the top-level variables
+        check("var count: Int = 0 fun inc () { count = count + 1 } inc() inc() print(\"\" + count)",
+            "2");
+        check("var f: Float = 1 fun half (): Float { return f / 2 } print(\"\" + half())", "0.5");
+        check("var s: String = \"a\" fun add (x: String) { s = s + x }" +
+            "add(\"b\") add(\"c\") print(s)", "abc");
+
+        // variables of top-level blocks are still local
+        check("var x: Int = 1 if x == 1 { var x: Int = 2 " + printx + " } " + printx, "2\n1");
+
+        // launched tasks update a global variable
+        String add1000 =
+            "fun add1000 () {" +
+            "    var i: Int = 0" +
+            "    while i < 1000 {" +
+            "        protect : { threadedVar = threadedVar + 1 }" +
+            "        i = i + 1" +
+            "    }" +
+            "}";
+        check("var threadedVar: Int = 0" + add1000 +
+            "fun start () { launch add1000() launch add1000() } start()" +
+            "print(\"\" + threadedVar)", "2000");
+
+        // ... but not a global variable shadowed by a local one
+        check("var threadedVar: Int = 0 var i: Int = 0" + add1000 +
+            "fun start () { launch add1000() } start()" +
+            "print(\"\" + i + \":\" + threadedVar)", "0:1000");
+
+        // ... including through calls to other functions
+        check("var threadedVar: Int = 0" + add1000 +
+            "fun core () { add1000() }" +
+            "fun start () { launch core() } start()" +
+            "print(\"\" + threadedVar)", "1000");
+
+        // can finish only if the writes of a task are visible to the other
+        check("var check: Bool = false " +
+            "var globalVar: Int = 0" +
+            "fun waiting (): Int { while globalVar != 1000 {} check = true return 1 }" +
+            "fun update (): Int {" +
+            "    var i: Int = 0" +
+            "    while i < 1000 { globalVar = globalVar + 1 i = i + 1 }" +
+            "    return 1" +
+            "}" +
+            "launch var first: Int = waiting()" +
+            "launch var second: Int = update()" +
+            "wait(first)" +
+            "print(\"\" + check)", "true");
+
+        // multiple waits, in disorder
+        check("var threadedVar: Int = 0" +
+            "fun add1000 (): Int {" +
+            "    while threadedVar < 1000 {" +
+            "        if threadedVar < 1000 { threadedVar = threadedVar + 1 }" +
+            "    }" +
+            "    return 1" +
+            "}" +
+            "launch var p1: Int = add1000()" +
+            "launch var p2: Int = add1000()" +
+            "launch var p3: Int = add1000()" +
+            "wait(p3) wait(p2) wait(p1)" +
+            "print(\"\" + p1 + p2 + p3)", "111");
+
+        // functions wait on global launched variables
+        check("fun open (): Int { var i: Int = 0 while i < 10000 { i = i + 1 } return 1 }" +
+            "launch var gate: Int = open()" +
+            "fun waitGate (): Int { wait(gate) return gate }" +
+            "var i: Int = 0" +
+            "while i < 100 { launch var w: Int = waitGate() i = i + 1 }" +
+            "wait(gate)" +
+            "print(\"\" + gate + waitGate())", "11");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testGlobalsStress() {
+        // 64 tasks start at the same time, then each one reads and writes its own global
+        int tasks = 64;
+        StringBuilder input = new StringBuilder("var go: Bool = false ");
+        StringBuilder sum = new StringBuilder("0");
+        for (int i = 0; i < tasks; ++i) {
+            input.append("var g").append(i).append(": Int = 0 ")
+                .append("fun w").append(i).append(" (): Int { while !go {} var i: Int = 0 ")
+                .append("while i < 1000 { g").append(i).append(" = g").append(i).append(" + 1 ")
+                .append("i = i + 1 } return g").append(i).append(" } ");
+            sum.append(" + g").append(i);
+        }
+        for (int i = 0; i < tasks; ++i)
+            input.append("launch var d").append(i).append(": Int = w").append(i).append("() ");
+        input.append("go = true ");
+        for (int i = 0; i < tasks; ++i)
+            input.append("wait(d").append(i).append(") ");
+        input.append("print(\"\" + (").append(sum).append("))");
+        check(input.toString(), String.valueOf(tasks * 1000));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final String add = "fun add (a: Int, b: Int): Int { return a + b } ";
+    private final String sub = "fun sub (a: Int, b: Int): Int { return a - b } ";
+
+    @Test public void testFunctionValues() {
+        check(add + "print(\"\" + (add)(1, 2))", "3");
+        check("(print)(\"a\")", "a");
+        check(add + sub + "print(\"\" + [add, sub][0](5, 3) + [add, sub][1](5, 3))", "82");
+        check(add + "fun half (x: Float): Float { return x / 2 } print(\"\" + (half)(add(1, 2)))",
+            "1.5");
+
+        // calls to function values can be launched
+        checkAllEngines("launch (print)(\"b\")", "b");
+        checkAllEngines(add + sub +
+            "launch var x: Int = [add, sub][1](5, 3) wait(x) print(\"\" + x)", "2");
+        checkAllEngines(add + "launch var y: Float = (add)(1, 2) wait(y) print(\"\" + y)",
+            "3.0");
+
+        // the inline cache of a call site goes megamorphic past a few functions
+        StringBuilder input = new StringBuilder();
+        StringBuilder functions = new StringBuilder();
+        for (int i = 0; i < 6; ++i) {
+            input.append("fun f").append(i).append(" (x: Int): Int { return x * ")
+                .append(i).append(" } ");
+            functions.append(i == 0 ? "" : ", ").append("f").append(i);
+        }
+        input.append("var sum: Int = 0 var i: Int = 0 ")
+            .append("while i < 60 { sum = sum + [").append(functions).append("][i % 6](i) ")
+            .append("i = i + 1 } print(\"\" + sum)");
+        // sum over i < 60 of i * (i % 6)
+        check(input.toString(), String.valueOf(
+            IntStream.range(0, 60).map(i -> i * (i % 6)).sum()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testParallelBuiltins() {
+        IntFunction<String> range = n -> Arrays.toString(IntStream.range(0, n).toArray());
+
+        check(square + "print(\"\" + pmap(square, " + range.apply(100) + ")[99])", "9801");
+        check("fun half (x: Int): Float { return x / 2.0 }" +
+            "var r: Float[] = pmap(half, [0, 1, 2, 3, 4])" +
+            "print(\"\" + r[1] + \" \" + r[4] + \" \" + r.length)", "0.5 2.0 5");
+        check("fun half (x: Int): Float { return x / 2.0 }" +
+            "var none: Int[] = [] print(\"\" + pmap(half, none).length)", "0");
+
+        // the chunks are combined in order, from the initial value
+        check(add + "print(\"\" + preduce(add, " + range.apply(1000) + ", 5))", "499505");
+        check("fun concat (a: String, b: String): String { return a + b }" +
+            "print(preduce(concat, [\"a\", \"b\", \"c\", \"d\", \"e\", \"f\"], \">\"))",
+            ">abcdef");
+        check("fun add (a: Float, b: Float): Float { return a + b }" +
+            "print(\"\" + preduce(add, [1.5, 2.5], 1))", "5.0");
+        check("fun add (a: Float, b: Float): Float { return a + b }" +
+            "print(\"\" + preduce(add, [1, 2, 3], 1))", "7.0");
+        check(add + "var none: Int[] = [] print(\"\" + preduce(add, none, 5))", "5");
+
+        // pfor writes disjoint components of a global array
+        check("var squares: Int[] = " + range.apply(300) +
+            "fun fill (i: Int): Int { squares[i] = i * i return 0 }" +
+            "pfor(0, 300, fill)" +
+            "pfor(5, 0, fill)" +
+            "print(\"\" + (squares[17] + squares[299]))", "89690");
+
+        // the function can be any function value
+        check(add + sub + "print(\"\" + preduce([add, sub][0], [1, 2, 3], 0))", "6");
+
+        // failures in chunks propagate to the caller
+        checkThrows("fun at (i: Int): Int { return [1, 2][i] }" +
+            "print(\"\" + pmap(at, " + range.apply(10) + ").length)",
+            ArrayIndexOutOfBoundsException.class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTiered() {
+        String sum = "fun sum (n: Int): Int { var s: Int = 0 var i: Int = 0 "
+            + "while i < n { s = s + i i = i + 1 } return s } ";
+
+        // a single call is interpreted, but its loop makes the next call compiled
+        checkTiered(sum + "print(\"\" + sum(100))", "4950", "sum");
+        checkTiered(sum + "print(\"\" + sum(100) + \" \" + sum(10))", "4950 45", "sum");
+        checkTiered(sum + "print(\"\" + sum(5))", "10");
+
+        // recursive calls switch to the compiled version in the middle of the recursion
+        checkTiered("fun fib (n: Int): Int { if n < 2 { return n } return fib(n - 1) "
+            + "+ fib(n - 2) } print(\"\" + fib(15))", "610", "fib");
+
+        // the called functions are compiled along, arguments and results are converted
+        checkTiered(add + sub
+            + "fun twice (x: Int): Float { return add(x, x) } "
+            + "fun scale (a: Float[], k: Float): Float[] { var i: Int = 0 "
+            + "while i < a.length { a[i] = a[i] * k i = i + 1 } return a } "
+            + "var total: Float = 0 var i: Int = 0 "
+            + "while i < 30 { total = total + twice(i) + [add, sub][i % 2](i, 1) "
+            + "+ scale([1, 2, 3], i)[2] i = i + 1 } print(\"\" + total)",
+            "2610.0", "add", "sub", "twice", "scale");
+
+        // null values cross the boundary
+        checkTiered("fun orElse (s: String): String { if s == null { return \"-\" } return s } "
+            + "fun same (s: String): String { return s } "
+            + "var out: String = \"\" var i: Int = 0 "
+            + "while i < 20 { if i % 2 == 0 { out = out + orElse(null) } "
+            + "else { out = out + orElse(same(null)) } i = i + 1 } print(out)",
+            "--------------------", "orElse", "same");
+
+        // functions that use global variables or tasks remain interpreted
+        checkTiered("var total: Int = 0 fun bump (x: Int): Int { total = total + x return total } "
+            + "var i: Int = 0 while i < 50 { bump(i) i = i + 1 } print(\"\" + total)", "1225");
+        checkTiered(square + "fun later (x: Int): Int { launch var y: Int = square(x) "
+            + "wait(y) return y } var s: Int = 0 var i: Int = 0 "
+            + "while i < 20 { s = s + later(i) i = i + 1 } print(\"\" + s)",
+            "2470", "square");
+    }
 }
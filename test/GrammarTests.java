@@ -7,6 +7,7 @@ import java.util.ArrayList;
 
 import static java.util.Arrays.asList;
 import static norswap.sigh.ast.BinaryOperator.*;
+import static org.testng.Assert.assertTrue;
 
 public class GrammarTests extends AutumnTestFixture {
     // ---------------------------------------------------------------------------------------------
@@ -26,6 +27,17 @@ public class GrammarTests extends AutumnTestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Nodes use identity equality, so compare the parsed node with the expected node structurally.
+     */
+    private void successExpect (String input, SighNode expected) {
+        Object actual = success(input).topValue();
+        assertTrue(expected.structurallyEquals(actual),
+            "expected " + expected + " but got " + actual);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Test
     public void testLiteralsAndUnary () {
         rule = grammar.expression;
@@ -250,6 +262,49 @@ public class GrammarTests extends AutumnTestFixture {
                 )) //new ReentrantLock()
             )
         );
+
+        successExpect("protect read : { print(1) }",
+            new ProtectBlockNode(null, true,
+                new BlockNode(null, asList(
+                    new ExpressionStatementNode(null,
+                        new FunCallNode(null,
+                            new ReferenceNode(null, "print"), asList(intlit(1))
+                        )
+                    )
+                ))
+            )
+        );
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testChannels() {
+        rule = grammar.statement;
+
+        successExpect("var c: Channel<Int[]> = $Channel<Int[]>(4)",
+            new VarDeclarationNode(null, "c",
+                new ChannelTypeNode(null,
+                    new ArrayTypeNode(null, new SimpleTypeNode(null, "Int"))),
+                new FunCallNode(null,
+                    new ChannelConstructorNode(null,
+                        new ChannelTypeNode(null,
+                            new ArrayTypeNode(null, new SimpleTypeNode(null, "Int")))),
+                    asList(intlit(4)))));
+
+        successExpect("var cs: Channel<Channel<Int>>[] = null",
+            new VarDeclarationNode(null, "cs",
+                new ArrayTypeNode(null,
+                    new ChannelTypeNode(null,
+                        new ChannelTypeNode(null, new SimpleTypeNode(null, "Int")))),
+                new ReferenceNode(null, "null")));
+
+        // a struct named Channel still has its constructor
+        successExpect("var c: Channel = $Channel(1)",
+            new VarDeclarationNode(null, "c",
+                new SimpleTypeNode(null, "Channel"),
+                new FunCallNode(null,
+                    new ConstructorNode(null, new ReferenceNode(null, "Channel")),
+                    asList(intlit(1)))));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -6,8 +6,13 @@ import norswap.autumn.positions.LineMapString;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
 import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.ArrayParallelism;
+import norswap.sigh.interpreter.ClosureInterpreter;
 import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.InterpreterException;
+import norswap.sigh.interpreter.LaunchScheduler;
 import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.ProtectMode;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
 import norswap.utils.IO;
@@ -15,8 +20,14 @@ import norswap.utils.TestFixture;
 import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertThrows;
@@ -41,6 +52,13 @@ public final class InterpreterTests extends TestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Every program is checked against each of these execution engines. */
+    private static final List<BiFunction<Reactor, SighNode, Object>> engines = List.of(
+        (reactor, root) -> new Interpreter(reactor).interpret(root),
+        (reactor, root) -> new ClosureInterpreter(reactor).interpret(root));
+
+    // ---------------------------------------------------------------------------------------------
+
     private void check (String input, Object expectedReturn) {
         assertNotNull(rule, "You forgot to initialize the rule field.");
         check(rule, input, expectedReturn, null);
@@ -56,6 +74,14 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private void check (rule rule, String input, Object expectedReturn, String expectedOutput) {
+        for (BiFunction<Reactor, SighNode, Object> engine: engines)
+            check(rule, input, expectedReturn, expectedOutput, engine);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void check (rule rule, String input, Object expectedReturn, String expectedOutput,
+                        BiFunction<Reactor, SighNode, Object> engine) {
         // TODO
         // (1) write proper parsing tests
         // (2) write some kind of automated runner, and use it here
@@ -66,7 +92,6 @@ public final class InterpreterTests extends TestFixture {
 
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -81,13 +106,48 @@ public final class InterpreterTests extends TestFixture {
             throw new AssertionError(report);
         }
 
-        Pair<String, Object> result = IO.captureStdout(() -> interpreter.interpret(root));
+        Pair<String, Object> result = IO.captureStdout(() -> engine.apply(reactor, root));
         assertEquals(result.b, expectedReturn);
         if (expectedOutput != null) assertEquals(result.a, expectedOutput);
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Checks the program with both engines, on each of the given schedulers (all of them if none
+     * is given). {@code configure} sets the options that only {@link Interpreter} has (such as its
+     * {@link ProtectMode}): {@link ClosureInterpreter} runs the program with its defaults.
+     */
+    private void checkAllEngines (String input, Object expectedReturn,
+                                  Consumer<Interpreter> configure, LaunchScheduler... schedulers)
+    {
+        assertNotNull(rule, "You forgot to initialize the rule field.");
+        if (schedulers.length == 0)
+            schedulers = LaunchScheduler.values();
+        for (LaunchScheduler scheduler: schedulers) {
+            check(rule, input, expectedReturn, null, (reactor, root) -> {
+                Interpreter interpreter = new Interpreter(reactor);
+                interpreter.setScheduler(scheduler);
+                configure.accept(interpreter);
+                return interpreter.interpret(root);
+            });
+            check(rule, input, expectedReturn, null, (reactor, root) -> {
+                ClosureInterpreter interpreter = new ClosureInterpreter(reactor);
+                interpreter.setScheduler(scheduler);
+                return interpreter.interpret(root);
+            });
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void checkAllEngines (String input, Object expectedReturn,
+                                  LaunchScheduler... schedulers) {
+        checkAllEngines(input, expectedReturn, interpreter -> {}, schedulers);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void checkExpr (String input, Object expectedReturn, String expectedOutput) {
         rule = grammar.root;
         check("return " + input, expectedReturn, expectedOutput);
@@ -103,7 +163,11 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private void checkThrows (String input, Class<? extends Throwable> expected) {
-        assertThrows(expected, () -> check(input, null));
+        for (BiFunction<Reactor, SighNode, Object> engine: engines)
+            assertThrows(expected, () -> {
+                assertNotNull(rule, "You forgot to initialize the rule field.");
+                check(rule, input, null, null, engine);
+            });
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -114,7 +178,7 @@ public final class InterpreterTests extends TestFixture {
         checkExpr("42.0", 42.0d);
         checkExpr("\"hello\"", "hello");
         checkExpr("(42)", 42L);
-        checkExpr("[1, 2, 3]", new Object[]{1L, 2L, 3L});
+        checkExpr("[1, 2, 3]", new long[]{1, 2, 3});
         checkExpr("true", true);
         checkExpr("false", false);
         checkExpr("null", Null.INSTANCE);
@@ -495,8 +559,8 @@ public final class InterpreterTests extends TestFixture {
         // checking that the wait function correctly wait for
         // the variable to be initialized before continuing the main execution
         check(
-            "fun addUpTo100000 (a: Int): Int { while a < 100000 { a = a + 1 } return a } " +
-                "launch var b : Int = addUpTo100000(1)" +
+            "fun addUpTo1000000 (a: Int): Int { while a < 1000000 { a = a + 1 } return a } " +
+                "launch var b : Int = addUpTo1000000(1)" +
                 "return b",
             null);
         check(
@@ -529,6 +593,156 @@ public final class InterpreterTests extends TestFixture {
                 "return print(\"\" + protect1 + protect2 + protect3 + protect4)",
             "1111"
         );
+
+        // wait returns as soon as the task completes: chaining many short tasks is fast
+        check(
+            "fun one (): Int { return 1 }" +
+                "var sum: Int = 0" +
+                "var i: Int = 0" +
+                "while i < 200 {" +
+                "    launch var x: Int = one()" +
+                "    wait(x)" +
+                "    sum = sum + x" +
+                "    i = i + 1" +
+                "}" +
+                "return sum",
+            200L);
+
+        // waiting for a variable that isn't launched returns at once, whatever its slot kind
+        check("var y: Int = 3  wait(y)  return y", 3L);
+        check("var f: Float = 1.5  wait(f)  return f", 1.5);
+        check("fun get (): Int { var y: Int = 0  wait(y)  return y + 1 } return get()", 1L);
+
+        // exceptions thrown by the launched task are propagated by wait
+        checkThrows(
+            "fun fail (): Int { return 1 / 0 }" +
+                "launch var x: Int = fail()" +
+                "wait(x)" +
+                "return x",
+            InterpreterException.class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testSchedulers () {
+        rule = grammar.root;
+
+        // many tasks blocked at the same time, waiting for a slow task
+        String input =
+            "fun open (): Int { var i: Int = 0 while i < 10000 { i = i + 1 } return 1 }" +
+                "launch var gate: Int = open()" +
+                "fun waitGate (): Int { wait(gate) return gate }" +
+                "var i: Int = 0" +
+                "while i < 500 {" +
+                "    launch var w: Int = waitGate()" +
+                "    i = i + 1" +
+                "}" +
+                "wait(gate)" +
+                "return gate";
+
+        checkAllEngines(input, 1L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testGlobalsStress () {
+        rule = grammar.root;
+
+        // 64 tasks start at the same time, then each one reads and writes its own global
+        int tasks = 64;
+        StringBuilder input = new StringBuilder("var go: Bool = false ");
+        StringBuilder sum = new StringBuilder("0");
+        for (int i = 0; i < tasks; ++i) {
+            input.append("var g").append(i).append(": Int = 0 ")
+                .append("fun w").append(i).append(" (): Int { while !go {} var i: Int = 0 ")
+                .append("while i < 1000 { g").append(i).append(" = g").append(i).append(" + 1 ")
+                .append("i = i + 1 } return g").append(i).append(" } ");
+            sum.append(" + g").append(i);
+        }
+        for (int i = 0; i < tasks; ++i)
+            input.append("launch var d").append(i).append(": Int = w").append(i).append("() ");
+        input.append("go = true ");
+        for (int i = 0; i < tasks; ++i)
+            input.append("wait(d").append(i).append(") ");
+        input.append("return ").append(sum);
+
+        checkAllEngines(input.toString(), tasks * 1000L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testNestedLaunches () {
+        rule = grammar.root;
+
+        // a run ends when all its tasks have completed, including the tasks launched by tasks
+        // (runs share their executor, which is never shut down)
+        for (int i = 0; i < 3; ++i)
+            check(
+                "fun inner (): Int { print(\"1\") return 1 }" +
+                    "fun outer (): Int { launch inner() return 1 }" +
+                    "launch outer()" +
+                    "launch outer()",
+                null, "1\n1\n");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testStructuredLaunches () {
+        rule = grammar.root;
+
+        // a function returns after the tasks it launched
+        check(
+            "var count: Int = 0" +
+                "fun add (n: Int): Int {" +
+                "    var i: Int = 0 while i < n { count = count + 1 i = i + 1 } return 1 }" +
+                "fun spawn (): Int { launch add(1000) return 1 }" +
+                "spawn()" +
+                "return count",
+            1000L);
+
+        // so does a block
+        check(
+            "var count: Int = 0" +
+                "fun add (n: Int): Int {" +
+                "    var i: Int = 0 while i < n { count = count + 1 i = i + 1 } return 1 }" +
+                "if true { launch add(1000) }" +
+                "return count",
+            1000L);
+
+        // recursive divide-and-conquer does not exhaust the fixed pool
+        String sum =
+            "fun sum (lo: Int, hi: Int): Int {" +
+                "    if hi - lo <= 16 {" +
+                "        var s: Int = 0" +
+                "        while lo < hi { s = s + lo lo = lo + 1 }" +
+                "        return s" +
+                "    }" +
+                "    var mid: Int = (lo + hi) / 2" +
+                "    launch var left: Int = sum(lo, mid)" +
+                "    launch var right: Int = sum(mid, hi)" +
+                "    wait(left)" +
+                "    wait(right)" +
+                "    return left + right" +
+                "}" +
+                "return sum(0, 4096)";
+        check(sum, 4096L * 4095L / 2);
+
+        // failures propagate to the enclosing scope, even without wait
+        checkThrows(
+            "fun fail (): Int { return 1 / 0 }" +
+                "fun spawn (): Int { launch fail() return 1 }" +
+                "spawn()" +
+                "return 1",
+            InterpreterException.class);
+        checkThrows(
+            "fun fail (): Int { return 1 / 0 }" +
+                "launch var x: Int = fail()" +
+                "return 1",
+            InterpreterException.class);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -559,6 +773,8 @@ public final class InterpreterTests extends TestFixture {
             null, "ThreadedVar : 1000\n");
 
 
+        // unprotected increments may be lost (depending on the scheduling, so this isn't checked),
+        // but are never counted twice
         check("var threadedVar: Int = 0" +
                 "fun add1000() {" +
                 "        var i: Int = 0" +
@@ -575,9 +791,346 @@ public final class InterpreterTests extends TestFixture {
                 "while a < 100000 {" +
                 "    a = a +1" +
                 "}" +
-                "var boolean : Bool = threadedVar < 4000" +
+                "var boolean : Bool = threadedVar <= 4000" +
                 "print(\"\" + boolean)",
             null, "true\n");
+
+        check("var threadedVar: Int = 0" +
+                "fun add1000(): Int {" +
+                "        var i: Int = 0" +
+                "        while i < 1000 {" +
+                "            protect : { threadedVar = threadedVar+1 }" +
+                "            i = i +1" +
+                "        }" +
+                "        return 1" +
+                "}" +
+                "launch var returned : Int = add1000()" +
+                "launch var returned2 : Int = add1000()" +
+                "launch var returned3 : Int = add1000()" +
+                "launch var returned4 : Int = add1000()" +
+                "wait(returned)" +
+                "wait(returned2)" +
+                "wait(returned3)" +
+                "wait(returned4)" +
+                "print(\"ThreadedVar : \" + threadedVar)",
+            null, "ThreadedVar : 4000\n");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAtomicProtect() {
+        rule = grammar.root;
+
+        // single updates of a global are atomic, even across different protect blocks
+        String tasks =
+            "launch var a: Int = add()" +
+                "launch var b: Int = add()" +
+                "launch var c: Int = sub()" +
+                "launch var d: Int = add()" +
+                "wait(a) wait(b) wait(c) wait(d)";
+        check("var count: Int = 0" +
+                "var total: Float = 0.0" +
+                "fun add(): Int {" +
+                "    var i: Int = 0" +
+                "    var step: Int = 2" +
+                "    while i < 1000 {" +
+                "        protect : { count = count + step }" +
+                "        protect : { total = 0.5 + total }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return 1" +
+                "}" +
+                "fun sub(): Int {" +
+                "    var i: Int = 0" +
+                "    while i < 1000 {" +
+                "        protect : { count = (count - 1) }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return 1" +
+                "}" +
+                tasks +
+                "return \"\" + count + \" \" + total",
+            "5000 1500.0");
+
+        // other operators, and a global declared with launch var
+        check("var product: Int = 1" +
+                "var ratio: Float = 1024.0" +
+                "fun two(): Int { return 2 }" +
+                "launch var base: Int = two()" +
+                "wait(base)" +
+                "var i: Int = 0" +
+                "while i < 10 {" +
+                "    protect : { product = product * 2 }" +
+                "    protect : { ratio = ratio / 2 }" +
+                "    protect : { base = base * 3 }" +
+                "    i = i + 1" +
+                "}" +
+                "protect : { product = product % 1000 }" +
+                "return \"\" + product + \" \" + ratio + \" \" + base",
+            "24 1.0 118098");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testParallelBuiltins() {
+        rule = grammar.root;
+
+        IntFunction<String> range = n -> Arrays.toString(IntStream.range(0, n).toArray());
+
+        check("fun square (x: Int): Int { return x * x }" +
+                "return pmap(square, " + range.apply(100) + ")[99]",
+            9801L);
+        check("fun half (x: Int): Float { return x / 2.0 }" +
+                "return pmap(half, [0, 1, 2, 3, 4])",
+            new double[] { 0.0, 0.5, 1.0, 1.5, 2.0 });
+        check("fun half (x: Int): Float { return x / 2.0 }" +
+                "var none: Int[] = [] return pmap(half, none)", new double[0]);
+
+        // the chunks are combined in order, from the initial value
+        check("fun add (a: Int, b: Int): Int { return a + b }" +
+                "return preduce(add, " + range.apply(1000) + ", 5)",
+            499505L);
+        check("fun concat (a: String, b: String): String { return a + b }" +
+                "return preduce(concat, [\"a\", \"b\", \"c\", \"d\", \"e\", \"f\"], \">\")",
+            ">abcdef");
+        check("fun add (a: Float, b: Float): Float { return a + b }" +
+                "return preduce(add, [1.5, 2.5], 1)",
+            5.0);
+
+        // pfor writes disjoint components of a global array
+        check("var squares: Int[] = " + range.apply(300) +
+                "fun fill (i: Int): Int { squares[i] = i * i return 0 }" +
+                "pfor(0, 300, fill)" +
+                "pfor(5, 0, fill)" +
+                "return squares[17] + squares[299]",
+            289L + 89401L);
+
+        // failures in chunks propagate to the caller
+        checkThrows("fun at (i: Int): Int { return [1, 2][i] }" +
+                "return pmap(at, " + range.apply(10) + ")",
+            ArrayIndexOutOfBoundsException.class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testReadProtect() {
+        rule = grammar.root;
+
+        // readers never see the two halves of a writer's update apart, nor a reader's own state
+        String input =
+            "struct Pair { var a: Int; var b: Int }" +
+                "var pair: Pair = $Pair(0, 0)" +
+                "var total: Int[] = [0]" +
+                "fun update (n: Int): Int {" +
+                "    var i: Int = 0" +
+                "    while i < n {" +
+                "        protect : { pair.a = pair.a + 1  pair.b = pair.b - 1 }" +
+                "        protect : { total[0] = total[0] + 1 }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return 1" +
+                "}" +
+                "fun observe (n: Int): Int {" +
+                "    var torn: Int = 0" +
+                "    var i: Int = 0" +
+                "    while i < n {" +
+                "        var sum: Int = 1" +
+                "        protect read : { sum = pair.a + pair.b }" +
+                "        if sum != 0 { torn = torn + 1 }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return torn" +
+                "}" +
+                "launch var w1: Int = update(500)" +
+                "launch var w2: Int = update(500)" +
+                "launch var r1: Int = observe(1000)" +
+                "launch var r2: Int = observe(1000)" +
+                "wait(w1) wait(w2) wait(r1) wait(r2)" +
+                "return \"\" + pair.a + \" \" + total[0] + \" \" + (r1 + r2)";
+
+        checkAllEngines(input, "1000 1000 0");
+
+        // a block whose optimistic run fails restores the locals it assigned before running again
+        String locals =
+            "struct Pair { var a: Int; var b: Int }" +
+                "var pair: Pair = $Pair(1, 0)" +
+                "fun update (n: Int): Int {" +
+                "    var i: Int = 0" +
+                "    while i < n {" +
+                "        protect : { pair.a = pair.a + 1  pair.b = pair.b - 1 }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return 1" +
+                "}" +
+                "fun observe (n: Int): Int {" +
+                "    var acc: Int = 0" +
+                "    var i: Int = 0" +
+                "    while i < n {" +
+                "        protect read : { acc = acc + pair.a + pair.b }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return acc" +
+                "}" +
+                "launch var w1: Int = update(20000)" +
+                "launch var w2: Int = update(20000)" +
+                "launch var r1: Int = observe(20000)" +
+                "launch var r2: Int = observe(20000)" +
+                "launch var r3: Int = observe(20000)" +
+                "wait(w1) wait(w2) wait(r1) wait(r2) wait(r3)" +
+                "return r1 + r2 + r3";
+        checkAllEngines(locals, 60000L);
+
+        // a block that calls a function holds the lock exclusively, as the function can write
+        String calls =
+            "var count: Int = 0" +
+                "fun bump (): Int { count = count + 1  return count }" +
+                "fun observe (n: Int): Int {" +
+                "    var last: Int = 0" +
+                "    var i: Int = 0" +
+                "    while i < n {" +
+                "        protect read : { last = bump() }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return last" +
+                "}" +
+                "launch var r1: Int = observe(20000)" +
+                "launch var r2: Int = observe(20000)" +
+                "launch var r3: Int = observe(20000)" +
+                "wait(r1) wait(r2) wait(r3)" +
+                "return count";
+        checkAllEngines(calls, 60000L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTransactionalProtect() {
+        rule = grammar.root;
+
+        // blocks that read and write array components, struct fields and globals commit atomically
+        String input =
+            "struct Acc { var n: Int }" +
+                "var slots: Int[] = [0, 0, 0, 0]" +
+                "var acc: Acc = $Acc(0)" +
+                "var moved: Int = 0" +
+                "fun work (t: Int): Int {" +
+                "    var i: Int = 0" +
+                "    while i < 500 {" +
+                "        var k: Int = (i * 7 + t) % 4" +
+                "        protect : {" +
+                "            slots[k] = slots[k] + 1" +
+                "            acc.n = acc.n + 2" +
+                "            protect : { moved = moved + 1 }" +
+                "        }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return 1" +
+                "}" +
+                "launch var a: Int = work(0)" +
+                "launch var b: Int = work(1)" +
+                "launch var c: Int = work(2)" +
+                "launch var d: Int = work(3)" +
+                "wait(a) wait(b) wait(c) wait(d)" +
+                "var sum: Int = slots[0] + slots[1] + slots[2] + slots[3]" +
+                "return \"\" + sum + \" \" + acc.n + \" \" + moved";
+
+        checkAllEngines(input, "2000 4000 2000",
+            interpreter -> interpreter.setProtectMode(ProtectMode.TRANSACTION));
+
+        // the locals written by a block that is retried after a conflict are restored first
+        String locals =
+            "var g: Int = 0" +
+                "fun work (n: Int): Int {" +
+                "    var acc: Int = 0" +
+                "    var i: Int = 0" +
+                "    while i < n {" +
+                "        protect : { acc = acc + 1  g = g + 1 }" +
+                "        i = i + 1" +
+                "    }" +
+                "    return acc" +
+                "}" +
+                "launch var a: Int = work(20000)" +
+                "launch var b: Int = work(20000)" +
+                "launch var c: Int = work(20000)" +
+                "wait(a) wait(b) wait(c)" +
+                "return \"\" + g + \" \" + (a + b + c)";
+        checkAllEngines(locals, "60000 60000",
+            interpreter -> interpreter.setProtectMode(ProtectMode.TRANSACTION));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testChannels() {
+        rule = grammar.root;
+
+        check("var c: Channel<Int> = $Channel<Int>(2)" +
+                "send(c, 1) send(c, 2)" +
+                "return receive(c) * 10 + receive(c)", 12L);
+        check("var c: Channel<Float> = $Channel<Float>(1)" +
+                "send(c, 1) return receive(c)", 1.0);
+        check("var c: Channel<String[]> = $Channel<String[]>(3)" +
+                "send(c, [\"a\"]) send(c, [\"b\", \"c\"]) close(c)" +
+                "var s: String = \"\"" +
+                "while more(c) { s = s + receive(c)[0] }" +
+                "return s", "ab");
+        check("var c: Channel<Int> = $Channel<Int>(1) close(c) close(c) return more(c)", false);
+
+        checkThrows("var c: Channel<Int> = $Channel<Int>(1) close(c) send(c, 1)",
+            IllegalStateException.class);
+        checkThrows("var c: Channel<Int> = $Channel<Int>(1) close(c) return receive(c)",
+            IllegalStateException.class);
+        checkThrows("var c: Channel<Int> = $Channel<Int>(0)",
+            IllegalArgumentException.class);
+        checkThrows("var c: Channel<Int> = null return receive(c)",
+            NullPointerException.class);
+
+        // a pipeline whose stages block on each other: the producer and the two mappers wait for
+        // room in the small channels, while the collector waits for values
+        String pipeline =
+            "var input: Channel<Int> = $Channel<Int>(4)" +
+                "var output: Channel<Int> = $Channel<Int>(1)" +
+                "fun produce (n: Int): Int {" +
+                "    var i: Int = 1" +
+                "    while i <= n { send(input, i)  i = i + 1 }" +
+                "    close(input)" +
+                "    return n" +
+                "}" +
+                "fun double (): Int {" +
+                "    var count: Int = 0" +
+                "    while more(input) { send(output, 2 * receive(input))  count = count + 1 }" +
+                "    return count" +
+                "}" +
+                "fun collect (): Int {" +
+                "    var sum: Int = 0" +
+                "    while more(output) { sum = sum + receive(output) }" +
+                "    return sum" +
+                "}" +
+                "launch var c: Int = collect()" +
+                "launch var m1: Int = double()" +
+                "launch var m2: Int = double()" +
+                "launch var p: Int = produce(1000)" +
+                "wait(m1) wait(m2) close(output) wait(c) wait(p)" +
+                "return \"\" + c + \" \" + (m1 + m2)";
+
+        checkAllEngines(pipeline, "1001000 1000", LaunchScheduler.VIRTUAL);
+
+        // the value received in advance by more belongs to the task that called it, even when the
+        // thread that runs it runs another task (here, the one it awaits) before receiving
+        String prefetch =
+            "fun take (c: Channel<Int>): Int { return receive(c) }" +
+                "fun round (): Int {" +
+                "    var c: Channel<Int> = $Channel<Int>(2)" +
+                "    send(c, 1) send(c, 2)" +
+                "    if !more(c) { return 0 }" +
+                "    launch var r: Int = take(c)" +
+                "    wait(r)" +
+                "    return receive(c) * 10 + r" +
+                "}" +
+                "var sum: Int = 0" +
+                "var i: Int = 0" +
+                "while i < 100 { sum = sum + round()  i = i + 1 }" +
+                "return sum";
+
+        checkAllEngines(prefetch, 1200L);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -585,28 +1138,28 @@ public final class InterpreterTests extends TestFixture {
     @Test
     public void testNumericArrayOp () {
         // multiplication
-        checkExpr("[1, 2, 7] * [8, 5, 7]", new Object[]{8L, 10L, 49L});
-        checkExpr("[-1, 1, 0] * [3.2, -1.3658, 0.0]", new Object[]{-3.2, -1.3658, 0.0});
-        checkExpr("[3.2, -1.3658, 0.0] * [-1, 1, 0]", new Object[]{-3.2, -1.3658, 0.0});
-        checkExpr("[3.2, -1.3658, 0.0] * [0.0, 1.753, -1.654]", new Object[]{0.0, -2.3942474, -0.0});
+        checkExpr("[1, 2, 7] * [8, 5, 7]", new long[]{8, 10, 49});
+        checkExpr("[-1, 1, 0] * [3.2, -1.3658, 0.0]", new double[]{-3.2, -1.3658, 0.0});
+        checkExpr("[3.2, -1.3658, 0.0] * [-1, 1, 0]", new double[]{-3.2, -1.3658, 0.0});
+        checkExpr("[3.2, -1.3658, 0.0] * [0.0, 1.753, -1.654]", new double[]{0.0, -2.3942474, -0.0});
 
         // division
-        checkExpr("[1, 2, -12] / [8, 5, 7]", new Object[]{0L, 0L, -1L});
-        checkExpr("[-1, 1, 0] / [3.2, -1.3658, 0.001]", new Object[]{-0.3125, -0.732171621027969, 0.0});
-        checkExpr("[3.2, -1.3658, 21.3] / [-1, 1, 8963]", new Object[]{-3.2, -1.3658, 0.0023764364610063594});
-        checkExpr("[3.2, -1.3658, 0.0] / [0.01, 1.753, -1.654]", new Object[]{320.0, -0.7791215059897318, -0.0});
+        checkExpr("[1, 2, -12] / [8, 5, 7]", new long[]{0, 0, -1});
+        checkExpr("[-1, 1, 0] / [3.2, -1.3658, 0.001]", new double[]{-0.3125, -0.732171621027969, 0.0});
+        checkExpr("[3.2, -1.3658, 21.3] / [-1, 1, 8963]", new double[]{-3.2, -1.3658, 0.0023764364610063594});
+        checkExpr("[3.2, -1.3658, 0.0] / [0.01, 1.753, -1.654]", new double[]{320.0, -0.7791215059897318, -0.0});
 
         // addition
-        checkExpr("[1, 2, -12] + [8, 5, 7]", new Object[]{9L, 7L, -5L});
-        checkExpr("[-1, 1, 0] + [3.2, -1.3658, 0.001]", new Object[]{2.2, -0.3657999999999999, 0.001});
-        checkExpr("[3.2, -1.3658, 21.3] + [-1, 1, 8963]", new Object[]{2.2, -0.3657999999999999, 8984.3});
-        checkExpr("[3.2, -1.3658, 0.0] + [0.0, 1.753, -1.654]", new Object[]{3.2, 0.3872, -1.654});
+        checkExpr("[1, 2, -12] + [8, 5, 7]", new long[]{9, 7, -5});
+        checkExpr("[-1, 1, 0] + [3.2, -1.3658, 0.001]", new double[]{2.2, -0.3657999999999999, 0.001});
+        checkExpr("[3.2, -1.3658, 21.3] + [-1, 1, 8963]", new double[]{2.2, -0.3657999999999999, 8984.3});
+        checkExpr("[3.2, -1.3658, 0.0] + [0.0, 1.753, -1.654]", new double[]{3.2, 0.3872, -1.654});
 
         // subtraction
-        checkExpr("[1, 2, -12] - [8, 5, 7]", new Object[]{-7L, -3L, -19L});
-        checkExpr("[-1, 1, 0] - [3.2, -1.3658, 0.001]", new Object[]{-4.2, 2.3658, -0.001});
-        checkExpr("[3.2, -1.3658, 21.3] - [-1, 1, 8963]", new Object[]{4.2, -2.3658, -8941.7});
-        checkExpr("[3.2, -1.3658, 0.0] - [0.0, 1.753, -1.654]", new Object[]{3.2, -3.1188, 1.654});
+        checkExpr("[1, 2, -12] - [8, 5, 7]", new long[]{-7, -3, -19});
+        checkExpr("[-1, 1, 0] - [3.2, -1.3658, 0.001]", new double[]{-4.2, 2.3658, -0.001});
+        checkExpr("[3.2, -1.3658, 21.3] - [-1, 1, 8963]", new double[]{4.2, -2.3658, -8941.7});
+        checkExpr("[3.2, -1.3658, 0.0] - [0.0, 1.753, -1.654]", new double[]{3.2, -3.1188, 1.654});
     }
 
     @Test
@@ -615,9 +1168,42 @@ public final class InterpreterTests extends TestFixture {
         checkThrows("[[4.0, 5.0, 6.0], [7.0, 8.0, 9.0]] @ [[1.0, 2.0, 3.0], [4.0, 5.0, 6.0], [7.0, 8.0, 9.0]]",
             AssertionError.class);
         checkExpr("[[1.0, 2.0, 3.0], [4.0, 5.0, 6.0], [7.0, 8.0, 9.0]] @ [[1.0, 2.0, 3.0], [4.0, 5.0, 6.0], [7.0, 8.0, 9.0]]",
-            new Object[][] {{30.0, 36.0, 42.0}, {66.0, 81.0, 96.0}, {102.0, 126.0, 150.0}});
+            new double[][] {{30.0, 36.0, 42.0}, {66.0, 81.0, 96.0}, {102.0, 126.0, 150.0}});
         checkExpr("[[1.0, 2.0, 3.0]] @ [[4], [5], [6]]",
-            new Object[][] {{32.0}});
+            new double[][] {{32.0}});
+    }
+
+    @Test
+    public void largeMatricialProduct () {
+        // 40x130 @ 130x40: spans several tiles of the product kernel
+        long[][] a = new long[40][130];
+        long[][] b = new long[130][40];
+        for (int i = 0; i < 40; i++)
+            for (int k = 0; k < 130; k++) {
+                a[i][k] = (i + k) % 7 - 3;
+                b[k][i] = (i * k) % 5;
+            }
+        double[][] expected = new double[40][40];
+        for (int i = 0; i < 40; i++)
+            for (int j = 0; j < 40; j++)
+                for (int k = 0; k < 130; k++)
+                    expected[i][j] += a[i][k] * b[k][j];
+        checkExpr(matrix(a) + " @ " + matrix(b), expected);
+
+        int threshold = ArrayParallelism.threshold();
+        ArrayParallelism.setThreshold(1);
+        try {
+            checkExpr(matrix(a) + " @ " + matrix(b), expected);
+        } finally {
+            ArrayParallelism.setThreshold(threshold);
+        }
+    }
+
+    private static String matrix (long[][] rows) {
+        StringBuilder b = new StringBuilder("[");
+        for (long[] row: rows)
+            b.append(b.length() == 1 ? "" : ", ").append(Arrays.toString(row));
+        return b.append("]").toString();
     }
 
     @Test
@@ -625,16 +1211,16 @@ public final class InterpreterTests extends TestFixture {
         // Multi-dimensional arrays
         checkExpr("[[[15.0, 5.0, 7.0], [14.0, 5.0, 7.0]], [[5.0, 17.0, 23.0] , [-4.0, -10.0, -17.0]]] + " +
                 "[[[14.0, 5.0, 7.0], [14.0, 5.0, 7.0]], [[5.0, 17.0, 23.0] , [-4.0, -10.0, -17.0]]]",
-            new Object[][][]{{{29.0, 10.0, 14.0}, {28.0, 10.0, 14.0}}, {{10.0, 34.0, 46.0} , {-8.0, -20.0, -34.0}}});
+            new double[][][]{{{29.0, 10.0, 14.0}, {28.0, 10.0, 14.0}}, {{10.0, 34.0, 46.0} , {-8.0, -20.0, -34.0}}});
         checkExpr("[[[15.0, 5.0, 7.0], [14.0, 5.0, 7.0]], [[5.0, 17.0, 23.0] , [-4.0, -10.0, -17.0]]] * " +
                 "[[[14.0, 5.0, 7.0], [14.0, 5.0, 7.0]], [[5.0, 17.0, 23.0] , [-4.0, -10.0, -17.0]]]",
-            new Object[][][]{{{210.0, 25.0, 49.0}, {196.0, 25.0, 49.0}}, {{25.0, 289.0, 529.0} , {16.0, 100.0, 289.0}}});
+            new double[][][]{{{210.0, 25.0, 49.0}, {196.0, 25.0, 49.0}}, {{25.0, 289.0, 529.0} , {16.0, 100.0, 289.0}}});
         checkExpr("[[[15.0, 5.0, 7.0], [14.0, 5.0, 7.0]], [[5.0, 17.0, 23.0] , [-4.0, -10.0, -17.0]]] - " +
                 "[[[18.0, 7.0, 1.0], [3.0, 2.0, 7.0]], [[5.0, 17.0, 15.0] , [4.0, -12.0, -18.0]]]",
-            new Object[][][]{{{-3.0, -2.0, 6.0}, {11.0, 3.0, 0.0}}, {{0.0, 0.0, 8.0} , {-8.0, 2.0, 1.0}}});
+            new double[][][]{{{-3.0, -2.0, 6.0}, {11.0, 3.0, 0.0}}, {{0.0, 0.0, 8.0} , {-8.0, 2.0, 1.0}}});
         checkExpr("[[[15.0, 5.0, 7.0], [14.0, 5.0, 7.0]], [[5.0, 17.0, 23.0] , [-4.0, -10.0, -17.0]]] / " +
                 "[[[14.0, 5.0, 7.0], [14.0, 8.0, 7.0]], [[5.0, 17.0, 9.0] , [-6.0, 10.0, -23.0]]]",
-            new Object[][][]{{{1.0714285714285714, 1.0, 1.0}, {1.0, 0.625, 1.0}}, {{1.0, 1.0, 2.5555555555555554}, {0.6666666666666666, -1.0, 0.7391304347826086}}});
+            new double[][][]{{{1.0714285714285714, 1.0, 1.0}, {1.0, 0.625, 1.0}}, {{1.0, 1.0, 2.5555555555555554}, {0.6666666666666666, -1.0, 0.7391304347826086}}});
 
         // Corner cases
 
@@ -646,7 +1232,7 @@ public final class InterpreterTests extends TestFixture {
 
         // Division by 0
         checkExpr("[[-1.0, 1.0, 1.0], [3.0, 2.0, 8.0]] / [[3.0, -1.0, 0.0], [0.0, 1.0, 8.0]]",
-            new Object[][]{{-0.3333333333333333, -1.0, Double.POSITIVE_INFINITY}, {Double.POSITIVE_INFINITY, 2.0, 1.0}});
+            new double[][]{{-0.3333333333333333, -1.0, Double.POSITIVE_INFINITY}, {Double.POSITIVE_INFINITY, 2.0, 1.0}});
 
     }
 
@@ -654,8 +1240,8 @@ public final class InterpreterTests extends TestFixture {
     public void cornerCasesArrayOperation () {
         // division by 0
         checkThrows("[-1, 1, 1] / [3, -1, 0]", AssertionError.class);
-        checkExpr("[-1, 1, 1] / [3.0, -1.0, 0.0]", new Object[]{-0.3333333333333333, -1.0, Double.POSITIVE_INFINITY});
-        checkExpr("[-1.0, 1.0, 1.0] / [3.0, -1.0, 0.0]", new Object[]{-0.3333333333333333, -1.0, Double.POSITIVE_INFINITY});
+        checkExpr("[-1, 1, 1] / [3.0, -1.0, 0.0]", new double[]{-0.3333333333333333, -1.0, Double.POSITIVE_INFINITY});
+        checkExpr("[-1.0, 1.0, 1.0] / [3.0, -1.0, 0.0]", new double[]{-0.3333333333333333, -1.0, Double.POSITIVE_INFINITY});
 
         // operation on two arrays of different length and null length
         checkThrows("[-1, 1, 1] + [3.0, -1.0, 0.0, 0.0]", AssertionError.class);
@@ -672,6 +1258,52 @@ public final class InterpreterTests extends TestFixture {
         checkThrows("[] / []", AssertionError.class);
     }
 
+    @Test
+    public void fusedArrayOperations () {
+        // chains of element-wise operations are computed in a single pass
+        checkExpr("[1, 2, 3] + [4, 5, 6] * [7, 8, 9] - [1, 1, 1]", new long[]{28, 41, 56});
+        checkExpr("[7, 9] / [2, 4] + [0.5, 0.5]", new double[]{3.5, 2.5});
+        checkExpr("([1, 2] - [3, 4]) * [2.0, 0.5] - ([9, 8] / [2, 3])", new double[]{-8.0, -3.0});
+        checkExpr("[[1, 2], [3, 4]] * [[2, 2], [2, 2]] + [[0.5, 0.5], [0.5, 0.5]] / [[1, 2], [1, 2]]",
+            new double[][]{{2.5, 4.25}, {6.5, 8.25}});
+        checkThrows("[1, 2, 3] + [4, 5, 6] * [7, 8]", AssertionError.class);
+        checkThrows("[1, 2] * [3, 4] / [1, 0]", AssertionError.class);
+
+        // spans several blocks, sequentially and in parallel
+        long[] expected = new long[1000];
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = i * 3 - (i % 7);
+        String ints = literal(1000, i -> "" + i);
+        String twos = literal(1000, i -> "2");
+        String mods = literal(1000, i -> "" + (i % 7));
+        checkExpr(ints + " + " + ints + " * " + twos + " - " + mods + " - " + ints + " + " + ints,
+            expected);
+    }
+
+    private static String literal (int size, IntFunction<String> component) {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < size; i++)
+            b.append(i == 0 ? "" : ", ").append(component.apply(i));
+        return b.append("]").toString();
+    }
+
+    @Test
+    public void parallelArrayOperations () {
+        // forces the fork/join path, splitting down to single elements or rows
+        int threshold = ArrayParallelism.threshold();
+        ArrayParallelism.setThreshold(1);
+        try {
+            testNumericArrayOp();
+            multiDimArrayOperations();
+            matricialProduct();
+            fusedArrayOperations();
+            checkExpr("[[1, 2], [3, 4], [5, 6]] * [[2, 2], [2, 2], [2, 2]] - [[1, 1], [1, 1], [1, 1]]",
+                new long[][]{{1, 3}, {5, 7}, {9, 11}});
+        } finally {
+            ArrayParallelism.setThreshold(threshold);
+        }
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     // NOTE(norswap): Not incredibly complete, but should cover the basics.
@@ -655,12 +655,92 @@ public final class SemanticAnalysisTests extends UraniumTestFixture
         successInput("var a: Float[][] = [[-1, 1, 0], [15, -36, 789]] + [[3.2, -1.3658, 0.0], [1.0, 2.0, 3.0]]");
         successInput("var b: Float[][][][] = [[[[3.2, -1.3658, 0.0], [1.0, 2.0, 3.0]]]] / [[[[-1, 1, 0], [15, -36, 789]]]]");
         failureInputWith("var a: Float[] = [[-1, 1, 0], [15, -36, 789]] + [[3.2, -1.3658, 0.0], [1.0, 2.0, 3.0]]",
-            "incompatible initializer type provided for variable `a`: expected Float[] but got Int[][]"); // TODO with error message
+            "incompatible initializer type provided for variable `a`: expected Float[] but got Float[][]"); // TODO with error message
 
         // matricial product
         successInput("var result: Float[][] = [[1, 2, 3]] @ [[1.0], [2.0], [3.0]]");
         failureInputWith("var result: Float[] = [[1, 2, 3]] @ [[1.0], [2.0], [3.0]]",
-            "incompatible initializer type provided for variable `result`: expected Float[] but got Int[][]");
+            "incompatible initializer type provided for variable `result`: expected Float[] but got Float[][]");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testParallelBuiltins() {
+        successInput("fun f (x: Int): Float { return x * 1.5 }  var a: Float[] = pmap(f, [1, 2])");
+        successInput("fun add (a: Float, b: Float): Float { return a + b }" +
+            "var s: Float = preduce(add, [1, 2], 0)");
+        successInput("fun p (i: Int): String { return print(\"\" + i) }  pfor(0, 10, p)");
+
+        failureInputWith("fun f (x: String): Int { return 1 }  pmap(f, [1, 2])",
+            "pmap expects a function taking Int but got (String) -> Int");
+        failureInputWith("pmap(1, [1, 2])",
+            "pmap expects a function of 1 parameter(s) but got Int");
+        failureInputWith("fun f (x: Int): Int { return x }  pmap(f, 1)",
+            "pmap expects an array but got Int");
+        failureInputWith("fun f (x: Int): Int { return x }  pmap(f)",
+            "wrong number of arguments, expected 2 but got 1");
+        failureInputWith("fun f (x: Int): Int { return x }  preduce(f, [1], 0)",
+            "preduce expects a function of 2 parameter(s) but got (Int) -> Int");
+        failureInputWith("fun add (a: Int, b: Int): Int { return a + b }  preduce(add, [1], 0.5)",
+            "preduce expects an initial value of type Int but got Float");
+        failureInputWith("fun f (i: Int): Int { return i }  pfor(0, 1.5, f)",
+            "pfor expects Int bounds but got Int and Float");
+        failureInputWith("fun f (i: Int): Int { return i }  var x: Int = pfor(0, 1, f)",
+            "incompatible initializer type provided for variable `x`: expected Int but got Void");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testChannels() {
+        successInput("var c: Channel<Float> = $Channel<Float>(4)" +
+            "send(c, 1)  send(c, 1.5)  close(c)" +
+            "var x: Float = 0  while more(c) { x = x + receive(c) }");
+        successInput("var c: Channel<Int[]> = $Channel<Int[]>(1)  send(c, [1])  send(c, null)");
+        successInput("fun f (c: Channel<String>): String { return receive(c) }");
+        successInput("var c: Channel<Int> = null  var d: Channel<Int> = c  var b: Bool = c == d");
+
+        failureInputWith("var c: Channel<Int> = $Channel<Int>(1)  send(c, \"a\")",
+            "cannot send a value of type String on a Channel<Int>");
+        failureInputWith("var c: Channel<Int> = $Channel<Float>(1)",
+            "incompatible initializer type provided for variable `c`: "
+                + "expected Channel<Int> but got Channel<Float>");
+        failureInputWith("var c: Channel<Int> = $Channel<Int>(1.5)",
+            "incompatible argument provided for argument 0: expected Int but got Float");
+        failureInputWith("var x: Int = receive([1])",
+            "receive expects a channel but got Int[]");
+        failureInputWith("var c: Channel<Int> = $Channel<Int>(1)  send(c)",
+            "wrong number of arguments, expected 2 but got 1");
+        failureInputWith("var c: Channel<Int> = $Channel<Int>(1)  var x: Int = close(c)",
+            "incompatible initializer type provided for variable `x`: expected Int but got Void");
+        failureInputWith("var c: Channel<Void> = null",
+            "a channel cannot carry Void values");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testReadProtect() {
+        successInput(
+            "struct P { var x: Int; var y: Int }" +
+            "var p: P = $P(1, 2)" +
+            "var g: Int = 0" +
+            "fun snapshot (): Int {" +
+            "    var sum: Int = 0" +
+            "    protect read : { var x: Int = p.x  sum = x + p.y + g }" +
+            "    return sum" +
+            "}");
+
+        failureInputWith("var g: Int = 0  protect read : { g = 1 }",
+            "Trying to assign a global variable in a read-only protect block.");
+        failureInputWith("var g: Int = 0  fun f (): Int { protect read : { g = g + 1 } return g }",
+            "Trying to assign a global variable in a read-only protect block.");
+        failureInputWith("struct P { var x: Int }  var p: P = $P(1)  protect read : { p.x = 2 }",
+            "Trying to assign a struct field or an array component in a read-only protect block.");
+        failureInputWith("var a: Int[] = [1]  protect read : { a[0] = 2 }",
+            "Trying to assign a struct field or an array component in a read-only protect block.");
+        failureInputWith("var g: Int = 0  protect read : { protect : { g = 1 } }",
+            "A read-only protect block cannot be nested in a protect block, nor contain a protect block.");
+        failureInputWith("var g: Int = 0  protect : { protect read : { var x: Int = g } }",
+            "A read-only protect block cannot be nested in a protect block, nor contain a protect block.");
     }
 
     // ---------------------------------------------------------------------------------------------